@@ -0,0 +1,86 @@
+package com.dgi.fhirplace.benchmarks;
+
+import com.dgi.fhirplace.handler.LocalParameters;
+import com.dgi.fhirplace.util.FileUtility;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Moving 1 KB, 1 MB and 100 MB files to the archive with
+ * FileUtility.moveFileToArchiveDirectory.  The file is moved back before every
+ * call, outside of the measurement.
+ *
+ * By default the archive is on the same file system, so this measures the rename.
+ * Set -Dbenchmark.archivedir=<directory on another file system> to measure the copy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArchiveBenchmark {
+
+  @Param({ "1024", "1048576", "104857600" })
+  long size;
+
+  Path root;
+  Path archiveDirectory;
+  LocalParameters params;
+  FileUtility fileUtility;
+  Path source;
+  Path archived;
+
+  @Setup
+  public void setUp() throws Exception {
+    root = BenchmarkSupport.createDirectories("archive");
+    String otherArchive = System.getProperty("benchmark.archivedir");
+    archiveDirectory = (otherArchive != null) ? Files.createTempDirectory(Path.of(otherArchive), "archive") : 
+                                                root.resolve("arc");
+    params = BenchmarkSupport.newParameters(root, "com.dgi.archivedir", archiveDirectory.toString());
+    fileUtility = new FileUtility(params);
+
+    source = root.resolve("req").resolve("Req-T1001.xml");
+    archived = archiveDirectory.resolve(source.getFileName());
+    byte[] block = new byte[64 * 1024];
+    try (OutputStream out = Files.newOutputStream(archived)) {
+      for (long written = 0; written < size; written += block.length) {
+        out.write(block, 0, (int) Math.min(block.length, size - written));
+      }
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void restore() throws Exception {
+    Files.move(archived, source, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    BenchmarkSupport.deleteDirectory(root);
+    BenchmarkSupport.deleteDirectory(archiveDirectory);
+  }
+
+  @Benchmark
+  public void moveToArchive() throws Exception {
+    fileUtility.moveFileToArchiveDirectory(source.toString(), params);
+  }
+}
@@ -0,0 +1,42 @@
+package com.dgi.fhirplace.benchmarks;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line, and always adds the GC
+ * profiler (-prof gc) so the allocation per operation is reported with every
+ * result.  For example, to run the parser benchmarks only:
+ *   java -jar target/benchmarks.jar ParseTestRequestBenchmark
+ */
+public class BenchmarkRunner {
+
+  // Options that only print information, handled by JMH itself
+  static final List<String> INFO_OPTIONS = Arrays.asList("-h", "-l", "-lp", "-lprof", "-lrf");
+
+  public static void main(String[] args) throws Exception {
+    for (String arg : args) {
+      if (INFO_OPTIONS.contains(arg)) {
+        Main.main(args);
+        return;
+      }
+    }
+
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    OptionsBuilder options = new OptionsBuilder();
+    options.parent(commandLine);
+    boolean gcProfiler = commandLine.getProfilers().stream()
+                                    .anyMatch(profiler -> profiler.getKlass().equals("gc") || 
+                                                          profiler.getKlass().equals(GCProfiler.class.getName()));
+    if (!gcProfiler)
+      options.addProfiler(GCProfiler.class);
+
+    new Runner(options.build()).run();
+  }
+}
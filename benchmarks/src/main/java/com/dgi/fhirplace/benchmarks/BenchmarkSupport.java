@@ -0,0 +1,72 @@
+package com.dgi.fhirplace.benchmarks;
+
+import com.dgi.fhirplace.handler.LocalParameters;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Sets up the handler's directories and parameters in a temporary directory
+ */
+public class BenchmarkSupport {
+
+  public static final String IDENTIFIER = "ME";
+  public static final String PARTNER = "TP";
+
+  /**
+   * Creates the test request, status, archive and payload directories under a new temporary directory
+   * @param prefix - the prefix of the temporary directory name
+   * @return the temporary directory
+   * @throws IOException
+   */
+  public static Path createDirectories(String prefix) throws IOException {
+    Path root = Files.createTempDirectory(prefix);
+    Files.createDirectories(root.resolve("req"));
+    Files.createDirectories(root.resolve("sts"));
+    Files.createDirectories(root.resolve("arc"));
+    Files.createDirectories(root.resolve("pay"));
+    return root;
+  }
+
+  /**
+   * Returns the parameters of a handler working in the given directory.  The archive
+   * index is kept in memory only and loaded.
+   * @param root - a directory made by createDirectories
+   * @param settings - optional handler settings as name / value pairs
+   */
+  public static LocalParameters newParameters(Path root, String... settings) {
+    Properties p = new Properties();
+    p.setProperty("com.dgi.testrequestdir", root.resolve("req").toString());
+    p.setProperty("com.dgi.statusdir", root.resolve("sts").toString());
+    p.setProperty("com.dgi.archivedir", root.resolve("arc").toString());
+    p.setProperty("com.dgi.payloaddir", root.resolve("pay").toString());
+    p.setProperty("com.dgi.participantid", IDENTIFIER);
+    p.setProperty("com.dgi.handler.archiveindex", "");
+    p.setProperty("com.dgi.handler.debugmode", "false");
+    for (int i = 0; i + 1 < settings.length; i += 2) {
+      p.setProperty(settings[i], settings[i + 1]);
+    }
+
+    LocalParameters params = new LocalParameters();
+    params.setProperties(p);
+    params.getArchiveIndex().load();
+    return params;
+  }
+
+  /**
+   * Deletes a directory and everything in it
+   */
+  public static void deleteDirectory(Path directory) throws IOException {
+    if (directory == null || !Files.exists(directory))
+      return;
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+        Files.deleteIfExists(path);
+      }
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.dgi.fhirplace.benchmarks;
+
+import com.dgi.fhirplace.handler.FHIRplaceConstants;
+import com.dgi.fhirplace.parser.FHIRplaceXML;
+import com.dgi.fhirplace.parser.Instructions;
+import com.dgi.fhirplace.parser.StreamParseTestRequest;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Looking up the uploads of every direction and type with Instructions.getUpload,
+ * as the test requests do for each upload they write
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InstructionsBenchmark {
+
+  @Param({ "1", "10", "200" })
+  int uploads;
+
+  Instructions instruct;
+
+  @Setup
+  public void setUp() throws Exception {
+    Path root = BenchmarkSupport.createDirectories("instructions");
+    try {
+      Path file = TestRequestXml.write(root.resolve("req"), "T1001", uploads, 40);
+      FHIRplaceXML xml = new FHIRplaceXML();
+      new StreamParseTestRequest(file.toFile(), xml, BenchmarkSupport.newParameters(root));
+      instruct = xml.getInstructions();
+    } finally {
+      BenchmarkSupport.deleteDirectory(root);
+    }
+  }
+
+  @Benchmark
+  public void getUpload(Blackhole blackhole) {
+    for (int direction = 0; direction < FHIRplaceConstants.NUM_DIRECTIONS; direction++) {
+      for (int type = 0; type < FHIRplaceConstants.NUM_UPLOAD_TYPES; type++) {
+        blackhole.consume(instruct.getUpload(direction, type));
+      }
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package com.dgi.fhirplace.benchmarks;
+
+import com.dgi.fhirplace.handler.Logger;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Logging a message with Logger.write, from one and from four threads, and a
+ * debug message that is below the log level.  The log output is discarded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoggerBenchmark {
+
+  static {
+    // The logger writes to the console it finds when it is first used
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+  }
+
+  Logger log = new Logger(LoggerBenchmark.class);
+  String testRequestID = "T1001";
+  int count = 0;
+
+  @Benchmark
+  public void write() {
+    log.write("Sent ACK for TestRequest (" + testRequestID + ")");
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void writeFourThreads() {
+    log.write("Sent ACK for TestRequest (" + testRequestID + ")");
+  }
+
+  @Benchmark
+  public void debugDisabled() {
+    log.debug("Removed partner '{}' from list of active tests. ({})", "TP", testRequestID);
+  }
+}
@@ -0,0 +1,74 @@
+package com.dgi.fhirplace.benchmarks;
+
+import com.dgi.fhirplace.handler.LocalParameters;
+import com.dgi.fhirplace.parser.FHIRplaceXML;
+import com.dgi.fhirplace.parser.ParseTestRequest;
+import com.dgi.fhirplace.parser.StreamParseTestRequest;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of a test request file with the DOM and the stream parser:
+ *   - small:       one Upload per Send / Receive, short description
+ *   - large:       a 64 KB test description
+ *   - manyUploads: 200 Upload instructions per Send / Receive
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseTestRequestBenchmark {
+
+  @Param({ "small", "large", "manyUploads" })
+  String request;
+
+  Path root;
+  LocalParameters params;
+  File file;
+
+  @Setup
+  public void setUp() throws Exception {
+    root = BenchmarkSupport.createDirectories("parse");
+    params = BenchmarkSupport.newParameters(root);
+
+    int uploads = request.equals("manyUploads") ? 200 : 1;
+    int descriptionChars = request.equals("large") ? 64 * 1024 : 40;
+    file = TestRequestXml.write(root.resolve("req"), "T1001", uploads, descriptionChars).toFile();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    BenchmarkSupport.deleteDirectory(root);
+  }
+
+  @Benchmark
+  public FHIRplaceXML dom() throws Exception {
+    FHIRplaceXML xml = new FHIRplaceXML();
+    new ParseTestRequest(file, xml, params);
+    return xml;
+  }
+
+  @Benchmark
+  public FHIRplaceXML stream() throws Exception {
+    FHIRplaceXML xml = new FHIRplaceXML();
+    new StreamParseTestRequest(file, xml, params);
+    return xml;
+  }
+}
@@ -0,0 +1,100 @@
+package com.dgi.fhirplace.benchmarks;
+
+import com.dgi.fhirplace.handler.FHIRplaceConstants;
+import com.dgi.fhirplace.handler.LocalParameters;
+import com.dgi.fhirplace.parser.FHIRplaceXML;
+import com.dgi.fhirplace.parser.StreamParseTestRequest;
+import com.dgi.fhirplace.util.FHIRplaceUtil;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing status files with FHIRplaceUtil.sendStatus from 1, 8 and 64 threads,
+ * each thread writing the statuses of its own test request
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendStatusBenchmark {
+
+  static final int[] STATUS_TYPES = { FHIRplaceConstants.ACK, FHIRplaceConstants.SENT_OK,
+                                      FHIRplaceConstants.RECEIVED_OK, FHIRplaceConstants.RESULTS_OK };
+
+  @State(Scope.Benchmark)
+  public static class Handler {
+    @Param({ "false", "true" })
+    boolean fsync;
+
+    Path root;
+    LocalParameters params;
+    final AtomicInteger nextTestRequest = new AtomicInteger(1000);
+
+    @Setup
+    public void setUp() throws Exception {
+      root = BenchmarkSupport.createDirectories("status");
+      params = BenchmarkSupport.newParameters(root, "com.dgi.handler.fsync.status", Boolean.toString(fsync));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+      BenchmarkSupport.deleteDirectory(root);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class TestRequest {
+    String requestFileName;
+    FHIRplaceXML xml = new FHIRplaceXML();
+    int next = 0;
+
+    @Setup
+    public void setUp(Handler handler) throws Exception {
+      String testRequestID = "T" + handler.nextTestRequest.incrementAndGet();
+      Path file = TestRequestXml.write(handler.root.resolve("req"), testRequestID, 1, 40);
+      requestFileName = file.toString();
+      new StreamParseTestRequest(file.toFile(), xml, handler.params);
+    }
+  }
+
+  static void sendStatus(Handler handler, TestRequest request) throws Exception {
+    int statusType = STATUS_TYPES[request.next++ & 3];
+    FHIRplaceUtil.sendStatus(statusType, request.requestFileName, request.xml.getInstructions(),
+                             request.xml.getTransmission(), handler.params, "Benchmark status");
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void threads1(Handler handler, TestRequest request) throws Exception {
+    sendStatus(handler, request);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public void threads8(Handler handler, TestRequest request) throws Exception {
+    sendStatus(handler, request);
+  }
+
+  @Benchmark
+  @Threads(64)
+  public void threads64(Handler handler, TestRequest request) throws Exception {
+    sendStatus(handler, request);
+  }
+}
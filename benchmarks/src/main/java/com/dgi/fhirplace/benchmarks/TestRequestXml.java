@@ -0,0 +1,32 @@
+package com.dgi.fhirplace.benchmarks;
+
+import com.dgi.fhirplace.simulator.TestRequestGenerator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes test request files in the form the FHIRplace client writes them
+ */
+public class TestRequestXml {
+
+  /**
+   * Writes a test request file named Req-<testRequestID>.xml, sent by
+   * BenchmarkSupport.IDENTIFIER to BenchmarkSupport.PARTNER
+   * @param testRequestID - the test request ID, e.g., T1001
+   * @param uploads - the number of Upload instructions for each of Send and Receive
+   * @param descriptionChars - the length of the test description, to make the request larger
+   * @return the file
+   */
+  public static Path write(Path directory, String testRequestID, int uploads, int descriptionChars) throws IOException {
+    TestRequestGenerator generator = new TestRequestGenerator(BenchmarkSupport.IDENTIFIER);
+    generator.setUploads(uploads);
+    generator.setDescriptionChars(descriptionChars);
+    Path file = directory.resolve("Req-" + testRequestID + ".xml");
+    String xml = generator.build(testRequestID, BenchmarkSupport.PARTNER, true);
+    Files.write(file, xml.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+}
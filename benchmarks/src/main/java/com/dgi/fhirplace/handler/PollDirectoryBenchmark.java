@@ -0,0 +1,62 @@
+package com.dgi.fhirplace.handler;
+
+import com.dgi.fhirplace.benchmarks.BenchmarkSupport;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One pass of the polling loop (ProcessIncomingMessages.pollOnce) over a test request
+ * directory holding 0, 10, 1000 and 100000 request files.  With no files the pass
+ * also checks the status directory.  In this package to reach the package private pass.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PollDirectoryBenchmark {
+
+  @Param({ "0", "10", "1000", "100000" })
+  int files;
+
+  Path root;
+  ProcessIncomingMessages incoming;
+
+  @Setup
+  public void setUp() throws Exception {
+    root = BenchmarkSupport.createDirectories("poll");
+    Path requestDirectory = root.resolve("req");
+    for (int i = 0; i < files; i++) {
+      Files.createFile(requestDirectory.resolve(String.format("Req-T%06d.xml", i)));
+    }
+    incoming = new ProcessIncomingMessages(null, BenchmarkSupport.newParameters(root));
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    BenchmarkSupport.deleteDirectory(root);
+  }
+
+  @Benchmark
+  public String pollOnce() {
+    // Forget the file handed out by the previous pass, so every pass finds one
+    incoming.tesRequestFileName = null;
+    return incoming.pollOnce();
+  }
+}
@@ -0,0 +1,31 @@
+package com.dgi.fhirplace.events;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A test request or payload file was moved to the archive
+ */
+@Name("com.dgi.fhirplace.ArchiveMove")
+@Label("Archive Move")
+@Description("A file was moved to the archive directory")
+@StackTrace(false)
+public class ArchiveMoveEvent extends TestRequestEvent {
+
+  @Label("Source")
+  public String source;
+
+  @Label("Target")
+  public String target;
+
+  @Label("Copied")
+  @Description("True if the file had to be copied because it could not be renamed")
+  public boolean copied;
+
+  @Label("Size")
+  @DataAmount
+  public long size;
+}
@@ -0,0 +1,23 @@
+package com.dgi.fhirplace.events;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A test request file was parsed
+ */
+@Name("com.dgi.fhirplace.Parse")
+@Label("Test Request Parsed")
+@Description("Parsing of a test request file")
+@StackTrace(false)
+public class ParseEvent extends TestRequestEvent {
+
+  @Label("Parser")
+  @Description("dom or stream")
+  public String parser;
+
+  @Label("File Name")
+  public String fileName;
+}
@@ -0,0 +1,20 @@
+package com.dgi.fhirplace.events;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A test request waited for the earlier test requests of its partner
+ */
+@Name("com.dgi.fhirplace.PartnerWait")
+@Label("Partner Wait")
+@Description("Time a test request waited for the partner's earlier test requests to complete")
+@StackTrace(false)
+public class PartnerWaitEvent extends TestRequestEvent {
+
+  @Label("Queued")
+  @Description("Test requests waiting for the partner when this one was dispatched")
+  public int queued;
+}
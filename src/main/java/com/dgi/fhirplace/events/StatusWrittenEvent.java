@@ -0,0 +1,32 @@
+package com.dgi.fhirplace.events;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A status (.sts) file was written for the FHIRplace client
+ */
+@Name("com.dgi.fhirplace.StatusWritten")
+@Label("Status Written")
+@Description("A status file was written to the status directory")
+@StackTrace(false)
+public class StatusWrittenEvent extends TestRequestEvent {
+
+  @Label("Status Type")
+  @Description("The FHIRplaceConstants status type, e.g., ACK or RESULTS_OK")
+  public int statusType;
+
+  @Label("File Name")
+  public String fileName;
+
+  @Label("Size")
+  @DataAmount
+  public long size;
+
+  @Label("Forced")
+  @Description("True if the file was flushed to the storage device")
+  public boolean forced;
+}
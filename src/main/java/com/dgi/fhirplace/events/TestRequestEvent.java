@@ -0,0 +1,30 @@
+package com.dgi.fhirplace.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * Base class of the JDK Flight Recorder events written by the handler, so they
+ * can be lined up with the GC, thread and file I/O events of the same recording.
+ *
+ * The events are only recorded while a recording with them enabled is running
+ * (e.g., java -XX:StartFlightRecording:filename=handler.jfr -jar FHIRplace-Handler.jar).
+ * Otherwise begin() and commit() do nothing, so the usual pattern is:
+ *   StatusWrittenEvent event = new StatusWrittenEvent();
+ *   event.begin();
+ *   ...
+ *   if (event.shouldCommit()) {
+ *     // Only now compute the field values
+ *     event.commit();
+ *   }
+ */
+@Category({ "FHIRplace", "Test Request" })
+public abstract class TestRequestEvent extends Event {
+
+  @Label("Test Request ID")
+  public String testRequestID;
+
+  @Label("Partner")
+  public String partner;
+}
@@ -0,0 +1,24 @@
+package com.dgi.fhirplace.events;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A test request file was picked up from the test request directory, the partner
+ * is not known until the file is parsed
+ */
+@Name("com.dgi.fhirplace.TestRequestReceived")
+@Label("Test Request Received")
+@Description("A test request file was picked up and submitted to run")
+@StackTrace(false)
+public class TestRequestReceivedEvent extends TestRequestEvent {
+
+  @Label("File Name")
+  public String fileName;
+
+  @Label("Submitted")
+  @Description("False if the test request was deferred because too many tests are waiting")
+  public boolean submitted;
+}
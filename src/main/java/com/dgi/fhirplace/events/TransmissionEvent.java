@@ -0,0 +1,25 @@
+package com.dgi.fhirplace.events;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A call to the partner code: SendAsClient.send() or ReceiveAsServer.receive()
+ * for the initial transmission, and the response that follows it
+ */
+@Name("com.dgi.fhirplace.Transmission")
+@Label("Send / Receive")
+@Description("A send or receive call to the trading partner")
+public class TransmissionEvent extends TestRequestEvent {
+
+  @Label("Operation")
+  @Description("send, receive, send response or receive response")
+  public String operation;
+
+  @Label("Data Type")
+  public String dataType;
+
+  @Label("Success")
+  public boolean success;
+}
@@ -0,0 +1,31 @@
+package com.dgi.fhirplace.events;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * An upload (.uld) file was written for the FHIRplace client
+ */
+@Name("com.dgi.fhirplace.UploadWritten")
+@Label("Upload Written")
+@Description("An upload file was written to the status directory")
+@StackTrace(false)
+public class UploadWrittenEvent extends TestRequestEvent {
+
+  @Label("Direction")
+  @Description("sent or received")
+  public String direction;
+
+  @Label("Data Type")
+  public String dataType;
+
+  @Label("File Name")
+  public String fileName;
+
+  @Label("Size")
+  @DataAmount
+  public long size;
+}
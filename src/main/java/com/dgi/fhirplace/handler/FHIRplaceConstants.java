@@ -28,9 +28,11 @@ public class FHIRplaceConstants {
   public final static int FHIR_ID_DATA       = 2;
   public final static int PATIENT_DATA       = 3;
   public final static int TRANSPORT_DATA     = 4;
+  public final static int NUM_UPLOAD_TYPES   = 5;
 
   public final static int SENT_DATA          = 0;
   public final static int RECEIVED_DATA      = 1;    
+  public final static int NUM_DIRECTIONS     = 2;
 
   // Status codes
   public final static int ACK                = 0;
@@ -43,4 +45,5 @@ public class FHIRplaceConstants {
   public final static int VERIFIED_NOT_OK    = 7;
   public final static int RESULTS_OK         = 8;
   public final static int RESULTS_NOT_OK     = 9; 
+  public final static int NUM_STATUS_TYPES   = 10;
 }
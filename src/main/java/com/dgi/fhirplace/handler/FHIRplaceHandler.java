@@ -1,6 +1,11 @@
 package com.dgi.fhirplace.handler;
 
+import com.dgi.fhirplace.metrics.MetricsExporter;
+import com.dgi.fhirplace.metrics.TestMetrics;
+import com.dgi.fhirplace.util.ArchiveCompactor;
+import com.dgi.fhirplace.util.ArchiveIndex;
 import com.dgi.fhirplace.util.FHIRplaceUtil;
+import java.io.IOException;
 
 /**
  * FHIRplace Handler - Monitors shared directory, parses test requests 
@@ -11,27 +16,107 @@ public class FHIRplaceHandler {
   Logger log = new Logger(FHIRplaceHandler.class);
   LocalParameters params = null;
   ProcessIncomingMessages incomingMsgProcessor = null;
+  TestRequestExecutor testRequestExecutor = null;
+  PartnerDispatchQueue partnerDispatchQueue = new PartnerDispatchQueue();
+  ArchiveCompactor archiveCompactor = null;
+  MetricsExporter metricsExporter = null;
   
   public FHIRplaceHandler() {
     params = new LocalParameters();
     params.getProperties();
+    Logger.configure(params);
     params.dumpValues();  
     
     // Make sure that all the required directories exist on disk
     FHIRplaceUtil.checkDirectories(params);
+
+    // Remember the archived test requests, so duplicates are found without touching the disk
+    params.getArchiveIndex().load();
+
+    // Claim the test requests if other instances share the test request directory
+    params.getRequestClaims().open();
+
+    // Finish the tests that were running when the handler last stopped
+    params.getTestJournal().load();
+    params.getTestJournal().recover(params);
   }
   
   public void start() {
     // Perform any necessary set up here...
     log.write("Using XML Identifier: " + params.getXMLIdentifier() + "\n");
+
+    // Test requests are run as tasks on this executor
+    testRequestExecutor = new TestRequestExecutor(params);
+    log.write("Running test requests on " + (testRequestExecutor.isVirtualThreads() ? "virtual" : "platform") + " threads");
+    
+    // Pack the old days of a date laid out archive in the background
+    if (params.getArchiveLayout() == ArchiveIndex.Layout.DATE && params.getArchiveCompactDays() > 0) {
+      archiveCompactor = new ArchiveCompactor(params.getArchiveIndex(), params.getArchiveCompactDays());
+      archiveCompactor.start();
+    }
     
+    // Log the phase durations of the test requests periodically
+    TestMetrics.getInstance().startDump(params.getMetricsDumpInterval());
+
     // Poll the test request directory and process incoming test request messages
     incomingMsgProcessor = new ProcessIncomingMessages(this, params);
     incomingMsgProcessor.start();
+
+    // Make the handler's internals available to a monitoring system, if configured
+    if (params.getMetricsPort() > 0 || !FHIRplaceUtil.isNullOrEmpty(params.getMetricsTextFile())) {
+      metricsExporter = new MetricsExporter(this, params);
+      if (params.getMetricsPort() > 0) {
+        try {
+          metricsExporter.startHttpServer(params.getMetricsHost(), params.getMetricsPort());
+        } catch (IOException | RuntimeException ex) {
+          log.write("Warning: Could not serve metrics on port " + params.getMetricsPort() + ": " + ex.getMessage());
+        }
+      }
+      if (!FHIRplaceUtil.isNullOrEmpty(params.getMetricsTextFile()))
+        metricsExporter.startTextFile(params.getMetricsTextFile(), params.getMetricsTextFileInterval());
+    }
   }
   
   public void stop() {
+    // Take no new test requests
+    incomingMsgProcessor.stopProcessing();
     incomingMsgProcessor.interrupt();
+    if (archiveCompactor != null)
+      archiveCompactor.shutdown();
+
+    // The running tests still journal their progress and archive their request files
+    boolean finished = false;
+    try {
+      incomingMsgProcessor.join();
+      testRequestExecutor.shutdown();
+      testRequestExecutor.awaitTermination();
+      finished = true;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    if (finished) {
+      params.getArchiveIndex().close();
+      params.getTestJournal().close();
+      // Only now may other instances take over the requests and partners of this one
+      params.getRequestClaims().close();
+    } else {
+      // Whatever the tests still write goes to the journal, which is read again at the next start,
+      // and the claims of the running tests are taken over once their lease runs out
+      log.write("Warning: Stopped without waiting for the running test requests to finish");
+    }
+    TestMetrics.getInstance().shutdown();
+    if (metricsExporter != null)
+      metricsExporter.shutdown();
+  }
+
+  public TestRequestExecutor getTestRequestExecutor() {
+    return this.testRequestExecutor;
+  }
+  public PartnerDispatchQueue getPartnerDispatchQueue() {
+    return this.partnerDispatchQueue;
+  }
+  public ProcessIncomingMessages getIncomingMessageProcessor() {
+    return this.incomingMsgProcessor;
   }
   
   /**
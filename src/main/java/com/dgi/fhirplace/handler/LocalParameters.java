@@ -1,10 +1,17 @@
 package com.dgi.fhirplace.handler;
 
+import com.dgi.fhirplace.util.ArchiveIndex;
 import com.dgi.fhirplace.util.FHIRplaceUtil;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -25,12 +32,109 @@ public class LocalParameters {
   static String ARCHIVE_DIR_PROP = "com.dgi.archivedir";
   static String PAYLOAD_DIR_PROP = "com.dgi.payloaddir";
   static String XML_IDENTIFIER_PROP = "com.dgi.participantid";
+
+  // Handler specific settings (optional)
+  static String INTAKE_MODE_PROP = "com.dgi.handler.intakemode";
+  static String STATUS_CHECK_INTERVAL_PROP = "com.dgi.handler.statuscheckinterval";
+  static String EXECUTOR_PROP = "com.dgi.handler.executor";
+  static String MAX_ACTIVE_TESTS_PROP = "com.dgi.handler.maxactivetests";
+  static String MAX_QUEUED_TESTS_PROP = "com.dgi.handler.maxqueuedtests";
+  static String ADMISSION_POLICY_PROP = "com.dgi.handler.admissionpolicy";
+  static String PARSER_PROP = "com.dgi.handler.parser";
+  static String FSYNC_STATUS_PROP = "com.dgi.handler.fsync.status";
+  static String FSYNC_UPLOAD_PROP = "com.dgi.handler.fsync.upload";
+  static String ARCHIVE_INDEX_PROP = "com.dgi.handler.archiveindex";
+  static String ARCHIVE_LAYOUT_PROP = "com.dgi.handler.archivelayout";
+  static String ARCHIVE_COMPACT_DAYS_PROP = "com.dgi.handler.archivecompactdays";
+  static String JOURNAL_PROP = "com.dgi.handler.journal";
+  static String FSYNC_JOURNAL_PROP = "com.dgi.handler.fsync.journal";
+  static String CLAIM_DIR_PROP = "com.dgi.handler.claimdir";
+  static String INSTANCE_ID_PROP = "com.dgi.handler.instanceid";
+  static String CLAIM_LEASE_PROP = "com.dgi.handler.claimlease";
+  static String SCHEDULER_PROP = "com.dgi.handler.scheduler";
+  static String SCHEDULER_DEADLINE_PROP = "com.dgi.handler.scheduler.deadline";
+  static String SCHEDULER_MAX_WAIT_PROP = "com.dgi.handler.scheduler.maxwait";
+  static String SCHEDULER_RULE_PROP = "com.dgi.handler.scheduler.rule.";
+  static String LOG_OVERFLOW_PROP = "com.dgi.handler.log.overflow";
+  static String LOG_LEVEL_PROP = "com.dgi.handler.log.level";
+  static String DEBUG_MODE_PROP = "com.dgi.handler.debugmode";
+  static String METRICS_DUMP_INTERVAL_PROP = "com.dgi.handler.metrics.dumpinterval";
+  static String METRICS_PORT_PROP = "com.dgi.handler.metrics.port";
+  static String METRICS_HOST_PROP = "com.dgi.handler.metrics.host";
+  static String METRICS_TEXTFILE_PROP = "com.dgi.handler.metrics.textfile";
+  static String METRICS_TEXTFILE_INTERVAL_PROP = "com.dgi.handler.metrics.textfileinterval";
    
   String testRequestDirectory = null;
   String statusDirectory = null;
   String archiveDirectory = null;
   String payloadDirectory = null;
   String xmlUser = null;
+
+  // How incoming test requests are detected: "watch" (file system events) or "poll"
+  String intakeMode = "watch";
+  // Seconds between checks for unconsumed status files when watching the request directory
+  int statusCheckInterval = 60;
+
+  // How test requests are run: "virtual" (virtual threads when available) or "platform" (thread pool)
+  String executorType = "virtual";
+  int maxActiveTests = 64;
+  int maxQueuedTests = 1000;
+  String admissionPolicy = "block";
+
+  // How test requests are parsed: "dom", "stream" or "verify" (DOM, checked against the stream parser)
+  String parserType = "dom";
+
+  // Whether status and upload files are flushed to the storage device before they are published
+  boolean fsyncStatus = false;
+  boolean fsyncUpload = false;
+
+  // Snapshot file of the archive index, empty to keep the index in memory only
+  String archiveIndexFile = "fhirplace-archive.idx";
+  ArchiveIndex archiveIndex = null;
+
+  // How the archive directory is laid out: "flat", "date" (yyyy/MM/dd) or "prefix" (test request ID prefix)
+  String archiveLayout = "flat";
+  // Days after which a day of a date laid out archive is packed into a zip segment, 0 to never pack
+  int archiveCompactDays = 30;
+
+  // Journal of the running tests, to finish them after a restart, empty to journal nothing
+  String journalFile = "fhirplace-journal.log";
+  boolean fsyncJournal = false;
+  TestJournal testJournal = null;
+
+  // Directory where handler instances sharing the test request directory claim the test requests,
+  // empty for a single instance
+  String claimDirectory = "";
+  // ID of this instance among them, the host name by default
+  String instanceID = "";
+  // Seconds a claim of a crashed instance is held before another instance takes it over
+  int claimLease = 60;
+  RequestClaims requestClaims = null;
+
+  // Order of the waiting test requests: "fifo" or "deadline"
+  String scheduler = "fifo";
+  // Seconds from a test request's TimeStamp to its deadline when no rule matches it
+  int schedulerDeadline = 3600;
+  // Seconds after which a waiting test request runs before those due later, 0 for no limit
+  int schedulerMaxWait = 600;
+  // Deadline rules, in the order of their numbers
+  List<String> schedulerRules = new ArrayList<>();
+  TestScheduler testScheduler = null;
+
+  // What happens to a log message when the log buffer is full: "block", "drop" or "count"
+  String logOverflow = "block";
+  // Lowest level of the messages that are logged: "debug", "info", "warn" or "error",
+  // by default "debug" in debug mode and "info" otherwise
+  String logLevel = null;
+
+  // Seconds between two logs of the test request phase durations, 0 to never log them
+  int metricsDumpInterval = 300;
+  // Port of the HTTP metrics endpoint (0 for none) and the address it listens on
+  int metricsPort = 0;
+  String metricsHost = "127.0.0.1";
+  // File the metrics are written to for a textfile collector (empty for none), and seconds between writes
+  String metricsTextFile = "";
+  int metricsTextFileInterval = 15;
   
   boolean cancelledTestRequest = false;
   
@@ -43,6 +147,9 @@ public class LocalParameters {
   ConcurrentHashMap cancelledTestRequests = new ConcurrentHashMap();
   ConcurrentHashMap activeTests = new ConcurrentHashMap();
   ConcurrentHashMap activeResults = new ConcurrentHashMap();
+
+  // Index of the active tests for each partner, kept in step with activeTests
+  ConcurrentHashMap<String, Set<String>> partnerActiveTests = new ConcurrentHashMap<>();
   
   public void getProperties() {
     // Read the FHIRplace configuration file and get the propeties from it
@@ -53,14 +160,7 @@ public class LocalParameters {
       try {
         in = new FileInputStream(f);
         p.load(in);
- 
-        // Load the directory names from the configuarion properties
-        testRequestDirectory = p.getProperty(TEST_REQUEST_DIR_PROP);
-        statusDirectory = p.getProperty(STATUS_DIR_PROP);
-        archiveDirectory = p.getProperty(ARCHIVE_DIR_PROP);
-        payloadDirectory = p.getProperty(PAYLOAD_DIR_PROP);
-        xmlUser = p.getProperty(XML_IDENTIFIER_PROP);
-                              
+        this.setProperties(p);
       } catch (Exception ex) {
         log.writeStackTrace(ex);
       } finally {
@@ -75,6 +175,105 @@ public class LocalParameters {
     }
   }
 
+  /**
+   * Takes the settings from properties that were not read from the configuration
+   * file, e.g., by tools that run parts of the handler on their own directories
+   * @param p - the properties, with the same names as in the configuration file
+   */
+  public void setProperties(Properties p) {
+    // Load the directory names from the configuarion properties
+    testRequestDirectory = p.getProperty(TEST_REQUEST_DIR_PROP);
+    statusDirectory = p.getProperty(STATUS_DIR_PROP);
+    archiveDirectory = p.getProperty(ARCHIVE_DIR_PROP);
+    payloadDirectory = p.getProperty(PAYLOAD_DIR_PROP);
+    xmlUser = p.getProperty(XML_IDENTIFIER_PROP);
+
+    // Load the optional handler settings
+    intakeMode = p.getProperty(INTAKE_MODE_PROP, intakeMode).trim();
+    statusCheckInterval = getIntProperty(p, STATUS_CHECK_INTERVAL_PROP, statusCheckInterval);
+    executorType = p.getProperty(EXECUTOR_PROP, executorType).trim();
+    maxActiveTests = getIntProperty(p, MAX_ACTIVE_TESTS_PROP, maxActiveTests);
+    maxQueuedTests = getIntProperty(p, MAX_QUEUED_TESTS_PROP, maxQueuedTests);
+    admissionPolicy = p.getProperty(ADMISSION_POLICY_PROP, admissionPolicy).trim();
+    parserType = p.getProperty(PARSER_PROP, parserType).trim();
+    fsyncStatus = getBooleanProperty(p, FSYNC_STATUS_PROP, fsyncStatus);
+    fsyncUpload = getBooleanProperty(p, FSYNC_UPLOAD_PROP, fsyncUpload);
+    archiveIndexFile = p.getProperty(ARCHIVE_INDEX_PROP, archiveIndexFile).trim();
+    archiveLayout = p.getProperty(ARCHIVE_LAYOUT_PROP, archiveLayout).trim();
+    archiveCompactDays = getIntProperty(p, ARCHIVE_COMPACT_DAYS_PROP, archiveCompactDays);
+    journalFile = p.getProperty(JOURNAL_PROP, journalFile).trim();
+    fsyncJournal = getBooleanProperty(p, FSYNC_JOURNAL_PROP, fsyncJournal);
+    claimDirectory = p.getProperty(CLAIM_DIR_PROP, claimDirectory).trim();
+    instanceID = p.getProperty(INSTANCE_ID_PROP, instanceID).trim();
+    claimLease = getIntProperty(p, CLAIM_LEASE_PROP, claimLease);
+    scheduler = p.getProperty(SCHEDULER_PROP, scheduler).trim();
+    schedulerDeadline = getIntProperty(p, SCHEDULER_DEADLINE_PROP, schedulerDeadline);
+    schedulerMaxWait = getIntProperty(p, SCHEDULER_MAX_WAIT_PROP, schedulerMaxWait);
+    schedulerRules = getNumberedProperties(p, SCHEDULER_RULE_PROP);
+    logOverflow = p.getProperty(LOG_OVERFLOW_PROP, logOverflow).trim();
+    debugMode = getBooleanProperty(p, DEBUG_MODE_PROP, debugMode);
+    logLevel = p.getProperty(LOG_LEVEL_PROP, debugMode ? "debug" : "info").trim();
+    metricsDumpInterval = getIntProperty(p, METRICS_DUMP_INTERVAL_PROP, metricsDumpInterval);
+    metricsPort = getIntProperty(p, METRICS_PORT_PROP, metricsPort);
+    metricsHost = p.getProperty(METRICS_HOST_PROP, metricsHost).trim();
+    metricsTextFile = p.getProperty(METRICS_TEXTFILE_PROP, metricsTextFile).trim();
+    metricsTextFileInterval = getIntProperty(p, METRICS_TEXTFILE_INTERVAL_PROP, metricsTextFileInterval);
+  }
+
+  /**
+   * Returns the integer value of an optional property
+   * @param p - the loaded properties
+   * @param name - the property name
+   * @param defaultValue - the value to use if the property is missing or invalid
+   * @return the property value
+   */
+  int getIntProperty(Properties p, String name, int defaultValue) {
+    String value = p.getProperty(name);
+    if (FHIRplaceUtil.isNullOrEmpty(value))
+      return defaultValue;
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException ex) {
+      log.write("Warning: Invalid value '" + value + "' for " + name + ", using " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Returns the boolean value of an optional property
+   * @param p - the loaded properties
+   * @param name - the property name
+   * @param defaultValue - the value to use if the property is missing
+   * @return the property value
+   */
+  boolean getBooleanProperty(Properties p, String name, boolean defaultValue) {
+    String value = p.getProperty(name);
+    if (FHIRplaceUtil.isNullOrEmpty(value))
+      return defaultValue;
+    return Boolean.parseBoolean(value.trim());
+  }
+
+  /**
+   * Returns the values of the optional properties named prefix1, prefix2, ... in the order of their numbers
+   * @param p - the loaded properties
+   * @param prefix - the name of the properties without their number
+   */
+  List<String> getNumberedProperties(Properties p, String prefix) {
+    TreeMap<Integer, String> values = new TreeMap<>();
+    for (String name : p.stringPropertyNames()) {
+      if (!name.startsWith(prefix))
+        continue;
+      try {
+        String value = p.getProperty(name).trim();
+        if (!value.isEmpty())
+          values.put(Integer.parseInt(name.substring(prefix.length()).trim()), value);
+      } catch (NumberFormatException ex) {
+        log.write("Warning: Ignoring " + name + ", it does not end with a number");
+      }
+    }
+    return new ArrayList<>(values.values());
+  }
+
   public boolean isDebugMode() {
     return this.debugMode;
   }
@@ -98,13 +297,164 @@ public class LocalParameters {
   public String getXMLIdentifier() {
     return xmlUser;
   }
+  public boolean isWatchIntakeMode() {
+    return !"poll".equalsIgnoreCase(this.intakeMode);
+  }
+  public int getStatusCheckInterval() {
+    return this.statusCheckInterval;
+  }
+  public boolean isVirtualThreadExecutor() {
+    return !"platform".equalsIgnoreCase(this.executorType);
+  }
+  public int getMaxActiveTests() {
+    return this.maxActiveTests;
+  }
+  public int getMaxQueuedTests() {
+    return this.maxQueuedTests;
+  }
+  public boolean isStreamParser() {
+    return "stream".equalsIgnoreCase(this.parserType);
+  }
+  public boolean isVerifyParser() {
+    return "verify".equalsIgnoreCase(this.parserType);
+  }
+  public boolean isFsyncStatus() {
+    return this.fsyncStatus;
+  }
+  public boolean isFsyncUpload() {
+    return this.fsyncUpload;
+  }
+  /**
+   * Returns the index of the archived files, it must be loaded before it is used
+   */
+  public synchronized ArchiveIndex getArchiveIndex() {
+    if (this.archiveIndex == null)
+      this.archiveIndex = new ArchiveIndex(this.archiveDirectory, this.archiveIndexFile, this.getArchiveLayout());
+    return this.archiveIndex;
+  }
+  /**
+   * Returns the journal of the running tests, it must be loaded before it is used
+   */
+  public synchronized TestJournal getTestJournal() {
+    if (this.testJournal == null)
+      this.testJournal = new TestJournal(this.journalFile, this.fsyncJournal, this.getArchiveIndex());
+    return this.testJournal;
+  }
+  /**
+   * Returns the claims of this instance on the test requests, it must be opened before it is used
+   */
+  public synchronized RequestClaims getRequestClaims() {
+    if (this.requestClaims == null)
+      this.requestClaims = new RequestClaims(this.claimDirectory, this.getInstanceID(), this.claimLease);
+    return this.requestClaims;
+  }
+  /**
+   * Returns the scheduler that orders the waiting test requests
+   */
+  public synchronized TestScheduler getTestScheduler() {
+    if (this.testScheduler == null)
+      this.testScheduler = new TestScheduler(this);
+    return this.testScheduler;
+  }
+  public boolean isDeadlineScheduler() {
+    return "deadline".equalsIgnoreCase(this.scheduler);
+  }
+  public int getSchedulerDeadline() {
+    return this.schedulerDeadline;
+  }
+  public int getSchedulerMaxWait() {
+    return this.schedulerMaxWait;
+  }
+  public List<String> getSchedulerRules() {
+    return this.schedulerRules;
+  }
+  public String getInstanceID() {
+    if (FHIRplaceUtil.isNullOrEmpty(this.instanceID)) {
+      try {
+        this.instanceID = InetAddress.getLocalHost().getHostName();
+      } catch (IOException ex) {
+        this.instanceID = "localhost";
+      }
+    }
+    return this.instanceID;
+  }
+  public ArchiveIndex.Layout getArchiveLayout() {
+    if ("date".equalsIgnoreCase(this.archiveLayout))
+      return ArchiveIndex.Layout.DATE;
+    else if ("prefix".equalsIgnoreCase(this.archiveLayout))
+      return ArchiveIndex.Layout.PREFIX;
+    return ArchiveIndex.Layout.FLAT;
+  }
+  public Logger.Level getLogLevel() {
+    if (FHIRplaceUtil.isNullOrEmpty(this.logLevel))
+      return this.debugMode ? Logger.Level.DEBUG : Logger.Level.INFO;
+    for (Logger.Level level : Logger.Level.values()) {
+      if (level.name().equalsIgnoreCase(this.logLevel))
+        return level;
+    }
+    return Logger.Level.INFO;
+  }
+  public Logger.OverflowPolicy getLogOverflowPolicy() {
+    if ("drop".equalsIgnoreCase(this.logOverflow))
+      return Logger.OverflowPolicy.DROP;
+    else if ("count".equalsIgnoreCase(this.logOverflow))
+      return Logger.OverflowPolicy.COUNT;
+    return Logger.OverflowPolicy.BLOCK;
+  }
+  public int getArchiveCompactDays() {
+    return this.archiveCompactDays;
+  }
+  public int getMetricsDumpInterval() {
+    return this.metricsDumpInterval;
+  }
+  public int getMetricsPort() {
+    return this.metricsPort;
+  }
+  public String getMetricsHost() {
+    return this.metricsHost;
+  }
+  public String getMetricsTextFile() {
+    return this.metricsTextFile;
+  }
+  public int getMetricsTextFileInterval() {
+    return this.metricsTextFileInterval;
+  }
+  public TestRequestExecutor.AdmissionPolicy getAdmissionPolicy() {
+    if ("reject".equalsIgnoreCase(this.admissionPolicy))
+      return TestRequestExecutor.AdmissionPolicy.REJECT;
+    else if ("callerruns".equalsIgnoreCase(this.admissionPolicy))
+      return TestRequestExecutor.AdmissionPolicy.CALLER_RUNS;
+    return TestRequestExecutor.AdmissionPolicy.BLOCK;
+  }
   
   public void dumpValues() {
     log.write("Test Request Directory: " + this.testRequestDirectory);
     log.write("Status Directory:       " + this.statusDirectory);
     log.write("Archive Directory:      " + this.archiveDirectory);
     log.write("Payload Directory:      " + this.payloadDirectory);
-    log.write("XML Identifier:         " + this.xmlUser + "\n");
+    log.write("XML Identifier:         " + this.xmlUser);
+    log.write("Intake Mode:            " + (this.isWatchIntakeMode() ? "watch" : "poll"));
+    log.write("Parser:                 " + this.parserType);
+    log.write("Debug Mode:             " + this.debugMode + " (log level " + this.getLogLevel() + ")");
+    log.write("Fsync:                  status=" + this.fsyncStatus + ", upload=" + this.fsyncUpload + 
+              ", journal=" + this.fsyncJournal);
+    log.write("Archive Layout:         " + this.getArchiveLayout() + 
+              ((this.getArchiveLayout() == ArchiveIndex.Layout.DATE && this.archiveCompactDays > 0) ? 
+               ", packed after " + this.archiveCompactDays + " days" : ""));
+    log.write("Test Journal:           " + 
+              (!FHIRplaceUtil.isNullOrEmpty(this.journalFile) ? this.journalFile : "none"));
+    log.write("Request Claims:         " + 
+              (!FHIRplaceUtil.isNullOrEmpty(this.claimDirectory) ? 
+               this.claimDirectory + " as " + this.getInstanceID() + ", lease " + this.claimLease + " seconds" : "none"));
+    log.write("Scheduler:              " + this.getTestScheduler());
+    log.write("Metrics Log Interval:   " + 
+              (this.metricsDumpInterval > 0 ? this.metricsDumpInterval + " seconds" : "never"));
+    log.write("Metrics Export:         " + 
+              (this.metricsPort > 0 ? "http://" + this.metricsHost + ":" + this.metricsPort + "/metrics " : "") +
+              (!FHIRplaceUtil.isNullOrEmpty(this.metricsTextFile) ? this.metricsTextFile : "") +
+              (this.metricsPort <= 0 && FHIRplaceUtil.isNullOrEmpty(this.metricsTextFile) ? "none" : ""));
+    log.write("Test Limits:            " + this.maxActiveTests + " active, " + this.maxQueuedTests + 
+              " queued (" + this.getAdmissionPolicy() + ")\n");
   }
 
   public ConcurrentHashMap getCancelledTestRequests() {
@@ -119,13 +469,16 @@ public class LocalParameters {
   public boolean isCancelledTestRequest(String testRequest) {
     return this.cancelledTestRequests.containsKey(testRequest);
   }
-  public synchronized void addCancelledTestRequest(String testRequest) {
+  public void addCancelledTestRequest(String testRequest) {
+    this.markCancelledTestRequest(testRequest);
+    this.removeActiveTest(testRequest);
+  }
+  public void markCancelledTestRequest(String testRequest) {
+    // Stays active until the test is done, so its request file isn't taken for a new test
     if (this.isActiveTest(testRequest)) {
-      if (this.cancelledTestRequests.isEmpty() || !this.cancelledTestRequests.containsKey(testRequest)) {
-        this.cancelledTestRequests.put(testRequest, testRequest);
-      }
+      if (this.cancelledTestRequests.putIfAbsent(testRequest, testRequest) == null && this.testJournal != null)
+        this.testJournal.cancelled(testRequest);
     }
-    this.removeActiveTest(testRequest);
   }
   public synchronized void removeCancelledTestRequest(String testRequest) {
     if (!this.cancelledTestRequests.isEmpty() && this.cancelledTestRequests.containsKey(testRequest)) {
@@ -141,54 +494,70 @@ public class LocalParameters {
       }
     }
   }
-  public synchronized void addActiveTest(String testRequest) {
-    if (this.activeTests.isEmpty() || !this.activeTests.containsKey(testRequest)) {
-      this.activeTests.put(testRequest, "");
-    }
+  public void addActiveTest(String testRequest) {
+    this.activeTests.putIfAbsent(testRequest, "");
   }
-  public synchronized void setPartnerForActiveTest(String testRequest, String partner) {
-    if (this.activeTests.containsKey(testRequest)) {
-       this.activeTests.remove(testRequest);
-       this.activeTests.put(testRequest, partner);
-    }           
+  public void setPartnerForActiveTest(String testRequest, String partner) {
+    // The partner index is updated while the test's entry is locked, so it can't miss a removal
+    this.activeTests.computeIfPresent(testRequest, (testID, previous) -> {
+      this.unindexPartnerTest(previous.toString(), testRequest);
+      this.indexPartnerTest(partner, testRequest);
+      return (partner != null) ? partner : "";
+    });
   }
   public String getPartnerAlreadyActiveTest(String purpose, String testRequestID, String partner) {
+    // A CancelTestRequest will have the same testRequestID so allow that to exist
+    if (!purpose.equalsIgnoreCase("TestRequest") || FHIRplaceUtil.isNullOrEmpty(partner))
+      return null;
+
     // Check for partner (host) in any already active tests
-    Enumeration c = this.activeTests.keys();
-    while (c.hasMoreElements()) {
-      String testID = c.nextElement().toString();
-      String partnerValue = this.activeTests.get(testID).toString();
-      // A CancelTestRequest will have the same testRequestID so allow that to exist
-      if (purpose.equalsIgnoreCase("TestRequest") && partnerValue.startsWith(partner) && !testRequestID.equals(testID))
-        return testID;
+    Set<String> partnerTests = this.partnerActiveTests.get(partner);
+    if (partnerTests != null) {
+      for (String testID : partnerTests) {
+        if (!testRequestID.equals(testID))
+          return testID;
+      }
     }
     return null;
   }
   public String getPartnerForActiveTest(String testRequest) {
-    if (this.activeTests.containsKey(testRequest))
-      return this.activeTests.get(testRequest).toString();
-    else 
-      return null;
+    Object partner = this.activeTests.get(testRequest);
+    return (partner != null) ? partner.toString() : null;
   }
-  public synchronized void removeActiveTest(String testRequest) {
-     if (!this.activeTests.isEmpty() && this.activeTests.containsKey(testRequest)) {
-       this.activeTests.remove(testRequest);
-       if (ProcessIncomingMessages.testRequestTable.containsKey(testRequest))
-         ProcessIncomingMessages.testRequestTable.remove(testRequest);
-     }
+  public void removeActiveTest(String testRequest) {
+    boolean[] removed = new boolean[1];
+    this.activeTests.computeIfPresent(testRequest, (testID, partner) -> {
+      this.unindexPartnerTest(partner.toString(), testRequest);
+      removed[0] = true;
+      return null;
+    });
+    if (removed[0])
+      ProcessIncomingMessages.testRequestTable.remove(testRequest);
   }
-  public synchronized void removeAllActiveTests() {
-    if (!this.activeTests.isEmpty()) {
-      Enumeration c = this.activeTests.keys();
-      while (c.hasMoreElements()) {
-        Object key = c.nextElement();
-        this.activeTests.remove(key);
-        if (ProcessIncomingMessages.testRequestTable.containsKey(key))
-          ProcessIncomingMessages.testRequestTable.remove(key);
-        this.addCancelledTestRequest((String)key);
-      }
+  public void removeAllActiveTests() {
+    Enumeration c = this.activeTests.keys();
+    while (c.hasMoreElements()) {
+      this.addCancelledTestRequest(c.nextElement().toString());
     }
   }
+  private void indexPartnerTest(String partner, String testRequest) {
+    if (FHIRplaceUtil.isNullOrEmpty(partner))
+      return;
+    this.partnerActiveTests.compute(partner, (tp, tests) -> {
+      if (tests == null)
+        tests = ConcurrentHashMap.newKeySet();
+      tests.add(testRequest);
+      return tests;
+    });
+  }
+  private void unindexPartnerTest(String partner, String testRequest) {
+    if (FHIRplaceUtil.isNullOrEmpty(partner))
+      return;
+    this.partnerActiveTests.computeIfPresent(partner, (tp, tests) -> {
+      tests.remove(testRequest);
+      return tests.isEmpty() ? null : tests;
+    });
+  }
   public boolean isActiveTest(String testRequest) {
     return this.activeTests.containsKey(testRequest);
   }
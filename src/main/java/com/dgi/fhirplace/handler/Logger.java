@@ -2,49 +2,391 @@ package com.dgi.fhirplace.handler;
 
 import com.dgi.fhirplace.util.FHIRplaceUtil;
 
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
 /**
  * This class is a wrapper for logging messages
  * You may incorporate your own logging utility here and or just
  * use this class as-is to log to the console.
- * 
+ *
  * Additionally, if desired, you may direct all log output to a file.
+ *
+ * Messages are not written by the calling thread.  They are put in a bounded
+ * ring buffer and written to the console by a single background thread, so
+ * test requests never wait for console output.  When the buffer is full the
+ * overflow policy decides what happens to a new message:
+ *   - block: the caller waits until there is room (default, nothing is lost)
+ *   - drop:  the message is discarded
+ *   - count: the message is discarded and the number of discarded messages
+ *            is logged as soon as there is room again
+ * Messages still in the buffer are written when the JVM shuts down.
+ *
+ * Messages below the configured level are discarded before any text is built:
+ * use the Supplier or "{}" pattern methods for messages that are expensive to
+ * compose.  write() logs at INFO level, or at WARN / ERROR level if the text
+ * starts with "Warning" / "Error".  Stack traces are logged at ERROR level.
  */
 public class Logger {
+
+  public enum OverflowPolicy { BLOCK, DROP, COUNT }
+
+  public enum Level { DEBUG, INFO, WARN, ERROR }
+
+  static volatile Level threshold = Level.INFO;
+
+  static final int BUFFER_SIZE = 16384;
+
+  static final LogWriter writer = new LogWriter(BUFFER_SIZE, System.out);
+
   private Class clazz;
   public Logger(Class clazz) {
     this.clazz = clazz;
   }
-  
+
+  /**
+   * Applies the logging settings
+   * @param params - the LocalParameters object
+   */
+  public static void configure(LocalParameters params) {
+    writer.overflowPolicy = params.getLogOverflowPolicy();
+    threshold = params.getLogLevel();
+  }
+
+  /**
+   * Returns true if messages of the level are logged
+   */
+  public static boolean isEnabled(Level level) {
+    return level.compareTo(threshold) >= 0;
+  }
+  public static boolean isDebugEnabled() {
+    return isEnabled(Level.DEBUG);
+  }
+
   /**
-   * Output the specified 
-   * @param text 
+   * Waits until the messages logged so far have been written
+   * @param timeoutMillis - the maximum time to wait
+   */
+  public static void flush(long timeoutMillis) {
+    writer.flush(timeoutMillis);
+  }
+
+  /**
+   * Returns the number of messages discarded because the buffer was full
+   */
+  public static long getDroppedCount() {
+    return writer.dropped.get();
+  }
+
+  /**
+   * Output the specified
+   * @param text
    */
   public void write(String text) {
-    String date = FHIRplaceUtil.getPrettyDate();
-    System.out.println(date + " (" + clazz.getSimpleName() + "): "  + text);
+    if (isEnabled(getLevel(text)))
+      writer.enqueue(" (" + clazz.getSimpleName() + "): "  + text);
   }
-  
+
+  /**
+   * Logs the message if the level is enabled, the message is only built in that case
+   * @param level - the message level
+   * @param message - supplies the message text
+   */
+  public void write(Level level, Supplier<String> message) {
+    if (isEnabled(level))
+      writer.enqueue(" (" + clazz.getSimpleName() + "): "  + message.get());
+  }
+
+  /**
+   * Logs the message if the level is enabled, each "{}" in the pattern is replaced by the next argument
+   * @param level - the message level
+   * @param pattern - the message text with "{}" placeholders
+   * @param args - the values of the placeholders
+   */
+  public void write(Level level, String pattern, Object... args) {
+    if (isEnabled(level))
+      writer.enqueue(" (" + clazz.getSimpleName() + "): "  + format(pattern, args));
+  }
+
+  public void debug(Supplier<String> message) {
+    this.write(Level.DEBUG, message);
+  }
+  public void debug(String pattern, Object... args) {
+    this.write(Level.DEBUG, pattern, args);
+  }
+  public void info(String pattern, Object... args) {
+    this.write(Level.INFO, pattern, args);
+  }
+
   public void writeStackTrace(Exception ex) {
-    String date = FHIRplaceUtil.getPrettyDate();
+    if (!isEnabled(Level.ERROR))
+      return;
     String stackTrace = FHIRplaceUtil.getStackTrace(ex);
-    System.out.println(date + " (" + clazz.getSimpleName() + ")\nStack Trace: " + stackTrace);
+    writer.enqueue(" (" + clazz.getSimpleName() + ")\nStack Trace: " + stackTrace);
   }
 
   public void writeStackTrace(Exception ex, String testRequestID) {
-    String date = FHIRplaceUtil.getPrettyDate();
+    if (!isEnabled(Level.ERROR))
+      return;
     String stackTrace = FHIRplaceUtil.getStackTrace(ex);
-    System.out.println(date + " (" + clazz.getSimpleName() + ") - Test Request - " + testRequestID + "\nStack trace: " + stackTrace);
+    writer.enqueue(" (" + clazz.getSimpleName() + ") - Test Request - " + testRequestID + "\nStack trace: " + stackTrace);
   }
-  
+
   public void writeStackTrace(String description, Exception ex) {
-    String date = FHIRplaceUtil.getPrettyDate();
+    if (!isEnabled(Level.ERROR))
+      return;
     String stackTrace = FHIRplaceUtil.getStackTrace(ex);
-    System.out.println(date + " (" + clazz.getSimpleName() + ") - " + description + ": " + stackTrace);
+    writer.enqueue(" (" + clazz.getSimpleName() + ") - " + description + ": " + stackTrace);
   }
-  
+
   public void writeStackTrace(String description, Exception ex, String testRequestID) {
-    String date = FHIRplaceUtil.getPrettyDate();
+    if (!isEnabled(Level.ERROR))
+      return;
     String stackTrace = FHIRplaceUtil.getStackTrace(ex);
-    System.out.println(date + " (" + clazz.getSimpleName() + ") - Test Request - " + testRequestID  +  description + ": " + stackTrace);
+    writer.enqueue(" (" + clazz.getSimpleName() + ") - Test Request - " + testRequestID  +  description + ": " + stackTrace);
+  }
+
+  /**
+   * Returns the level of a message given as plain text
+   */
+  static Level getLevel(String text) {
+    if (text.regionMatches(true, 0, "Warning", 0, 7))
+      return Level.WARN;
+    if (text.regionMatches(true, 0, "Error", 0, 5))
+      return Level.ERROR;
+    return Level.INFO;
+  }
+
+  /**
+   * Replaces each "{}" in the pattern by the next argument
+   */
+  static String format(String pattern, Object... args) {
+    if (args == null || args.length == 0)
+      return pattern;
+
+    StringBuilder text = new StringBuilder(pattern.length() + 16 * args.length);
+    int start = 0;
+    int arg = 0;
+    int index;
+    while (arg < args.length && (index = pattern.indexOf("{}", start)) >= 0) {
+      text.append(pattern, start, index).append(args[arg++]);
+      start = index + 2;
+    }
+    return text.append(pattern, start, pattern.length()).toString();
+  }
+
+  // A message waiting to be written, the time stamp is formatted by the writer
+  static class LogRecord {
+    final long millis;
+    final String text;
+
+    LogRecord(long millis, String text) {
+      this.millis = millis;
+      this.text = text;
+    }
+  }
+
+/*------------------------------------------------------------------------------
+ * Inner Class : LogWriter
+ *
+ * A bounded multi producer, single consumer ring buffer.  Every slot has a
+ * sequence number telling whether it is free for the producer claiming that
+ * position or filled for the consumer, so neither side takes a lock.
+ *----------------------------------------------------------------------------*/
+  static class LogWriter implements Runnable {
+    static final int MAX_BATCH_CHARS = 64 * 1024;
+    static final long IDLE_PARK_NANOS = 10_000_000L;
+
+    final AtomicReferenceArray<LogRecord> slots;
+    final AtomicLongArray sequences;
+    final int mask;
+
+    // Next position to fill (shared by the producers) and to write (writer thread only)
+    final AtomicLong tail = new AtomicLong();
+    final AtomicLong head = new AtomicLong();
+
+    volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    final AtomicLong dropped = new AtomicLong();
+    long reportedDropped = 0;
+
+    final PrintStream out;
+    final Thread thread;
+    volatile boolean waiting = false;
+    volatile boolean closing = false;
+    volatile boolean closed = false;
+
+    // The formatted time stamp is reused for all messages of the same millisecond
+    final DateTimeFormatter formatter =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    long lastMillis = Long.MIN_VALUE;
+    String lastTimestamp = null;
+
+    LogWriter(int capacity, PrintStream out) {
+      int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+      this.slots = new AtomicReferenceArray<>(size);
+      this.sequences = new AtomicLongArray(size);
+      for (int i=0; i < size; i++) {
+        sequences.set(i, i);
+      }
+      this.mask = size - 1;
+      this.out = out;
+
+      this.thread = new Thread(this, "Logger");
+      this.thread.setDaemon(true);
+      this.thread.start();
+      Runtime.getRuntime().addShutdownHook(new Thread(this::close, "Logger-shutdown"));
+    }
+
+    void enqueue(String text) {
+      LogRecord record = new LogRecord(System.currentTimeMillis(), text);
+
+      if (closed || Thread.currentThread() == thread) {
+        this.writeDirect(record);
+        return;
+      }
+
+      while (!this.offer(record)) {
+        if (overflowPolicy != OverflowPolicy.BLOCK) {
+          dropped.incrementAndGet();
+          return;
+        }
+        LockSupport.unpark(thread);
+        LockSupport.parkNanos(100_000L);
+        if (closed) {
+          this.writeDirect(record);
+          return;
+        }
+      }
+      if (waiting)
+        LockSupport.unpark(thread);
+    }
+
+    private boolean offer(LogRecord record) {
+      while (true) {
+        long position = tail.get();
+        int index = (int) position & mask;
+        long difference = sequences.get(index) - position;
+        if (difference == 0) {
+          if (tail.compareAndSet(position, position + 1)) {
+            slots.set(index, record);
+            sequences.set(index, position + 1);
+            return true;
+          }
+        } else if (difference < 0) {
+          // Full
+          return false;
+        }
+        // Another producer claimed the position, try the next one
+      }
+    }
+
+    private LogRecord poll() {
+      long position = head.get();
+      int index = (int) position & mask;
+      if (sequences.get(index) != position + 1)
+        return null;
+      LogRecord record = slots.get(index);
+      slots.set(index, null);
+      sequences.set(index, position + mask + 1);
+      head.set(position + 1);
+      return record;
+    }
+
+    @Override
+    public void run() {
+      StringBuilder batch = new StringBuilder();
+      String lineSeparator = System.lineSeparator();
+
+      while (true) {
+        LogRecord record = this.poll();
+        if (record != null) {
+          batch.append(this.getTimestamp(record.millis)).append(record.text).append(lineSeparator);
+          if (batch.length() >= MAX_BATCH_CHARS)
+            this.print(batch);
+          continue;
+        }
+
+        this.print(batch);
+        this.reportDropped();
+        if (closing)
+          break;
+
+        waiting = true;
+        if (head.get() == tail.get())
+          LockSupport.parkNanos(IDLE_PARK_NANOS);
+        waiting = false;
+      }
+    }
+
+    private void print(StringBuilder batch) {
+      if (batch.length() > 0) {
+        out.print(batch);
+        out.flush();
+        batch.setLength(0);
+      }
+    }
+
+    private void reportDropped() {
+      if (overflowPolicy != OverflowPolicy.COUNT)
+        return;
+      long count = dropped.get();
+      if (count > reportedDropped) {
+        out.println(this.getTimestamp(System.currentTimeMillis()) + " (Logger): Warning: " +
+                    (count - reportedDropped) + " log messages were dropped because the log buffer was full");
+        reportedDropped = count;
+      }
+    }
+
+    private String getTimestamp(long millis) {
+      if (millis != lastMillis) {
+        lastTimestamp = formatter.format(Instant.ofEpochMilli(millis));
+        lastMillis = millis;
+      }
+      return lastTimestamp;
+    }
+
+    private void writeDirect(LogRecord record) {
+      synchronized (out) {
+        out.println(formatter.format(Instant.ofEpochMilli(record.millis)) + record.text);
+      }
+    }
+
+    void flush(long timeoutMillis) {
+      long target = tail.get();
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (head.get() < target && thread.isAlive() && System.currentTimeMillis() < deadline) {
+        LockSupport.unpark(thread);
+        LockSupport.parkNanos(1_000_000L);
+      }
+    }
+
+    /**
+     * Writes the remaining messages and stops the writer thread, later messages are written directly
+     */
+    void close() {
+      closing = true;
+      LockSupport.unpark(thread);
+      try {
+        thread.join(2000);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      closed = true;
+
+      // Messages added while the writer thread was finishing
+      if (!thread.isAlive()) {
+        LogRecord record;
+        while ((record = this.poll()) != null) {
+          this.writeDirect(record);
+        }
+      }
+    }
   }
 }
@@ -0,0 +1,119 @@
+package com.dgi.fhirplace.handler;
+
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs the test requests for each trading partner one at a time, while
+ * the test requests for different trading partners run in parallel.  Test requests
+ * waiting for a busy partner run in the TestScheduler's order (by default the order
+ * they were received).  They are dispatched once they are parsed and ready to run
+ * though, so an idle partner is taken by the first test request to get there, which
+ * may have been received after another one still being parsed.
+ *
+ * A test request for an idle partner runs right away on the dispatching thread.
+ * Otherwise it is queued and started on the same thread as soon as the partner's
+ * previous test request completes, so no thread sits waiting for the partner.
+ */
+public class PartnerDispatchQueue {
+
+  Logger log = new Logger(PartnerDispatchQueue.class);
+
+  /**
+   * A test request waiting for its partner
+   */
+  static class QueuedTest implements Comparable<QueuedTest> {
+    final TestScheduler.Priority priority;
+    final long sequence;
+    final Runnable test;
+
+    QueuedTest(TestScheduler.Priority priority, long sequence, Runnable test) {
+      this.priority = Objects.requireNonNull(priority, "priority");
+      this.sequence = sequence;
+      this.test = test;
+    }
+
+    @Override
+    public int compareTo(QueuedTest other) {
+      int order = this.priority.compareTo(other.priority);
+      return (order != 0) ? order : Long.compare(this.sequence, other.sequence);
+    }
+  }
+
+  // Test requests waiting for their partner, an entry exists while the partner has a running test
+  ConcurrentHashMap<String, PriorityQueue<QueuedTest>> partnerQueues = new ConcurrentHashMap<>();
+  final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * Runs the test request now if the partner is idle, otherwise queues it behind the partner's
+   * tests that come before it in the schedule
+   * @param partner - the trading partner name / identifier
+   * @param priority - the place of the test request in the schedule
+   * @param test - the test request to run
+   */
+  public void dispatch(String partner, TestScheduler.Priority priority, Runnable test) {
+    String key = (partner != null) ? partner : "";
+    boolean[] idle = new boolean[1];
+    QueuedTest queued = new QueuedTest(priority, sequence.incrementAndGet(), test);
+
+    partnerQueues.compute(key, (tp, queue) -> {
+      if (queue == null) {
+        idle[0] = true;
+        return new PriorityQueue<>();
+      }
+      queue.add(queued);
+      return queue;
+    });
+
+    if (idle[0]) {
+      this.runPartnerTests(key, test);
+    }
+  }
+
+  /**
+   * Runs the test request and then every test request queued for the same partner
+   * @param partner - the trading partner name / identifier
+   * @param first - the first test request to run
+   */
+  private void runPartnerTests(String partner, Runnable first) {
+    Runnable next = first;
+    while (next != null) {
+      try {
+        next.run();
+      } catch (RuntimeException ex) {
+        log.writeStackTrace("Unexpected error running test request for partner " + partner, ex);
+      }
+
+      // Take the next test request, or release the partner if there are none left
+      QueuedTest[] following = new QueuedTest[1];
+      partnerQueues.computeIfPresent(partner, (tp, queue) -> {
+        following[0] = queue.poll();
+        return (following[0] != null) ? queue : null;
+      });
+      next = (following[0] != null) ? following[0].test : null;
+    }
+  }
+
+  /**
+   * Returns the number of test requests waiting for the specified partner
+   * @param partner - the trading partner name / identifier
+   * @return the number of waiting test requests
+   */
+  public int getQueuedCount(String partner) {
+    int[] count = new int[1];
+    partnerQueues.computeIfPresent((partner != null) ? partner : "", (tp, queue) -> {
+      count[0] = queue.size();
+      return queue;
+    });
+    return count[0];
+  }
+
+  /**
+   * Returns the number of partners that currently have a running test request
+   */
+  public int getActivePartnerCount() {
+    return partnerQueues.size();
+  }
+}
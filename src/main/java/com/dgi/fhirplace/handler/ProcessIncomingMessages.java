@@ -1,12 +1,20 @@
 package com.dgi.fhirplace.handler;
 
+import com.dgi.fhirplace.events.TestRequestReceivedEvent;
+import com.dgi.fhirplace.util.ArchiveIndex;
 import com.dgi.fhirplace.util.FHIRplaceUtil;
+import com.dgi.fhirplace.util.FileCleanupScheduler;
+import com.dgi.fhirplace.util.FileUtility;
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * This class polls the Test Request directory for all incoming messages
+ * This class watches (or polls) the Test Request directory for all incoming messages
  * from the FHIRplace client and processes each message.  The messages can
  * be actual test requests or cancel/kill requests.
  * 
@@ -18,7 +26,15 @@ public class ProcessIncomingMessages extends Thread {
 
   String tesRequestFileName = null;
   String cancelTestRequestFileName = null;
-  int statusCount = 0;
+  // Number of status / upload files older than five minutes at the last check
+  volatile int statusCount = 0;
+  int stuckFileCount = 0;
+
+  // Used when the request directory is watched for file system events
+  RequestDirectoryWatcher watcher = null;
+  LinkedHashSet<String> pendingFiles = new LinkedHashSet<>();
+  boolean rescanRequired = true;
+  long lastStatusCheck = 0;
   
   // Holds currently active ProcessTestRequest objects
   public static ConcurrentHashMap testRequestTable = new ConcurrentHashMap();
@@ -38,10 +54,20 @@ public class ProcessIncomingMessages extends Thread {
     
     log.write("Processing Incoming Messages...");
 
+    if (params.isWatchIntakeMode()) {
+      try {
+        watcher = RequestDirectoryWatcher.open(params.getTestRequestDirectory());
+        log.write("Watching " + params.getTestRequestDirectory() + " for test requests");
+      } catch (IOException | RuntimeException ex) {
+        log.write("Warning: Could not watch " + params.getTestRequestDirectory() + 
+                  " (" + ex.getMessage() + "), polling instead");
+      }
+    }
+
     // Process incoming request messages until told to stop
     while (forever) {
-      // Poll FHIRplace test request directory
-      tesRequestFileName = this.pollDirectory();
+      // Wait for the next file in the FHIRplace test request directory
+      tesRequestFileName = (watcher != null) ? this.watchDirectory() : this.pollDirectory();
 
       if (tesRequestFileName != null) {
        // Check and manage the cancelled request parameter
@@ -51,128 +77,385 @@ public class ProcessIncomingMessages extends Thread {
         }
 
         String testRequestNum = FHIRplaceUtil.getTestRequestID(tesRequestFileName);
-        if (this.params.getActiveTests().isEmpty() ||
-            !this.params.isActiveTest(testRequestNum) ||
-            tesRequestFileName.toLowerCase().contains("kill")) {
+        boolean kill = tesRequestFileName.toLowerCase().contains("kill");
+        boolean admit = this.params.getActiveTests().isEmpty() ||
+                        !this.params.isActiveTest(testRequestNum) ||
+                        kill;
+        // A test archives its request file before it stops being active, so check the file after
+        if (admit && !new File(tesRequestFileName).exists()) {
+          // Reported again while its test was running, and archived by the test since
+          this.params.getRequestClaims().releaseRequest(tesRequestFileName);
+
+        } else if (admit) {
           this.params.addActiveTest(testRequestNum);
           log.write("Received " + tesRequestFileName + ", request " + testRequestNum);
           ProcessTestRequest request = new ProcessTestRequest(this.handler, this.params, tesRequestFileName);
 
-          // Add request to a table so we can find associated objects for a test request number 
-          // if we need to access the object later
-          testRequestTable.put(testRequestNum, request);
-          request.start();
+          if (kill) {
+            // Stop the test it cancels right away, wherever it is, the cancel request then reports it
+            Object cancelled = testRequestTable.get(testRequestNum);
+            if (cancelled instanceof ProcessTestRequest) {
+              request.cancelledTest = (ProcessTestRequest) cancelled;
+              request.cancelledTest.cancel();
+            }
+          } else {
+            // Add request to a table so we can find associated objects for a test request number 
+            // if we need to access the object later
+            testRequestTable.put(testRequestNum, request);
+            this.params.getTestJournal().admitted(testRequestNum, tesRequestFileName);
+          }
+          TestRequestReceivedEvent event = new TestRequestReceivedEvent();
+          event.begin();
+          try {
+            // A cancel request doesn't wait behind the test requests
+            event.submitted = kill ? this.handler.getTestRequestExecutor().submitNow(request) :
+                                     this.handler.getTestRequestExecutor().submit(request);
+            if (event.shouldCommit()) {
+              event.testRequestID = testRequestNum;
+              event.fileName = tesRequestFileName;
+              event.commit();
+            }
+            if (!event.submitted) {
+              this.deferTestRequest(testRequestNum, request);
+            }
+          } catch (InterruptedException ex) {
+            forever = false;
+          }
           
         } else {
-           // Let it do its work
-           try {
-             FHIRplaceUtil.wait(1);
-           } catch (InterruptedException ex) {
+          // Left for the running test of the same test request
+          this.params.getRequestClaims().releaseRequest(tesRequestFileName);
+          if (watcher == null) {
+            // Let it do its work
+            try {
+              FHIRplaceUtil.wait(1);
+            } catch (InterruptedException ex) {
               forever = false;
+            }
           }
         }
       }
     }
+
+    if (watcher != null) {
+      watcher.close();
+    }
   }
   
+  /**
+   * Leave a test request that could not be admitted in the directory so it is picked up again later
+   * @param testRequestNum - the test request ID
+   * @param request - the rejected test request
+   */
+  private void deferTestRequest(String testRequestNum, ProcessTestRequest request) {
+    log.write("Warning: Too many test requests waiting to run, deferring " + tesRequestFileName);
+    testRequestTable.remove(testRequestNum, request);
+    // Another instance may run it in the meantime
+    this.params.getRequestClaims().releaseRequest(tesRequestFileName);
+    if (tesRequestFileName.toLowerCase().contains("kill")) {
+      cancelTestRequestFileName = null;
+    } else {
+      this.params.removeActiveTest(testRequestNum);
+      tesRequestFileName = null;
+    }
+    rescanRequired = true;
+
+    // Give the running test requests some time to complete
+    try {
+      FHIRplaceUtil.wait(1);
+    } catch (InterruptedException ex) {
+      forever = false;
+    }
+  }
+
+  /**
+   * Returns the number of status and upload files not consumed by the client
+   * after five minutes, as found by the last check of the status directory
+   */
+  public int getOldStatusFileCount() {
+    return this.statusCount;
+  }
+
+  /**
+   * Returns the number of test and cancel request files in the test request directory
+   */
+  public int getRequestDirectoryCount() {
+    File dir = new File(params.getTestRequestDirectory());
+    File reqFiles[] = dir.listFiles(new FHIRplaceFileFilter(".xml", ".kill"));
+    return (reqFiles != null) ? reqFiles.length : 0;
+  }
+
   /**
    * Stops the processing of the thread - called externally (if desired)
    */
   public void stopProcessing() {
     forever = false;
   }
+
   /**
    * Poll the test request directory and when a file comes in return its name
    * @return the name of the request file
    */
   private String pollDirectory() {
     while (forever) {
-      File dir = new File(params.getTestRequestDirectory());
-
-      // Filter out all XML process request files in the request directory
-      FHIRplaceFileFilter testRequests = new FHIRplaceFileFilter(".xml");
-      File reqFiles[] = dir.listFiles(testRequests);
-      if (reqFiles != null) {
-        for (File reqFile : reqFiles) {
-          // Don't allow multiple processing of the same process request file
-          if (tesRequestFileName == null || !tesRequestFileName.equals(reqFile.getPath())) {
-            tesRequestFileName = reqFile.getPath();
-            File dupCheckFile = new File(params.getArchiveDirectory(), reqFile.getName());
-            if (dupCheckFile.exists()) {
-              // Log a message and remove the file
-              log.write("Received and removed duplicate test request " + 
-                        FHIRplaceUtil.getTestRequestID(tesRequestFileName));
-              if (!reqFile.delete()) {
-                boolean deleted = false;
-                boolean interrupted = false;
-                int count = 0;
-                // try for up to one minute
-                while (count++ < 60) {
-                  try {
-                    FHIRplaceUtil.wait(1);
-                  } catch (InterruptedException e) {
-                    interrupted = true;
-                    break;
-                  }
-                  if (reqFile.delete()) {
-                    deleted = true;
-                    break;
-                  }
-                }
-                if (interrupted)
-                  log.write("Warning: Directory poller was interrupted during duplicate request checking.");
-                else if (!deleted)
-                  log.write("Warning: Duplicate request file " + tesRequestFileName + " could not be deleted.");
-              }
-            } else {
-              return tesRequestFileName;
-            }
-          }
+      String fileName = this.pollOnce();
+      if (fileName != null)
+        return fileName;
+
+      // Wait 3 seconds between checks
+      try {
+        FHIRplaceUtil.wait(3);
+      } catch (InterruptedException ex) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * One pass of the polling loop: list the test request directory and, if there is
+   * no new request file, check the status directory
+   * @return the name of the request file or null if there is none
+   */
+  String pollOnce() {
+    String fileName = this.scanRequestDirectory();
+    if (fileName != null)
+      return fileName;
+
+    // Check the Status folder to verify that they are getting consumed
+    this.checkStatusDirectory();
+    return null;
+  }
+
+  /**
+   * Wait for file system events in the test request directory and return the 
+   * name of the next request file.  The whole directory is only listed at startup
+   * and when the watch service reports that events were lost.
+   * @return the name of the request file
+   */
+  private String watchDirectory() {
+    FHIRplaceFileFilter incomingFiles = new FHIRplaceFileFilter(".xml", ".kill");
+    while (forever) {
+      if (rescanRequired) {
+        rescanRequired = false;
+        File dir = new File(params.getTestRequestDirectory());
+        File reqFiles[] = dir.listFiles(new FHIRplaceFileFilter(".xml"));
+        if (reqFiles != null) {
+          for (File reqFile : reqFiles)
+            pendingFiles.add(reqFile.getPath());
+        }
+        File cancelFiles[] = dir.listFiles(new FHIRplaceFileFilter(".kill"));
+        if (cancelFiles != null) {
+          for (File cancelFile : cancelFiles)
+            pendingFiles.add(cancelFile.getPath());
         }
       }
 
-      // Filter out all XML cancel request files in the request directory
-      FHIRplaceFileFilter cancelRequests = new FHIRplaceFileFilter(".kill");
-      File cancelFiles[] = dir.listFiles(cancelRequests);
-      if (cancelFiles != null) {
-        for (File cancelFile : cancelFiles) {
-          // Don't allow multiple processing of the same cancel request file
-          if (cancelTestRequestFileName == null || !cancelTestRequestFileName.equals(cancelFile.getPath())) {
-            cancelTestRequestFileName = cancelFile.getPath();
-            return cancelTestRequestFileName;
-          }
+      // Hand out the files reported since the last call
+      Iterator<String> pending = pendingFiles.iterator();
+      while (pending.hasNext()) {
+        File incomingFile = new File(pending.next());
+        pending.remove();
+
+        // Files that are still being created are reported again when they are written
+        if (!incomingFile.exists() || incomingFile.length() == 0)
+          continue;
+
+        if (incomingFile.getName().toLowerCase().endsWith(".xml")) {
+          if (this.acceptRequestFile(incomingFile))
+            return tesRequestFileName;
+        } else if (this.acceptCancelFile(incomingFile)) {
+          return cancelTestRequestFileName;
         }
       }
 
       // Check the Status folder to verify that they are getting consumed
-      FHIRplaceFileFilter statusUpdates = new FHIRplaceFileFilter(".sts", ".uld");
-      File sts = new File(params.getStatusDirectory());
-      File stsFiles[] = sts.listFiles(statusUpdates);
-      if (stsFiles != null && stsFiles.length > 0) {
-        // Count how many of the entries are more than five minutes old
-        int oldFileCount = 0;
-        for (File stsFile : stsFiles) {
-          if (stsFile.exists() && (FHIRplaceUtil.getFileAge(stsFile) >= 5L)) {
-            oldFileCount++;
-          }
-        }
-        if (oldFileCount != statusCount) {
-          log.write("Warning: There are " + stsFiles.length + " old unprocessed status updates in " + 
-                    params.getStatusDirectory());
-        }
-        statusCount = oldFileCount;
+      long checkInterval = params.getStatusCheckInterval() * 1000L;
+      long now = System.currentTimeMillis();
+      if (now - lastStatusCheck >= checkInterval) {
+        lastStatusCheck = now;
+        this.checkStatusDirectory();
+
+        // Files left to other instances raise no new events, look again in case an instance stopped
+        if (params.getRequestClaims().isEnabled())
+          rescanRequired = true;
       }
 
-      // Wait 3 seconds between checks
       try {
-        FHIRplaceUtil.wait(3);
+        long timeout = Math.max(lastStatusCheck + checkInterval - now, 1L);
+        if (!watcher.awaitEvents(timeout, incomingFiles, pendingFiles)) {
+          // The directory can't be watched anymore, so go back to polling it
+          watcher.close();
+          watcher = null;
+          return null;
+        }
       } catch (InterruptedException ex) {
         return null;
       }
+      if (watcher.checkAndClearOverflow()) {
+        log.write("Warning: File events were lost, rescanning " + params.getTestRequestDirectory());
+        rescanRequired = true;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * List the test request directory once and return the name of the first 
+   * request file that has not been handed out yet
+   * @return the name of the request file or null if there is none
+   */
+  String scanRequestDirectory() {
+    File dir = new File(params.getTestRequestDirectory());
+
+    // Filter out all XML process request files in the request directory
+    FHIRplaceFileFilter testRequests = new FHIRplaceFileFilter(".xml");
+    File reqFiles[] = dir.listFiles(testRequests);
+    if (reqFiles != null) {
+      for (File reqFile : reqFiles) {
+        if (this.acceptRequestFile(reqFile))
+          return tesRequestFileName;
+      }
+    }
+
+    // Filter out all XML cancel request files in the request directory
+    FHIRplaceFileFilter cancelRequests = new FHIRplaceFileFilter(".kill");
+    File cancelFiles[] = dir.listFiles(cancelRequests);
+    if (cancelFiles != null) {
+      for (File cancelFile : cancelFiles) {
+        if (this.acceptCancelFile(cancelFile))
+          return cancelTestRequestFileName;
+      }
     }
     return null;
   }
 
+  /**
+   * Checks whether a test request file should be processed, claiming it when other
+   * handler instances share the test request directory
+   * @param reqFile - the test request file
+   * @return true if the file is to be processed
+   */
+  private boolean acceptRequestFile(File reqFile) {
+    // Don't allow multiple processing of the same process request file
+    if (tesRequestFileName != null && tesRequestFileName.equals(reqFile.getPath()))
+      return false;
+
+    // Already archived and waiting to be deleted
+    if (FileCleanupScheduler.getInstance().isPending(reqFile))
+      return false;
+
+    // Only the instance that claims the file runs it
+    RequestClaims claims = params.getRequestClaims();
+    if (!claims.claimRequest(reqFile.getPath()))
+      return false;
+    tesRequestFileName = reqFile.getPath();
+
+    // The file is gone if the instance that held it before has just archived it
+    if (!reqFile.exists() || !this.checkRequestFile(reqFile)) {
+      claims.releaseRequest(reqFile.getPath());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Checks whether a claimed cancel request file should be processed.  A cancel request
+   * is left for the instance that has claimed its test request, as only that instance
+   * can stop the test.
+   * @param cancelFile - the cancel request file
+   * @return true if the file is to be processed
+   */
+  private boolean acceptCancelFile(File cancelFile) {
+    // Don't allow multiple processing of the same cancel request file
+    if (cancelTestRequestFileName != null && cancelTestRequestFileName.equals(cancelFile.getPath()))
+      return false;
+
+    RequestClaims claims = params.getRequestClaims();
+    if (claims.isEnabled()) {
+      String path = cancelFile.getPath();
+      String testRequestFile = path.substring(0, path.length() - ".kill".length()) + ".xml";
+      if (claims.isClaimedElsewhere(testRequestFile) || !claims.claimRequest(path))
+        return false;
+      if (!cancelFile.exists()) {
+        claims.releaseRequest(path);
+        return false;
+      }
+    }
+    cancelTestRequestFileName = cancelFile.getPath();
+    return true;
+  }
+
+  /**
+   * Checks whether a claimed test request file should be processed and removes
+   * it if it is a duplicate of an already archived request
+   * @param reqFile - the test request file
+   * @return true if the file is to be processed
+   */
+  private boolean checkRequestFile(File reqFile) {
+    // Already run to completion, but its request file could not be archived then
+    String testRequestNum = FHIRplaceUtil.getTestRequestID(tesRequestFileName);
+    if (params.getTestJournal().isCompleted(testRequestNum) && !params.isActiveTest(testRequestNum)) {
+      log.write("Test request " + testRequestNum + " has already been run, archiving " + tesRequestFileName);
+      try {
+        new FileUtility(params).moveFileToArchiveDirectory(tesRequestFileName, params);
+      } catch (Exception ex) {
+        log.write("Error moving test request " + testRequestNum + " to archive: " + ex.getMessage());
+      }
+      return false;
+    }
+
+    ArchiveIndex archiveIndex = params.getArchiveIndex();
+    if (archiveIndex.isLoaded()) {
+      // Only a name found in the index is confirmed on disk, in case it was removed from the archive
+      if (!archiveIndex.contains(reqFile.getName()) || !archiveIndex.exists(reqFile.getName()))
+        return true;
+    } else if (!new File(params.getArchiveDirectory(), reqFile.getName()).exists()) {
+      return true;
+    }
+
+    // Log a message and remove the file
+    log.write("Received and removed duplicate test request " + 
+              FHIRplaceUtil.getTestRequestID(tesRequestFileName));
+    if (!reqFile.delete()) {
+      // Still in use, keep trying in the background so intake can carry on
+      FileCleanupScheduler.getInstance().scheduleDelete(reqFile);
+    }
+    return false;
+  }
+
+  /**
+   * Check the Status folder and report status updates that are not being consumed
+   */
+  private void checkStatusDirectory() {
+    FHIRplaceFileFilter statusUpdates = new FHIRplaceFileFilter(".sts", ".uld");
+    File sts = new File(params.getStatusDirectory());
+    File stsFiles[] = sts.listFiles(statusUpdates);
+    if (stsFiles != null && stsFiles.length > 0) {
+      // Count how many of the entries are more than five minutes old
+      int oldFileCount = 0;
+      for (File stsFile : stsFiles) {
+        if (stsFile.exists() && (FHIRplaceUtil.getFileAge(stsFile) >= 5L)) {
+          oldFileCount++;
+        }
+      }
+      if (oldFileCount != statusCount) {
+        log.write("Warning: There are " + stsFiles.length + " old unprocessed status updates in " + 
+                  params.getStatusDirectory());
+      }
+      statusCount = oldFileCount;
+    }
+
+    // Report files that could not be deleted for a while
+    List<String> stuckFiles = FileCleanupScheduler.getInstance().getStuckFiles();
+    if (stuckFiles.size() != stuckFileCount) {
+      for (String stuckFile : stuckFiles) {
+        log.write("Warning: Still waiting to delete " + stuckFile);
+      }
+    }
+    stuckFileCount = stuckFiles.size();
+  }
+
 
   // Inner class to filter out specific incoming file types
   class FHIRplaceFileFilter implements FilenameFilter {
@@ -1,26 +1,34 @@
 package com.dgi.fhirplace.handler;
 
+import com.dgi.fhirplace.events.PartnerWaitEvent;
+import com.dgi.fhirplace.events.TransmissionEvent;
+import com.dgi.fhirplace.metrics.Phase;
+import com.dgi.fhirplace.metrics.PhaseTimings;
+import com.dgi.fhirplace.metrics.TestMetrics;
 import com.dgi.fhirplace.parser.Description;
 import com.dgi.fhirplace.parser.FHIRplaceXML;
 import com.dgi.fhirplace.parser.Instructions;
 import com.dgi.fhirplace.parser.ParseTestRequest;
 import com.dgi.fhirplace.parser.Participant;
+import com.dgi.fhirplace.parser.StreamParseTestRequest;
 import com.dgi.fhirplace.parser.Transmission;
 import com.dgi.fhirplace.util.FHIRplaceUtil;
 import com.dgi.fhirplace.util.FileUtility;
-
 import java.io.File;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
- * Invoked once for each incoming test request as a thread:
+ * Invoked once for each incoming test request as a task on the TestRequestExecutor:
  *   - parses the test request
  *   - sends the ACK/NAK messages to the FHIRplace server
  *   - sets up to run the test 
  *   - parses the results
  *   - uploads the status and any other required data to the FHIRplace server
  */
-public class ProcessTestRequest extends Thread {
+public class ProcessTestRequest implements TestRequestExecutor.ScheduledTask {
 
   Logger log = new Logger(ProcessTestRequest.class);
 
@@ -41,6 +49,33 @@ public class ProcessTestRequest extends Thread {
   Instructions instruct = null;
 
   String partner = null;
+
+  // Journals the progress of a test request, null for a cancel request
+  TestJournal journal = null;
+  String journalID = null;
+
+  // Place in the schedule, by deadline once the request is parsed
+  TestScheduler.Priority priority = null;
+  volatile boolean prepared = false;
+  Exception parseError = null;
+
+  // Cancelled at once by a cancel request, which also holds the test request it cancels
+  final TestCancellation cancellation;
+  ProcessTestRequest cancelledTest = null;
+  // Set when the test starts (on its own or run by its cancel request), and once its ACK is sent
+  final AtomicBoolean started = new AtomicBoolean();
+  volatile boolean acknowledged = false;
+  volatile boolean finished = false;
+
+  // Gives up the test's place among the admitted test requests, null when not run by the executor
+  volatile Runnable done = null;
+
+  // Phase durations, tagged by test case, data type and partner once the request is parsed
+  PhaseTimings timings = null;
+  long startNanos = 0;
+  long parseNanos = 0;
+  long scheduleWaitNanos = -1;
+  long partnerWaitNanos = -1;
   
   // This setting is used for testing that sent/receive upload
   // mismatches are detected properly 
@@ -54,7 +89,13 @@ public class ProcessTestRequest extends Thread {
     this.params = params;
     this.requestFileName = requestFileName;
 
-    this.fileUtility = new FileUtility();
+    this.fileUtility = new FileUtility(params);
+    this.priority = params.getTestScheduler().admit();
+    this.cancellation = new TestCancellation(FHIRplaceUtil.getTestRequestID(requestFileName));
+    if (requestFileName.toLowerCase().endsWith(".xml")) {
+      this.journal = params.getTestJournal();
+      this.journalID = FHIRplaceUtil.getTestRequestID(requestFileName);
+    }
   }
   
   /**
@@ -69,7 +110,19 @@ public class ProcessTestRequest extends Thread {
     
     // Parse the XML file
     this.xml = new FHIRplaceXML();
-    new ParseTestRequest( path, xml, params );
+    if (params.isStreamParser()) {
+      new StreamParseTestRequest( path, xml, params );
+    } else {
+      new ParseTestRequest( path, xml, params );
+
+      // Check that the stream parser agrees with the DOM parser
+      if (params.isVerifyParser()) {
+        String difference = StreamParseTestRequest.verify(path, xml, params);
+        if (difference != null) {
+          log.write("Warning: Stream parser result does not match for " + path.getName() + ": " + difference);
+        }
+      }
+    }
    
     // Extract the objects from the FHIRplaceXML container
     desc = xml.getDescription();
@@ -80,235 +133,459 @@ public class ProcessTestRequest extends Thread {
     return true;
   }
   
+  /**
+   * Parses the test request, so the scheduler can place it by its deadline
+   * @return the place of the test request in the schedule
+   */
+  @Override
+  public TestScheduler.Priority prepare() {
+    // Parse the test request into its separate components
+    startNanos = System.nanoTime();
+    try {
+      this.parseTestRequest();
+      partner = FHIRplaceUtil.getTP(trans, params);
+    } catch (Exception ex) {
+      parseError = ex;
+    }
+    parseNanos = System.nanoTime() - startNanos;
+    prepared = true;
+
+    priority = params.getTestScheduler().prioritize(priority, (parseError == null) ? desc : null, trans, partner);
+    if (parseError == null && params.getTestScheduler().isDeadlineScheduling())
+      log.debug("Scheduled {} ({})", priority, FHIRplaceUtil.getTestRequestID(requestFileName));
+    return priority;
+  }
+
+  /**
+   * Returns the cancellation token of this test request
+   */
+  public TestCancellation getCancellation() {
+    return this.cancellation;
+  }
+
+  /**
+   * Cancels this test request at once, interrupting its exchange with the trading partner.
+   * Its result is reported by finishCancelled() or by the test itself, whichever comes first.
+   */
+  public void cancel() {
+    if (cancellation.cancel())
+      log.write("Cancelling test request " + cancellation.getTestRequestID());
+  }
+
+  /**
+   * Reports this cancelled test request without waiting for it, called by its cancel request.
+   * A test that has not started yet is run here, which only sends its ACK and result and archives
+   * its request, and a test that has sent its ACK gets its RESULTS_NOT_OK now.  A test that has
+   * not been parsed yet reports itself once it is.
+   */
+  void finishCancelled() {
+    if (prepared && parseError == null && !started.get()) {
+      this.runTest(null);
+      this.complete();
+    }
+    if (acknowledged)
+      this.reportCancelled(this.desc.getTestRequestID());
+  }
+
   @Override
   public void run() {
-    // Parse the test request
-    boolean parseSuccess = false;
+    this.run(null);
+  }
+
+  @Override
+  public void run(Runnable done) {
+    this.done = done;
+
+    // Already run by its cancel request
+    if (started.get()) {
+      this.complete();
+      return;
+    }
+
+    if (!prepared) {
+      this.prepare();
+    } else {
+      scheduleWaitNanos = System.nanoTime() - startNanos - parseNanos;
+    }
+
+    if (parseError == null && this.desc.getPurpose().equalsIgnoreCase("TestRequest") && !cancellation.isCancelled()) {
+      // Tests for the same trading partner run one at a time, those waiting for the partner
+      // in the scheduler's order
+      String testRequestID = this.desc.getTestRequestID();
+      if (journal != null)
+        journal.parsed(journalID, partner, FHIRplaceUtil.getEvaluateTestID(requestFileName, instruct, trans, params));
+      params.setPartnerForActiveTest(testRequestID, partner);
+      String activeTest = params.getPartnerAlreadyActiveTest(this.desc.getPurpose(), testRequestID, partner);
+      if (activeTest != null) {
+        log.write("Partner [" + partner + "] has another active test [" + activeTest + 
+                  "], tests for this partner run one at a time (" + testRequestID + ")");
+      }
+      long dispatchNanos = System.nanoTime();
+      PartnerWaitEvent waitEvent = new PartnerWaitEvent();
+      waitEvent.begin();
+      if (waitEvent.isEnabled())
+        waitEvent.queued = handler.getPartnerDispatchQueue().getQueuedCount(partner);
+      // Keeps its place among the admitted test requests until it has run for the partner
+      handler.getPartnerDispatchQueue().dispatch(partner, priority, () -> {
+        try {
+          this.runForPartner(testRequestID, dispatchNanos, waitEvent);
+        } finally {
+          this.complete();
+        }
+      });
+    } else {
+      try {
+        this.runTest(parseError);
+      } finally {
+        this.complete();
+      }
+    }
+  }
+
+  /**
+   * Runs the test request once its turn for the trading partner has come
+   * @param testRequestID - the test request ID
+   * @param dispatchNanos - when the test request was dispatched to the partner
+   * @param waitEvent - the partner wait event begun when it was dispatched
+   */
+  private void runForPartner(String testRequestID, long dispatchNanos, PartnerWaitEvent waitEvent) {
+    // Run by its cancel request while waiting for the partner
+    if (started.get())
+      return;
+
+    // Also one at a time with the tests of other handler instances for this partner,
+    // a cancelled test doesn't need the partner as it only reports its result
+    RequestClaims claims = params.getRequestClaims();
+    boolean claimed = false;
+    try {
+      if (cancellation.enter()) {
+        claims.claimPartner(partner);
+        claimed = true;
+      }
+    } catch (InterruptedException ex) {
+      if (!cancellation.isCancelled()) {
+        Thread.currentThread().interrupt();
+        log.write("Interrupted waiting for partner [" + partner + "], " + requestFileName + 
+                  " is left to run later (" + testRequestID + ")");
+        params.removeActiveTest(testRequestID);
+        claims.releaseRequest(requestFileName);
+        return;
+      }
+    } finally {
+      cancellation.exit();
+    }
+    partnerWaitNanos = System.nanoTime() - dispatchNanos;
+    if (waitEvent.shouldCommit()) {
+      waitEvent.testRequestID = testRequestID;
+      waitEvent.partner = partner;
+      waitEvent.commit();
+    }
+    try {
+      this.runTest(null);
+    } finally {
+      if (claimed)
+        claims.releasePartner(partner);
+    }
+  }
+
+  /**
+   * Gives up the test's place among the admitted test requests, once it has run
+   */
+  private void complete() {
+    Runnable completion = this.done;
+    if (completion != null)
+      completion.run();
+  }
+
+  /**
+   * Runs the test request once it has been parsed
+   * @param parseError - the exception thrown while parsing, or null if the request was parsed
+   */
+  private void runTest(Exception parseError) {
+    // Runs once, either on its own or for its cancel request
+    if (!started.compareAndSet(false, true))
+      return;
+
+    // Name the worker thread after the test request while it is running
+    Thread current = Thread.currentThread();
+    String threadName = current.getName();
+
+    timings = this.getTimings(parseError == null);
+    timings.record(Phase.PARSE, parseNanos);
+    if (scheduleWaitNanos >= 0)
+      timings.record(Phase.SCHEDULE_WAIT, scheduleWaitNanos);
+    if (partnerWaitNanos >= 0)
+      timings.record(Phase.PARTNER_WAIT, partnerWaitNanos);
+
+    try {
+      this.processTestRequest(parseError, current, threadName);
+    } finally {
+      if (journal != null)
+        journal.completed(journalID);
+      params.getRequestClaims().releaseRequest(requestFileName);
+      finished = true;
+      timings.recordSince(Phase.TOTAL, startNanos);
+      current.setName(threadName);
+    }
+  }
+
+  /**
+   * Returns the timings for the test case, first data type and partner of this test request
+   * @param parsed - true if the test request was parsed
+   */
+  private PhaseTimings getTimings(boolean parsed) {
+    String testCase = null;
+    String dataType = null;
+    if (parsed && desc != null && instruct != null) {
+      testCase = desc.getTestCase();
+      dataType = FHIRplaceUtil.isSending(trans, params) ? instruct.getSendDataType() : instruct.getReceiveDataType();
+    }
+    return TestMetrics.getInstance().forTest(testCase, dataType, partner);
+  }
+
+  private void processTestRequest(Exception parseError, Thread current, String threadName) {
+    boolean parseSuccess = (parseError == null);
     boolean handlerError = false;
     boolean initialSendOrReceiveError = false;
+    boolean cancelled = false;
+    boolean cancelRequest = false;
 
     String handlerErrorMsg = "";
     
-    try {
-      // Parse the test request into its separate components
-      parseSuccess = this.parseTestRequest();
-
-      String testRequestID = this.desc.getTestRequestID();
-      String testCase = this.desc.getTestCase();
-      String purpose = this.desc.getPurpose();
-      String connectivityType = this.desc.getConnectivityType();
+    if (!parseSuccess) {
+      this.sendParseError(parseError);
+    } else {
+      try {
+        String testRequestID = this.desc.getTestRequestID();
+        String testCase = this.desc.getTestCase();
+        String purpose = this.desc.getPurpose();
+        String connectivityType = this.desc.getConnectivityType();
 
-      // Make sure there isn't already another running test for a different test case for this trading partner            
-      partner = FHIRplaceUtil.getTP(trans, params);
-      String activeTest;
-      int activeCount = 0;
-      while ((activeTest = params.getPartnerAlreadyActiveTest(purpose, testRequestID, partner)) != null && activeCount < 5) {
-        log.write("Partner [" + partner + "] still has an active test [" + activeTest + "], waiting 30 seconds for it to complete (" + testRequestID + ")");
-        activeCount++;
-        FHIRplaceUtil.wait(30);
-      }
-      this.setName("ProcessTestRequest:" + testRequestID + "_" + this.getName());
+        current.setName("ProcessTestRequest:" + testRequestID + "_" + threadName);
 
-      // If there is a test description, log it
-      if (!FHIRplaceUtil.isNullOrEmpty(this.desc.getTestDescription())) {
-        log.write("Description: " + this.desc.getTestDescription() + " (" + testRequestID + ")");
-      }
+        // If there is a test description, log it
+        if (!FHIRplaceUtil.isNullOrEmpty(this.desc.getTestDescription())) {
+          log.debug("Description: {} ({})", this.desc.getTestDescription(), testRequestID);
+        }
       
-      // If there is a Connectivity Type, log it
-      if (!FHIRplaceUtil.isNullOrEmpty(connectivityType)) {
-        log.write("Connectivity Type: " + connectivityType + " (" + testRequestID + ")");
-      }
+        // If there is a Connectivity Type, log it
+        if (!FHIRplaceUtil.isNullOrEmpty(connectivityType)) {
+          log.debug("Connectivity Type: {} ({})", connectivityType, testRequestID);
+        }
      
-      // Send the ACK that the FHIRPlace Message was successfully parsed and we're ready to start the test
-      String ackMessage = "Sent ACK for " + purpose;
-      FHIRplaceUtil.sendStatus(FHIRplaceConstants.ACK, this.requestFileName, this.instruct, this.trans, this.params, ackMessage);
-      log.write(ackMessage  + " (" + testRequestID + ")");
-
-      // Perform necessary test set up and send/receive the message
-      if (!params.getCancelledTestRequest() &&
-          !params.isCancelledTestRequest(testRequestID) &&
-          purpose.equalsIgnoreCase("TestRequest")) {
-
-        // Get expected result.  If it isn't present, default it to "Success"
-        String expectedResult = desc.getExpectedResult() != null ? desc.getExpectedResult() : FHIRplaceConstants.SUCCESS;
-        boolean expected = expectedResult.equalsIgnoreCase(FHIRplaceConstants.SUCCESS);
-        String statusMsg = "";
-        int statusType;
+        // Send the ACK that the FHIRPlace Message was successfully parsed and we're ready to start the test
+        String ackMessage = "Sent ACK for " + purpose;
+        long phaseStart = System.nanoTime();
+        FHIRplaceUtil.sendStatus(FHIRplaceConstants.ACK, this.requestFileName, this.instruct, this.trans, this.params, ackMessage);
+        timings.recordSince(Phase.ACK, phaseStart);
+        if (journal != null)
+          journal.acknowledged(journalID);
+        acknowledged = true;
+        log.write(ackMessage  + " (" + testRequestID + ")");
+
+        // Perform necessary test set up and send/receive the message
+        if (!params.getCancelledTestRequest() &&
+            !params.isCancelledTestRequest(testRequestID) &&
+            !cancellation.isCancelled() &&
+            purpose.equalsIgnoreCase("TestRequest")) {
+
+          // Get expected result.  If it isn't present, default it to "Success"
+          String expectedResult = desc.getExpectedResult() != null ? desc.getExpectedResult() : FHIRplaceConstants.SUCCESS;
+          boolean expected = expectedResult.equalsIgnoreCase(FHIRplaceConstants.SUCCESS);
+          String statusMsg = "";
+          int statusType;
          
-        // This is the initial send/receive as specified in the test requests
-        boolean sending = FHIRplaceUtil.isSending(this.trans, this.params);
-        if (sending) {  
-          // Note:  This is the Client (New Payer) sending to the Server (Old Payer)
+          // This is the initial send/receive as specified in the test requests
+          boolean sending = FHIRplaceUtil.isSending(this.trans, this.params);
+          if (sending) {  
+            // Note:  This is the Client (New Payer) sending to the Server (Old Payer)
           
-          // Trigger off the send Data Type to determine what you are going to send
-          String sendDataType = instruct.getSendDataType();
-          log.write("Preparing to send " + sendDataType + " transmission for Test Case " + testCase +
-                    " to " + partner + " (" + testRequestID + ")");
+            // Trigger off the send Data Type to determine what you are going to send
+            String sendDataType = instruct.getSendDataType();
+            log.info("Preparing to send {} transmission for Test Case {} to {} ({})", 
+                     sendDataType, testCase, partner, testRequestID);
 
-          // **** Put your connection to partner code or hooks to your FHIR Client in the SendAsClient class ***
+            // **** Put your connection to partner code or hooks to your FHIR Client in the SendAsClient class ***
           
-          sender = new SendAsClient(testRequestID, partner, sendDataType, this.trans, this.log);
+            sender = new SendAsClient(testRequestID, partner, sendDataType, this.trans, this.cancellation, this.log);
           
-          // This method should send the request and wait for the response and
-          // then update the values that were received within the SendAsClient object
-          sender.send();
-          boolean success = sender.isSendSuccess();
+            // This method should send the request and wait for the response and
+            // then update the values that were received within the SendAsClient object
+            long sendStart = System.nanoTime();
+            TransmissionEvent event = new TransmissionEvent();
+            event.begin();
+            this.exchange(sender::send);
+            timings.recordSince(Phase.SEND, sendStart);
+            boolean success = sender.isSendSuccess();
+            this.commitTransmissionEvent(event, "send", sendDataType, success);
           
-          // Report the result of the initial transmission
-          statusMsg =  success ? "Successfully sent " + sendDataType + " to " +  partner :
-                                 "Error sending " + sendDataType + " to " + partner;
+            // Report the result of the initial transmission
+            statusMsg =  success ? "Successfully sent " + sendDataType + " to " +  partner :
+                                   "Error sending " + sendDataType + " to " + partner;
 
-          statusType = success ? FHIRplaceConstants.SENT_OK : FHIRplaceConstants.SENT_NOT_OK;
+            statusType = success ? FHIRplaceConstants.SENT_OK : FHIRplaceConstants.SENT_NOT_OK;
 
-          FHIRplaceUtil.sendStatus(statusType, requestFileName, this.instruct, this.trans, this.params, statusMsg);          
+            FHIRplaceUtil.sendStatus(statusType, requestFileName, this.instruct, this.trans, this.params, statusMsg);          
 
-          initialSendOrReceiveError = !success;
+            initialSendOrReceiveError = !success;
 
-          // Also upload sent data for the send data types indicated below
-          switch(sendDataType) {
-            case FHIRplaceConstants.REGISTRATION_TYPE :
-              // Nothing to upload yet for this data type
-              break;
+            // Also upload sent data for the send data types indicated below
+            switch(sendDataType) {
+              case FHIRplaceConstants.REGISTRATION_TYPE :
+                // Nothing to upload yet for this data type
+                break;
 
-            case FHIRplaceConstants.ACCESS_REQUEST_TYPE :
-              // Nothing to upload yet for this data type
-              break;
+              case FHIRplaceConstants.ACCESS_REQUEST_TYPE :
+                // Nothing to upload yet for this data type
+                break;
             
-            case FHIRplaceConstants.MEMBER_MATCH_TYPE :
-              // Nothing to upload yet for this data type
-              break;
+              case FHIRplaceConstants.MEMBER_MATCH_TYPE :
+                // Nothing to upload yet for this data type
+                break;
             
-            case FHIRplaceConstants.FHIR_ID_TYPE :
-              // Upload the FHIR-ID that was sent
-              String fhirID = sender.getFhirID();
-              uploadSentData(testRequestID, FHIRplaceConstants.FHIR_ID_DATA, fhirID);              
-              break;
+              case FHIRplaceConstants.FHIR_ID_TYPE :
+                // Upload the FHIR-ID that was sent
+                String fhirID = sender.getFhirID();
+                uploadSentData(testRequestID, FHIRplaceConstants.FHIR_ID_DATA, fhirID);              
+                break;
             
-            case FHIRplaceConstants.PATIENT_REQUEST_TYPE :
-              // Upload the Access-Token
-              String accessToken = sender.getAccessToken();
-              uploadSentData(testRequestID, FHIRplaceConstants.ACCESS_TOKEN_DATA, accessToken);
-              break;
-          }
+              case FHIRplaceConstants.PATIENT_REQUEST_TYPE :
+                // Upload the Access-Token
+                String accessToken = sender.getAccessToken();
+                uploadSentData(testRequestID, FHIRplaceConstants.ACCESS_TOKEN_DATA, accessToken);
+                break;
+            }
 
-          // Log the result of the sent status
-          log.write(statusMsg + " - (" + this.desc.getTestRequestID() + ")");
+            // Log the result of the sent status
+            log.write(statusMsg + " - (" + this.desc.getTestRequestID() + ")");
 
           
-        // Receiving - This is the Server (Old Payer) receiving from the Client (New Payer)
-        } else {
+          // Receiving - This is the Server (Old Payer) receiving from the Client (New Payer)
+          } else {
 
-          String receiveDataType = instruct.getReceiveDataType();
+            String receiveDataType = instruct.getReceiveDataType();
           
-          log.write("Waiting to receive " + receiveDataType + " for Test Case " + testCase + 
-                     " from " + partner + " (" + testRequestID + ")" );
-
-          // Put connection receiving code in the ReceiveAsServer class
-          receiver = new ReceiveAsServer(testRequestID, partner, receiveDataType, this.trans, this.log);
-
-          // This method should wait for the request from the sender, send a response
-          // then update the values that were requested and returned within the ReceiveAsServer object
-          receiver.receive();
-          boolean success = receiver.isReceiveSuccess();
+            log.info("Waiting to receive {} for Test Case {} from {} ({})", 
+                     receiveDataType, testCase, partner, testRequestID);
+
+            // Put connection receiving code in the ReceiveAsServer class
+            receiver = new ReceiveAsServer(testRequestID, partner, receiveDataType, this.trans, this.cancellation, this.log);
+
+            // This method should wait for the request from the sender, send a response
+            // then update the values that were requested and returned within the ReceiveAsServer object
+            long receiveStart = System.nanoTime();
+            TransmissionEvent event = new TransmissionEvent();
+            event.begin();
+            this.exchange(receiver::receive);
+            timings.recordSince(Phase.RECEIVE, receiveStart);
+            boolean success = receiver.isReceiveSuccess();
+            this.commitTransmissionEvent(event, "receive", receiveDataType, success);
                      
-          // Determine if the initial receive was a success or not or fake it 
-          // as a failure for the test cases expecting an error result
-          // Simulate a failure for the Failure-type tests
+            // Determine if the initial receive was a success or not or fake it 
+            // as a failure for the test cases expecting an error result
+            // Simulate a failure for the Failure-type tests
 
-          //if (expectedResult.equals(FHIRplaceConstants.FAILURE))
-          //  success = false;
+            //if (expectedResult.equals(FHIRplaceConstants.FAILURE))
+            //  success = false;
           
-          // Report the result of the initial transmission
-          statusMsg  = success ? "Successfully received " + receiveDataType + " from " + partner :
-                                 "Error receiving " + receiveDataType + " from " + partner;
+            // Report the result of the initial transmission
+            statusMsg  = success ? "Successfully received " + receiveDataType + " from " + partner :
+                                   "Error receiving " + receiveDataType + " from " + partner;
           
-          statusType = success ? FHIRplaceConstants.RECEIVED_OK : FHIRplaceConstants.RECEIVED_NOT_OK;
-          FHIRplaceUtil.sendStatus(statusType, requestFileName, this.instruct, this.trans, this.params, statusMsg);
+            statusType = success ? FHIRplaceConstants.RECEIVED_OK : FHIRplaceConstants.RECEIVED_NOT_OK;
+            FHIRplaceUtil.sendStatus(statusType, requestFileName, this.instruct, this.trans, this.params, statusMsg);
         
-          initialSendOrReceiveError = !success;
+            initialSendOrReceiveError = !success;
 
-          // Also upload received data where indicated
-          switch(receiveDataType) {
-            case FHIRplaceConstants.REGISTRATION_TYPE :
-              // Nothing to upload yet for this data type
-              break;
+            // Also upload received data where indicated
+            switch(receiveDataType) {
+              case FHIRplaceConstants.REGISTRATION_TYPE :
+                // Nothing to upload yet for this data type
+                break;
             
-            case FHIRplaceConstants.ACCESS_REQUEST_TYPE :
-              // Nothing to upload yet for this data type
-              break;
+              case FHIRplaceConstants.ACCESS_REQUEST_TYPE :
+                // Nothing to upload yet for this data type
+                break;
             
-            case FHIRplaceConstants.MEMBER_MATCH_TYPE :
-              // Nothing to upload yet for this data type
-              break;
+              case FHIRplaceConstants.MEMBER_MATCH_TYPE :
+                // Nothing to upload yet for this data type
+                break;
             
-            case FHIRplaceConstants.FHIR_ID_TYPE :
-              // Upload FHIR-ID
-              String fhirID = receiver.getFhirID();
-              uploadReceivedData(testRequestID, FHIRplaceConstants.FHIR_ID_DATA, fhirID, statusMsg);
+              case FHIRplaceConstants.FHIR_ID_TYPE :
+                // Upload FHIR-ID
+                String fhirID = receiver.getFhirID();
+                uploadReceivedData(testRequestID, FHIRplaceConstants.FHIR_ID_DATA, fhirID, statusMsg);
               
-              // Verify the FHIR-ID
-              statusMsg =  success ? "Successfully validated the FHIR-ID" : "FHIR-ID was invalid";        
-              statusType = success ? FHIRplaceConstants.VERIFIED_OK : FHIRplaceConstants.VERIFIED_NOT_OK;
-              FHIRplaceUtil.sendStatus(statusType, requestFileName, this.instruct, this.trans, this.params, statusMsg);
-              break;
+                // Verify the FHIR-ID
+                statusMsg =  success ? "Successfully validated the FHIR-ID" : "FHIR-ID was invalid";        
+                statusType = success ? FHIRplaceConstants.VERIFIED_OK : FHIRplaceConstants.VERIFIED_NOT_OK;
+                FHIRplaceUtil.sendStatus(statusType, requestFileName, this.instruct, this.trans, this.params, statusMsg);
+                break;
             
-            case FHIRplaceConstants.PATIENT_REQUEST_TYPE :
-              // Upload the Access Token
-              String accessToken = receiver.getAccessToken();
-              uploadReceivedData(testRequestID, FHIRplaceConstants.ACCESS_TOKEN_DATA, accessToken, statusMsg);
+              case FHIRplaceConstants.PATIENT_REQUEST_TYPE :
+                // Upload the Access Token
+                String accessToken = receiver.getAccessToken();
+                uploadReceivedData(testRequestID, FHIRplaceConstants.ACCESS_TOKEN_DATA, accessToken, statusMsg);
               
-              // Verify whether the Access Token is OK or not.. 
-              statusMsg =  success ? "Access Token is valid" : "Access Token is invalid";        
-              statusType = success ? FHIRplaceConstants.VERIFIED_OK : FHIRplaceConstants.VERIFIED_NOT_OK;
-              FHIRplaceUtil.sendStatus(statusType, requestFileName, this.instruct, this.trans, this.params, statusMsg);              
-              break;            
+                // Verify whether the Access Token is OK or not.. 
+                statusMsg =  success ? "Access Token is valid" : "Access Token is invalid";        
+                statusType = success ? FHIRplaceConstants.VERIFIED_OK : FHIRplaceConstants.VERIFIED_NOT_OK;
+                FHIRplaceUtil.sendStatus(statusType, requestFileName, this.instruct, this.trans, this.params, statusMsg);              
+                break;            
+            }
+
+            // Log the result of the received status
+            log.write(statusMsg + " - (" + this.desc.getTestRequestID() + ")");
           }
 
-          // Log the result of the received status
-          log.write(statusMsg + " - (" + this.desc.getTestRequestID() + ")");
-        }
-
-        if (initialSendOrReceiveError) {
-          // If there was an error, negatively evaluate the test
-          FHIRplaceUtil.sendStatus(FHIRplaceConstants.RESULTS_NOT_OK, this.requestFileName, 
-                                   this.instruct, this.trans, this.params, statusMsg);
-          log.write("Test status(" + partner + "): FAILURE - " + statusMsg + " - (" +
-                     this.desc.getTestRequestID() + ")");
-        }
+          if (initialSendOrReceiveError && cancellation.claimResult()) {
+            // If there was an error, negatively evaluate the test
+            FHIRplaceUtil.sendStatus(FHIRplaceConstants.RESULTS_NOT_OK, this.requestFileName, 
+                                     this.instruct, this.trans, this.params, statusMsg);
+            log.write("Test status(" + partner + "): FAILURE - " + statusMsg + " - (" +
+                       this.desc.getTestRequestID() + ")");
+          }
 
-        // Update the transaction date in the Transmission class
-        trans.setDate();
+          // Update the transaction date in the Transmission class
+          trans.setDate();
 
-      } else {
-        // If a CancelRequest, add this request to the cancelled request table
-        // and attempt to stop the processing of this message
-        if ((params.getCancelledTestRequest() && params.isCancelledTestRequest(testRequestID)) ||
-             purpose.equalsIgnoreCase("CancelRequest")) {
+        } else if (purpose.equalsIgnoreCase("CancelRequest")) {
+          // If a CancelRequest, report the test it cancelled (already interrupted when this 
+          // request was received) and add it to the cancelled request table
           String messageText = "Request (" + testRequestID + ") cancelled by user";
           log.write(messageText);
+          cancelRequest = true;
 
-          if (!params.getCancelledTestRequests().containsKey(testRequestID))
+          if (cancelledTest == null) {
+            // Nothing to stop, drop the active entry made for this cancel request
             params.addCancelledTestRequest(testRequestID);
+          } else {
+            // The cancelled test stays active until it is done, and then removes itself
+            params.markCancelledTestRequest(testRequestID);
+            cancelledTest.finishCancelled();
+            if (cancelledTest.finished) {
+              // Also when it was done before this cancel request made its active entry
+              params.removeActiveTest(testRequestID);
+              params.removeCancelledTestRequest(testRequestID);
+            }
+          }
 
           // Negatively evaluate this request
           FHIRplaceUtil.sendStatus(FHIRplaceConstants.RESULTS_NOT_OK, this.requestFileName, 
                                 this.instruct, this.trans, this.params, messageText);
-        }
-      }
 
-    } catch(Exception ex) {
-      if (!parseSuccess) {
-        try {        
-          log.write("Could not parse test request: " + ex.getMessage() + " - (" + this.desc.getTestRequestID() + ")");
-          log.writeStackTrace(ex);  // log stack trace
-          String nakMessage = "Sent NAK for Test " + this.desc.getTestRequestID() + " - reason: " + ex.getMessage();
-          FHIRplaceUtil.sendStatus(FHIRplaceConstants.NAK, this.requestFileName, this.instruct, this.trans, this.params, nakMessage);
-          log.write(nakMessage + " - (" + this.desc.getTestRequestID() + ")");
-
-        } catch (Exception ex2) {
-          log.writeStackTrace("ERROR: Could not send NAK", ex2, this.desc.getTestRequestID());
+        } else if (cancellation.isCancelled() || params.isCancelledTestRequest(testRequestID)) {
+          // Cancelled before it was sent or received
+          cancelled = true;
+          this.reportCancelled(testRequestID);
         }
-      } else {
+
+      } catch (CancellationException ex) {
+        // Cancelled while it was sent or received
+        cancelled = true;
+        this.reportCancelled(this.desc.getTestRequestID());
+
+      } catch(Exception ex) {
         // Some other error, probably in the handler occurred.
         handlerError = true;
         handlerErrorMsg = "Unexpected handler error: " + ex.getMessage();
@@ -319,33 +596,42 @@ public class ProcessTestRequest extends Thread {
           handlerErrorMsg += ", receive aborted.";
 
         log.write(handlerErrorMsg + " - (" + this.desc.getTestRequestID() + ")");
-        
+      
         // Cancel this request
         params.addCancelledTestRequest(this.desc.getTestRequestID());
         log.writeStackTrace(ex, this.desc.getTestRequestID());
-      }      
+      }
     }
 
+    long archiveStart = System.nanoTime();
     try {
       // We have processed the test request, so move it to the archive
       fileUtility.moveFileToArchiveDirectory(requestFileName, params);
+      if (journal != null)
+        journal.archived(journalID);
     } catch (Exception e) {
-      log.write("Error moving test request " + this.desc.getTestRequestID() + " to archive: " +
-                e.getMessage() + " - (" + this.desc.getTestRequestID() + ")");
+      log.write("Error moving test request " + this.getTestRequestID() + " to archive: " +
+                e.getMessage() + " - (" + this.getTestRequestID() + ")");
     }
 
-    if (parseSuccess & !handlerError && !initialSendOrReceiveError) {
+    long archiveNanos = System.nanoTime() - archiveStart;
+
+    if (parseSuccess & !handlerError && !initialSendOrReceiveError && !cancelled && !cancelRequest) {
       try {
         // Respond to the initial send with a response or receive a response from the initial send
         this.respondToInitialSendOrReceive();
+      } catch (CancellationException e) {
+        cancelled = true;
+        this.reportCancelled(this.desc.getTestRequestID());
       } catch (Exception e) {
         String errMsg = "Error parsing results file and updating status: " + e.getMessage();
         log.write(errMsg + " - (" + this.desc.getTestRequestID() + ")");
         log.writeStackTrace(e, this.desc.getTestRequestID());  // log stack trace
 
         try {
-          FHIRplaceUtil.sendStatus(FHIRplaceConstants.RESULTS_NOT_OK, this.requestFileName, 
-                                this.instruct, this.trans, this.params, errMsg);
+          if (cancellation.claimResult())
+            FHIRplaceUtil.sendStatus(FHIRplaceConstants.RESULTS_NOT_OK, this.requestFileName, 
+                                  this.instruct, this.trans, this.params, errMsg);
         } catch (Exception e2) {
            log.write("Error updating TEST STATUS (" + partner + ")" + " - (" +
                      this.desc.getTestRequestID() + ")");
@@ -354,8 +640,9 @@ public class ProcessTestRequest extends Thread {
     }
 
     // Move any resources obtained during this test to the archive 
+    archiveStart = System.nanoTime();
     try {
-      if (params.isDeletePayload()) {
+      if (params.isDeletePayload() && trans != null) {
         String resource  = trans.getBundleName() + "." + trans.getBundleType().toLowerCase();
         String resourcePath = this.params.getPayloadDirectory() + FHIRplaceConstants.FILE_SEPARATOR + resource;
         fileUtility.moveFileToArchiveDirectory(resourcePath, params);
@@ -365,17 +652,19 @@ public class ProcessTestRequest extends Thread {
                 " to archive: " + e.getMessage() + " - (" + this.desc.getTestRequestID() + ")");
       log.writeStackTrace(e, this.desc.getTestRequestID());   // log stack trace
     }
+    timings.record(Phase.ARCHIVE, archiveNanos + System.nanoTime() - archiveStart);
 
     try {
       if (!parseSuccess) {
         FHIRplaceUtil.sendStatus(FHIRplaceConstants.RESULTS_NOT_OK, this.requestFileName, 
                               this.instruct, this.trans, this.params, "Message NAKed");
         log.write("Test status(" + partner + "): FAILURE - Message NAKed" + " - (" +
-                   this.desc.getTestRequestID() + ")");
+                   this.getTestRequestID() + ")");
 
       } else if (handlerError) {
-        FHIRplaceUtil.sendStatus(FHIRplaceConstants.RESULTS_NOT_OK, this.requestFileName, 
-                              this.instruct, this.trans, this.params, handlerErrorMsg);
+        if (cancellation.claimResult())
+          FHIRplaceUtil.sendStatus(FHIRplaceConstants.RESULTS_NOT_OK, this.requestFileName, 
+                                this.instruct, this.trans, this.params, handlerErrorMsg);
         log.write("Test status(" + partner + "): " + handlerErrorMsg + " - (" +
                   this.desc.getTestRequestID() + ")");
 
@@ -387,14 +676,84 @@ public class ProcessTestRequest extends Thread {
           
           params.addCancelledTestRequest(this.desc.getTestRequestID());
         }  
+
+      } else if (cancelled) {
+        // Done with the cancelled test, its cancel request may already have removed it
+        params.removeActiveTest(this.desc.getTestRequestID());
+        params.removeCancelledTestRequest(this.desc.getTestRequestID());
       }
     } catch (Exception e) {
       log.write("Error updating TEST STATUS (" + partner + ")" + " - (" +
-                this.desc.getTestRequestID() + ")");
-      log.writeStackTrace(e, this.desc.getTestRequestID());   // log stack trace
+                this.getTestRequestID() + ")");
+      log.writeStackTrace(e, this.getTestRequestID());   // log stack trace
     }    
   }
 
+  /**
+   * Runs an exchange with the trading partner that a cancel request can interrupt
+   * @param exchange - sends or receives a message or response
+   * @throws CancellationException if the test request is cancelled before or during the exchange
+   */
+  private void exchange(Runnable exchange) {
+    if (cancellation.enter()) {
+      try {
+        exchange.run();
+      } catch (RuntimeException ex) {
+        // An exchange aborted by the cancel fails in its own way
+        if (!cancellation.isCancelled())
+          throw ex;
+      } finally {
+        cancellation.exit();
+      }
+    }
+    if (cancellation.isCancelled())
+      throw new CancellationException("Request (" + this.desc.getTestRequestID() + ") cancelled by user");
+  }
+
+  /**
+   * Reports a cancelled test request as RESULTS_NOT_OK, unless its result has already been reported
+   * @param testRequestID - the test request ID
+   */
+  private void reportCancelled(String testRequestID) {
+    if (!cancellation.claimResult())
+      return;
+    String messageText = "Request (" + testRequestID + ") cancelled by user";
+    try {
+      FHIRplaceUtil.sendStatus(FHIRplaceConstants.RESULTS_NOT_OK, this.requestFileName, 
+                               this.instruct, this.trans, this.params, messageText);
+      log.write("Test status (" + partner + "): " + messageText + " - (" + testRequestID + ")");
+    } catch (Exception ex) {
+      log.write("Error updating TEST STATUS (" + partner + ")" + " - (" + testRequestID + ")");
+      log.writeStackTrace(ex, testRequestID);   // log stack trace
+    }
+  }
+
+  /**
+   * Returns the test request ID, taken from the file name if the request could not be parsed
+   */
+  private String getTestRequestID() {
+    if (this.desc != null && this.desc.getTestRequestID() != null)
+      return this.desc.getTestRequestID();
+    return FHIRplaceUtil.getTestRequestID(this.requestFileName);
+  }
+
+  /**
+   * Sends the NAK for a test request that could not be parsed
+   * @param ex - the exception thrown while parsing
+   */
+  private void sendParseError(Exception ex) {
+    try {        
+      log.write("Could not parse test request: " + ex.getMessage() + " - (" + this.getTestRequestID() + ")");
+      log.writeStackTrace(ex);  // log stack trace
+      String nakMessage = "Sent NAK for Test " + this.getTestRequestID() + " - reason: " + ex.getMessage();
+      FHIRplaceUtil.sendStatus(FHIRplaceConstants.NAK, this.requestFileName, this.instruct, this.trans, this.params, nakMessage);
+      log.write(nakMessage + " - (" + this.getTestRequestID() + ")");
+
+    } catch (Exception ex2) {
+      log.writeStackTrace("ERROR: Could not send NAK", ex2, this.getTestRequestID());
+    }
+  }
+
   /**
    * Perform the second set of Send/Receive commands 
    * where the initial receiver (Old Payer) responds 
@@ -406,6 +765,7 @@ public class ProcessTestRequest extends Thread {
    * @throws Exception 
    */
   private void respondToInitialSendOrReceive() throws Exception {
+    long responseStart = System.nanoTime();
 
     // Determine if we were originally originallySending or receiving
     boolean originallySending = false;
@@ -429,8 +789,11 @@ public class ProcessTestRequest extends Thread {
       String sendDataType = instruct.getSendDataType();
       
       // If this was the orignal receiver, return the appropriate data type response 
-      receiver.returnResponse(sendDataType);
+      TransmissionEvent event = new TransmissionEvent();
+      event.begin();
+      this.exchange(() -> receiver.returnResponse(sendDataType));
       success = receiver.isResponseSuccess();
+      this.commitTransmissionEvent(event, "send response", sendDataType, success);
     
       // Report the result of that response
       statusMsg =  success ? "Successfully sent " + sendDataType + " response to " + partner :
@@ -470,8 +833,11 @@ public class ProcessTestRequest extends Thread {
 
       // Here you will either add code to receive the response or extract
       // the result of the response from your initial message
-      sender.receiveResponseForDataType(receiveDataType);
+      TransmissionEvent event = new TransmissionEvent();
+      event.begin();
+      this.exchange(() -> sender.receiveResponseForDataType(receiveDataType));
       success = sender.isResponseSuccess();
+      this.commitTransmissionEvent(event, "receive response", receiveDataType, success);
 
       // Report the result of the received response
       statusMsg  = success ? "Successfully received " + receiveDataType + " response from " + partner :
@@ -555,15 +921,36 @@ public class ProcessTestRequest extends Thread {
       log.write(statusMsg + " - (" + this.desc.getTestRequestID() + ")");                 
     }
     
+    long evaluateStart = timings.recordSince(Phase.RESPONSE, responseStart);
+
     // Evaluate the overall outcome of the test
     evaluateTest(originallySending, success, testRequestID, verificationError, verificationErrorMsg);
+    timings.recordSince(Phase.EVALUATE, evaluateStart);
    
     this.params.removeActiveTest(testRequestID);
     if (params.isDebugMode()) {
-      log.write("Removed partner '" + partner + "' from list of active tests. (" + testRequestID + ")\n");
+      log.debug("Removed partner '{}' from list of active tests. ({})\n", partner, testRequestID);
     }  
   }  
 
+  /**
+   * Records a send or receive call if a flight recording wants it
+   * @param event - the event begun before the call
+   * @param operation - send, receive, send response or receive response
+   * @param dataType - the data type sent or received
+   * @param success - true if the call succeeded
+   */
+  private void commitTransmissionEvent(TransmissionEvent event, String operation, String dataType, boolean success) {
+    if (event.shouldCommit()) {
+      event.testRequestID = this.desc.getTestRequestID();
+      event.partner = partner;
+      event.operation = operation;
+      event.dataType = dataType;
+      event.success = success;
+      event.commit();
+    }
+  }
+
   /**
    * Uploads sent data to the FHIRplace server
    * 
@@ -580,18 +967,20 @@ public class ProcessTestRequest extends Thread {
 
     try {
       // Determine the name of the expected file name for the upload
-      Instructions.Upload[] uploads = instruct.getUpload(FHIRplaceConstants.SENT_DATA, uploadType);
+      List<Instructions.Upload> uploads = instruct.getUpload(FHIRplaceConstants.SENT_DATA, uploadType);
 
       for (Instructions.Upload upload : uploads) {
+        long uploadStart = System.nanoTime();
         fileUtility.uploadData(FHIRplaceConstants.SENT_DATA, uploadType, sentData, 
                                testRequestID, upload.getResponseID(), params.getStatusDirectory());
+        timings.recordSince(Phase.UPLOAD, uploadStart);
 
-        log.write("Uploaded " + uploadTypeDesc + " (" + sentData + ") sent to " + partner + " - (" + testRequestID + ")");
+        log.info("Uploaded {} ({}) sent to {} - ({})", uploadTypeDesc, sentData, partner, testRequestID);
         count++;
       }
       if (count == 0) {
         log.write("Warning: No SENT " + uploadTypeDesc + " uploads were completed.");
-        log.write("TestRequestID->" + testRequestID + ", uploadType->" + uploadType);
+        log.debug("TestRequestID->{}, uploadType->{}", testRequestID, uploadType);
       }
 
     } catch (Exception e) {
@@ -620,18 +1009,19 @@ public class ProcessTestRequest extends Thread {
 
     try {
       // Determine the name of the expected file name for the upload
-      Instructions.Upload[] uploads = instruct.getUpload(FHIRplaceConstants.RECEIVED_DATA, uploadType);  
+      List<Instructions.Upload> uploads = instruct.getUpload(FHIRplaceConstants.RECEIVED_DATA, uploadType);
 
       for (Instructions.Upload upload : uploads) {
+        long uploadStart = System.nanoTime();
         fileUtility.uploadData(FHIRplaceConstants.RECEIVED_DATA, uploadType, receivedData, 
                                testRequestID, upload.getResponseID(), params.getStatusDirectory());
+        timings.recordSince(Phase.UPLOAD, uploadStart);
 
-        log.write("Uploaded " + uploadTypeDesc + " (" + receivedData +  ") received from " + 
-                  partner + " - (" + testRequestID + ")");
+        log.info("Uploaded {} ({}) received from {} - ({})", uploadTypeDesc, receivedData, partner, testRequestID);
         count++;
       }
       if (count == 0) {
-        log.write("RequestID->" + testRequestID + ", uploadType->" + uploadType);
+        log.debug("RequestID->{}, uploadType->{}", testRequestID, uploadType);
       }
     } catch (Exception e) {
       recvMsg = e.getMessage();
@@ -655,6 +1045,12 @@ public class ProcessTestRequest extends Thread {
   private void evaluateTest(boolean sending, boolean success, String requestID, 
                             boolean verificationError, String verificationErrorMsg) 
     throws Exception {
+    // Already reported by its cancel request
+    if (!cancellation.claimResult()) {
+      this.params.removeCancelledTestRequest(requestID);
+      return;
+    }
+
     if (params.isCancelledTestRequest(requestID)) {
       String messageText = "Cancelled by user";
       FHIRplaceUtil.sendStatus(FHIRplaceConstants.RESULTS_NOT_OK, this.requestFileName, this.instruct, this.trans, this.params, messageText);
@@ -685,7 +1081,7 @@ public class ProcessTestRequest extends Thread {
       if (params.isCancelledTestRequest(requestID) ) {
         messageText = "Request (" + requestID + ") cancelled by user";
         if (new File(requestFileName).exists()) {
-          log.write("Attempting to move " + requestFileName + " to archive");
+          log.info("Attempting to move {} to archive", requestFileName);
           fileUtility.moveFileToArchiveDirectory(requestFileName, params);
         }
       } else {
@@ -9,6 +9,11 @@ import com.dgi.fhirplace.parser.Transmission;
  * You will need to update the response content from the
  * appropriate response elements so that the ProcessTestRequest class
  * can access them and send them to the FHIRplace server
+ *
+ * If the test request is cancelled while receiving or responding, the thread is
+ * interrupted and the aborts registered with cancellation.onCancel() are run, e.g.,
+ * to stop waiting for the request or close the connection, so the exchange ends
+ * right away instead of running into its timeout.
  */
 public class ReceiveAsServer {
   
@@ -21,6 +26,7 @@ public class ReceiveAsServer {
   String authServer;
   String patientResourceName;
   String coverageResourceName;
+  TestCancellation cancellation;
   
   boolean receiveSuccess = true;
   boolean responseSuccess = true;
@@ -37,10 +43,11 @@ public class ReceiveAsServer {
    * @param receiveDataType - the type of data being received
    * @param partner - the name of the participant that is sending the request
    * @param trans - the transmission object parsed from the test request's Transmission element
+   * @param cancellation - the test request's cancellation token, to abort the exchange when it is cancelled
    * @param log -  a reference to the Logger object for logging as needed
    */
   public ReceiveAsServer(String testRequestID, String partner, String receiveDataType,
-                         Transmission trans, Logger log) {
+                         Transmission trans, TestCancellation cancellation, Logger log) {
     this.testRequestID = testRequestID;
     this.partner = partner;
     this.receiveDataType = receiveDataType;
@@ -49,6 +56,7 @@ public class ReceiveAsServer {
     this.authServer = trans.getAuthorizationServer();
     this.patientResourceName = trans.getPatientResourceName();
     this.coverageResourceName = trans.getCoverageResourceName();
+    this.cancellation = cancellation;
     
     this.log = log;  
   }
@@ -56,10 +64,18 @@ public class ReceiveAsServer {
   public void receive() {
     // When receiving, trigger off the receiveDataType value
     log.write("The received data type is: " + receiveDataType);
+    if (cancellation.isCancelled()) {
+      receiveSuccess = false;
+      return;
+    }
   }
   
   public void returnResponse(String dataType) {
     log.write("Returning " + dataType + " response...");
+    if (cancellation.isCancelled()) {
+      responseSuccess = false;
+      return;
+    }
     
     // Based on the dataType, you should return the correct response:
     
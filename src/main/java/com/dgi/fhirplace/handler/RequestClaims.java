@@ -0,0 +1,354 @@
+package com.dgi.fhirplace.handler;
+
+import com.dgi.fhirplace.util.FHIRplaceUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class lets several handler instances share one test request directory.
+ * Before an instance runs a test request it claims the request file, and before
+ * it runs a test for a trading partner it claims the partner, so every test
+ * request runs once and the tests for a partner still run one at a time across
+ * all instances.
+ *
+ * A claim is a sidecar file in the claim directory, e.g., Req-T1001.xml.claim or
+ * partner-TP1.claim, locked with FileChannel.tryLock() for as long as the claim
+ * is held.  The file holds the ID of the instance and the time its lease expires:
+ * "instance ID[TAB]expiry milliseconds".  The leases of all the claims held are
+ * renewed in the background every third of the lease time.
+ *
+ * The lock keeps the instances on one machine apart and is released by the
+ * operating system when an instance dies.  Not every shared file system enforces
+ * it though, so a claim is only taken over from another instance once its lease
+ * has expired.  The claims of a crashed instance are thus picked up by the other
+ * instances one lease time after its last renewal at the latest.
+ */
+public class RequestClaims {
+
+  static final String CLAIM_EXTENSION = ".claim";
+  static final String PARTNER_PREFIX = "partner-";
+
+  // Waits between two attempts to claim a busy partner
+  static final long INITIAL_WAIT_MILLIS = 10;
+  static final long MAX_WAIT_MILLIS = 500;
+
+  Logger log = new Logger(RequestClaims.class);
+
+  Path claimDirectory = null;
+  String instanceID = null;
+  long leaseMillis = 0;
+
+  /**
+   * A claim held by this instance
+   */
+  static class Claim {
+    final String name;
+    final FileChannel channel;
+    final FileLock lock;
+    volatile long expiresMillis = 0;
+
+    Claim(String name, FileChannel channel, FileLock lock) {
+      this.name = name;
+      this.channel = channel;
+      this.lock = lock;
+    }
+  }
+
+  // The claims held by this instance, by claim file name
+  final ConcurrentHashMap<String, Claim> claims = new ConcurrentHashMap<>();
+
+  ScheduledExecutorService renewer = null;
+
+  /**
+   * @param claimDirectory - the directory shared by the instances, or null to claim nothing
+   * @param instanceID - the ID of this instance, unique among the instances
+   * @param leaseSeconds - seconds a claim is held without being renewed
+   */
+  public RequestClaims(String claimDirectory, String instanceID, int leaseSeconds) {
+    if (!FHIRplaceUtil.isNullOrEmpty(claimDirectory))
+      this.claimDirectory = Paths.get(claimDirectory).toAbsolutePath();
+    this.instanceID = instanceID;
+    this.leaseMillis = Math.max(leaseSeconds, 1) * 1000L;
+  }
+
+  /**
+   * Returns true if the test requests are claimed, i.e., several instances may share the directory
+   */
+  public boolean isEnabled() {
+    return this.claimDirectory != null;
+  }
+
+  public String getInstanceID() {
+    return this.instanceID;
+  }
+
+  /**
+   * Creates the claim directory and starts renewing the leases
+   */
+  public synchronized void open() {
+    if (claimDirectory == null || renewer != null)
+      return;
+    try {
+      Files.createDirectories(claimDirectory);
+    } catch (IOException ex) {
+      log.writeStackTrace("Could not create the claim directory " + claimDirectory + ", claiming is disabled", ex);
+      claimDirectory = null;
+      return;
+    }
+    renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "RequestClaims");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long period = Math.max(leaseMillis / 3, 100L);
+    renewer.scheduleAtFixedRate(this::renewAll, period, period, TimeUnit.MILLISECONDS);
+    log.write("Claiming test requests in " + claimDirectory + " as instance " + instanceID +
+              " with a lease of " + (leaseMillis / 1000) + " seconds");
+  }
+
+  /**
+   * Claims a test or cancel request file for this instance, without waiting
+   * @param fileName - the request file
+   * @return true if this instance may process the file, always true when claiming is disabled
+   */
+  public boolean claimRequest(String fileName) {
+    if (claimDirectory == null)
+      return true;
+    return this.tryClaim(new File(fileName).getName() + CLAIM_EXTENSION);
+  }
+
+  /**
+   * Gives up the claim on a request file, once it is archived or left for another instance
+   * @param fileName - the request file
+   */
+  public void releaseRequest(String fileName) {
+    if (claimDirectory == null)
+      return;
+    // A claim file is only removed once its request is gone, so all instances lock the same file
+    this.release(new File(fileName).getName() + CLAIM_EXTENSION, !new File(fileName).exists());
+  }
+
+  /**
+   * Returns true if another live instance holds the claim on a request file
+   * @param fileName - the request file
+   */
+  public boolean isClaimedElsewhere(String fileName) {
+    if (claimDirectory == null)
+      return false;
+    String name = new File(fileName).getName() + CLAIM_EXTENSION;
+    if (claims.containsKey(name))
+      return false;
+    try {
+      String[] owner = parseOwner(Files.readAllBytes(claimDirectory.resolve(name)));
+      return this.isLiveOwner(owner);
+    } catch (NoSuchFileException ex) {
+      return false;
+    } catch (IOException ex) {
+      log.write("Warning: Could not read the claim " + name + ": " + ex.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Claims a trading partner for this instance, waiting until no other instance has a test running for it
+   * @param partner - the trading partner name / identifier
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  public void claimPartner(String partner) throws InterruptedException {
+    if (claimDirectory == null)
+      return;
+    String name = getPartnerClaimName(partner);
+    long waitMillis = INITIAL_WAIT_MILLIS;
+    while (!this.tryClaim(name)) {
+      Thread.sleep(waitMillis);
+      waitMillis = Math.min(waitMillis * 2, MAX_WAIT_MILLIS);
+    }
+  }
+
+  /**
+   * Gives up the claim on a trading partner
+   * @param partner - the trading partner name / identifier
+   */
+  public void releasePartner(String partner) {
+    if (claimDirectory == null)
+      return;
+    this.release(getPartnerClaimName(partner), false);
+  }
+
+  /**
+   * Returns the number of claims held by this instance
+   */
+  public int getClaimCount() {
+    return claims.size();
+  }
+
+  static String getPartnerClaimName(String partner) {
+    String key = (partner != null) ? partner : "";
+    return PARTNER_PREFIX + key.replaceAll("[^A-Za-z0-9._-]", "_") + CLAIM_EXTENSION;
+  }
+
+  /**
+   * Locks the claim file and takes it unless another instance holds an unexpired lease on it
+   */
+  private boolean tryClaim(String name) {
+    // Closing a second channel on a locked file would release the lock on some systems
+    if (claims.containsKey(name))
+      return false;
+
+    Path path = claimDirectory.resolve(name);
+    FileChannel channel = null;
+    try {
+      channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      FileLock lock;
+      try {
+        lock = channel.tryLock();
+      } catch (OverlappingFileLockException ex) {
+        lock = null;
+      }
+      if (lock == null) {
+        channel.close();
+        return false;
+      }
+
+      String[] owner = parseOwner(readAll(channel));
+      if (this.isLiveOwner(owner)) {
+        lock.release();
+        channel.close();
+        return false;
+      }
+      if (owner != null && !owner[0].equals(instanceID))
+        log.write("Taking over the expired claim " + name + " of instance " + owner[0]);
+
+      Claim claim = new Claim(name, channel, lock);
+      this.writeLease(claim);
+      claims.put(name, claim);
+      return true;
+    } catch (IOException ex) {
+      log.write("Warning: Could not claim " + name + ": " + ex.getMessage());
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException ex2) {
+          // Nothing more can be done
+        }
+      }
+      return false;
+    }
+  }
+
+  private void release(String name, boolean delete) {
+    Claim claim = claims.remove(name);
+    if (claim == null)
+      return;
+    synchronized (claim) {
+      try {
+        // An empty claim file is free
+        claim.channel.truncate(0);
+        if (delete)
+          Files.deleteIfExists(claimDirectory.resolve(name));
+      } catch (IOException ex) {
+        log.write("Warning: Could not release the claim " + name + ": " + ex.getMessage());
+      } finally {
+        try {
+          claim.lock.release();
+          claim.channel.close();
+        } catch (IOException ex) {
+          // Closing the channel releases the lock anyway
+        }
+      }
+    }
+  }
+
+  private void writeLease(Claim claim) throws IOException {
+    long expires = System.currentTimeMillis() + leaseMillis;
+    byte[] bytes = (instanceID + "\t" + expires + "\n").getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    int position = 0;
+    while (buffer.hasRemaining()) {
+      position += claim.channel.write(buffer, position);
+    }
+    claim.channel.truncate(bytes.length);
+    claim.channel.force(false);
+    claim.expiresMillis = expires;
+  }
+
+  private void renewAll() {
+    long now = System.currentTimeMillis();
+    for (Claim claim : claims.values()) {
+      if (claim.expiresMillis < now)
+        log.write("Warning: The lease of claim " + claim.name + " expired before it was renewed");
+      try {
+        synchronized (claim) {
+          if (claims.get(claim.name) == claim)
+            this.writeLease(claim);
+        }
+      } catch (IOException ex) {
+        log.write("Warning: Could not renew the claim " + claim.name + ": " + ex.getMessage());
+      }
+    }
+  }
+
+  private boolean isLiveOwner(String[] owner) {
+    if (owner == null || owner[0].equals(instanceID))
+      return false;
+    try {
+      return Long.parseLong(owner[1]) > System.currentTimeMillis();
+    } catch (NumberFormatException ex) {
+      return false;
+    }
+  }
+
+  private static byte[] readAll(FileChannel channel) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), 4096));
+    long position = 0;
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0)
+        break;
+      position += read;
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Returns the instance ID and lease expiry in a claim file, or null if the claim is free
+   */
+  static String[] parseOwner(byte[] contents) {
+    String text = new String(contents, StandardCharsets.UTF_8).trim();
+    String[] owner = text.split("\t");
+    return (owner.length == 2 && !owner[0].isEmpty()) ? owner : null;
+  }
+
+  /**
+   * Stops renewing the leases and gives up all the claims still held
+   */
+  public synchronized void close() {
+    if (renewer != null) {
+      renewer.shutdownNow();
+      renewer = null;
+    }
+    for (String name : claims.keySet()) {
+      this.release(name, false);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return (claimDirectory != null) ? claimDirectory + " (" + instanceID + ")" : "none";
+  }
+}
@@ -0,0 +1,111 @@
+package com.dgi.fhirplace.handler;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class watches the Test Request directory for new or modified files
+ * using the file system's change notifications, so incoming test requests
+ * are picked up as soon as they are written instead of on the next poll.
+ */
+class RequestDirectoryWatcher {
+
+  Logger log = new Logger(RequestDirectoryWatcher.class);
+
+  Path directory = null;
+  WatchService watchService = null;
+
+  // Set when the watch service dropped events and the directory must be rescanned
+  boolean overflowed = false;
+
+  private RequestDirectoryWatcher(Path directory, WatchService watchService) {
+    this.directory = directory;
+    this.watchService = watchService;
+  }
+
+  /**
+   * Starts watching the specified directory for created and modified files
+   * @param directoryName - the directory to watch
+   * @return the watcher
+   * @throws IOException if the directory cannot be watched
+   */
+  static RequestDirectoryWatcher open(String directoryName) throws IOException {
+    Path dir = Paths.get(directoryName);
+    WatchService service = FileSystems.getDefault().newWatchService();
+    try {
+      dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch (IOException | RuntimeException ex) {
+      service.close();
+      throw ex;
+    }
+    return new RequestDirectoryWatcher(dir, service);
+  }
+
+  /**
+   * Waits for file events and adds the path of every matching file to the pending collection
+   * @param timeoutMillis - the maximum time to wait for an event
+   * @param filter - selects the file names of interest
+   * @param pending - receives the paths of the matching files
+   * @return false if the directory can no longer be watched
+   * @throws InterruptedException
+   */
+  boolean awaitEvents(long timeoutMillis, FilenameFilter filter, Collection<String> pending)
+    throws InterruptedException {
+
+    WatchKey key;
+    try {
+      key = watchService.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (ClosedWatchServiceException ex) {
+      return false;
+    }
+
+    // Drain everything that is already queued so a burst is handled in one pass
+    while (key != null) {
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          overflowed = true;
+          continue;
+        }
+        Path name = (Path) event.context();
+        if (name != null && filter.accept(directory.toFile(), name.toString())) {
+          pending.add(new File(directory.toFile(), name.toString()).getPath());
+        }
+      }
+      if (!key.reset()) {
+        log.write("Warning: " + directory + " is no longer accessible, stopped watching it");
+        return false;
+      }
+      key = watchService.poll();
+    }
+    return true;
+  }
+
+  /**
+   * Returns and clears the overflow indicator
+   * @return true if events were lost since the last call
+   */
+  boolean checkAndClearOverflow() {
+    boolean lost = overflowed;
+    overflowed = false;
+    return lost;
+  }
+
+  void close() {
+    try {
+      watchService.close();
+    } catch (IOException ex) {
+      log.writeStackTrace("Caught exception while closing the directory watcher", ex);
+    }
+  }
+}
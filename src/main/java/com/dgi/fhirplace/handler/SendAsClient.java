@@ -9,6 +9,12 @@ import com.dgi.fhirplace.parser.Transmission;
  * You will need to parse the response content and update the
  * appropriate elements so that the ProcessTestRequest class
  * can access them and send them to the FHIRplace server
+ *
+ * If the test request is cancelled while sending or receiving, the thread is
+ * interrupted and the aborts registered with cancellation.onCancel() are run, e.g.,
+ *   cancellation.onCancel(() -> responseFuture.cancel(true));   // HttpClient.sendAsync()
+ *   cancellation.onCancel(connection::disconnect);              // HttpURLConnection
+ * so the exchange ends right away instead of running into its timeout.
  */
 public class SendAsClient {
 
@@ -21,6 +27,7 @@ public class SendAsClient {
   String authServer;
   String patientResourceName;
   String coverageResourceName;
+  TestCancellation cancellation;
   
   boolean sendSuccess = true;
   boolean responseSuccess = true;
@@ -37,10 +44,11 @@ public class SendAsClient {
    * @param sendDataType - the type of data being sent
    * @param partner - the name of the participant that is receiving your request
    * @param trans - the transmission object parsed from the test request's Transmission element
+   * @param cancellation - the test request's cancellation token, to abort the exchange when it is cancelled
    * @param log - a reference to the Logger object for logging as needed
    */
   public SendAsClient(String testRequestID, String partner, String sendDataType,  
-                      Transmission trans, Logger log) {
+                      Transmission trans, TestCancellation cancellation, Logger log) {
     this.testRequestID = testRequestID;
     this.partner = partner;
     this.sendDataType = sendDataType;
@@ -49,6 +57,7 @@ public class SendAsClient {
     this.authServer = trans.getAuthorizationServer();
     this.patientResourceName = trans.getPatientResourceName();
     this.coverageResourceName = trans.getCoverageResourceName();
+    this.cancellation = cancellation;
     
     this.log = log;
   }
@@ -64,7 +73,11 @@ public class SendAsClient {
   public void send() {
     log.write("Sending request to " + partner);
     
-    // Sit in a loop and wait for the response
+    // Sit in a loop and wait for the response, until it comes or the test request is cancelled
+    if (cancellation.isCancelled()) {
+      sendSuccess = false;
+      return;
+    }
     
     // Update the results
   }
@@ -78,6 +91,10 @@ public class SendAsClient {
    */
   public void receiveResponseForDataType(String dataType) {
     log.write("Receiving " + dataType + " response...");
+    if (cancellation.isCancelled()) {
+      responseSuccess = false;
+      return;
+    }
     
     // Based on the dataType, you should receive the correct response
     // ClientID type
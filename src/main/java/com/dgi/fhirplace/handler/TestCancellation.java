@@ -0,0 +1,129 @@
+package com.dgi.fhirplace.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class is the cancellation token of one test request.  A cancel (.kill)
+ * request cancels the token of the running test request as soon as it is seen,
+ * instead of leaving the test to notice it between its phases.
+ *
+ * While the test is exchanging messages with its trading partner (sending,
+ * receiving or waiting for the partner) the thread doing it is entered in the
+ * token, and a cancel interrupts that thread and runs the aborts registered with
+ * onCancel(), e.g., to cancel an in-flight HTTP exchange.  Outside an exchange the
+ * thread is never interrupted, so the status, upload and journal files are not
+ * closed by an interrupt half way through a write.
+ *
+ * The test and the cancel request race to report the test's result, and only
+ * the first one to claim the result reports it.
+ */
+public class TestCancellation {
+
+  Logger log = new Logger(TestCancellation.class);
+
+  String testRequestID = null;
+  volatile boolean cancelled = false;
+
+  // The thread in an exchange and the aborts for the exchange, guarded by this
+  Thread worker = null;
+  List<Runnable> aborts = new ArrayList<>();
+
+  final AtomicBoolean resultClaimed = new AtomicBoolean();
+
+  /**
+   * @param testRequestID - the test request ID
+   */
+  public TestCancellation(String testRequestID) {
+    this.testRequestID = testRequestID;
+  }
+
+  public String getTestRequestID() {
+    return this.testRequestID;
+  }
+
+  /**
+   * Returns true once the test request has been cancelled
+   */
+  public boolean isCancelled() {
+    return this.cancelled;
+  }
+
+  /**
+   * Cancels the test request: interrupts the thread in an exchange and aborts the exchange
+   * @return true if the test request was cancelled by this call, false if it already was
+   */
+  public boolean cancel() {
+    List<Runnable> pending;
+    synchronized (this) {
+      if (cancelled)
+        return false;
+      cancelled = true;
+      if (worker != null)
+        worker.interrupt();
+      pending = new ArrayList<>(aborts);
+      aborts.clear();
+    }
+    for (Runnable abort : pending) {
+      this.runAbort(abort);
+    }
+    return true;
+  }
+
+  /**
+   * Enters the current thread in a blocking exchange with the trading partner, so a cancel interrupts it
+   * @return false if the test request is already cancelled, the exchange is then skipped
+   */
+  public synchronized boolean enter() {
+    if (cancelled)
+      return false;
+    worker = Thread.currentThread();
+    return true;
+  }
+
+  /**
+   * Leaves the exchange, clearing an interrupt the cancel left behind and the aborts of the exchange
+   */
+  public void exit() {
+    synchronized (this) {
+      if (worker == Thread.currentThread())
+        worker = null;
+      aborts.clear();
+    }
+    // No cancel interrupts the thread after this, so it is clean for its next task
+    if (cancelled)
+      Thread.interrupted();
+  }
+
+  /**
+   * Registers an abort for the current exchange, e.g., closing its connection or cancelling its
+   * future, run at once if the test request is already cancelled.  The aborts are dropped at exit().
+   * @param abort - aborts the exchange, it may be run on the thread of the cancel request
+   */
+  public void onCancel(Runnable abort) {
+    synchronized (this) {
+      if (!cancelled) {
+        aborts.add(abort);
+        return;
+      }
+    }
+    this.runAbort(abort);
+  }
+
+  /**
+   * Claims the report of the test's result
+   * @return true for the first caller, which reports the result, false for every later one
+   */
+  public boolean claimResult() {
+    return resultClaimed.compareAndSet(false, true);
+  }
+
+  private void runAbort(Runnable abort) {
+    try {
+      abort.run();
+    } catch (RuntimeException ex) {
+      log.writeStackTrace("Could not abort the exchange of a cancelled test request", ex, testRequestID);
+    }
+  }
+}
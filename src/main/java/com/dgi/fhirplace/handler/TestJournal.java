@@ -0,0 +1,502 @@
+package com.dgi.fhirplace.handler;
+
+import com.dgi.fhirplace.parser.Instructions;
+import com.dgi.fhirplace.util.ArchiveIndex;
+import com.dgi.fhirplace.util.FHIRplaceUtil;
+import com.dgi.fhirplace.util.FileUtility;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * This class records the progress of every test request in an append-only journal
+ * file, so a restarted handler knows which tests were running when it stopped.
+ * Each test request is journaled when it is admitted, when it is parsed (with its
+ * partner and the response ID of its test result), when its ACK is written, when
+ * its request file is archived and when it is complete.  Cancellations are
+ * journaled as well.
+ *
+ * Every record is one line, "checksum type[TAB]test request ID[TAB]...", where the
+ * checksum is the CRC-32C of the rest of the line.  A crash can leave at most the
+ * last line incomplete, so reading stops at the first line that does not check out.
+ *
+ * The journal is compacted by writing the tests still of interest to a new file,
+ * one ENTRY line each, and renaming it over the journal.  This happens at startup and
+ * whenever most of the journal's lines are superseded.  Completed tests are kept
+ * until their request file is in the archive index, which then finds any duplicate,
+ * or until the request file is gone.
+ *
+ * At startup recover() finishes the tests that were running:
+ *   - a test whose request file is still waiting and whose ACK was not written is
+ *     left to be run again from the start
+ *   - any other test is failed with a RESULTS_NOT_OK status and its request file
+ *     archived, as the client has already seen part of it, unless another handler
+ *     instance has claimed the request file in the meantime
+ */
+public class TestJournal {
+
+  public enum State { ADMITTED, PARSED, ACKED, ARCHIVED, COMPLETED }
+
+  // Record types, a snapshot of a test is an ENTRY
+  static final String ADMIT = "ADMIT";
+  static final String PARSE = "PARSE";
+  static final String ACK = "ACK";
+  static final String ARCHIVE = "ARCHIVE";
+  static final String COMPLETE = "COMPLETE";
+  static final String CANCEL = "CANCEL";
+  static final String ENTRY = "ENTRY";
+
+  static final String NONE = "-";
+
+  Logger log = new Logger(TestJournal.class);
+
+  Path journalFile = null;
+  boolean force = false;
+  ArchiveIndex archiveIndex = null;
+
+  /**
+   * The journaled state of one test request
+   */
+  static class Entry {
+    final String testRequestID;
+    volatile State state = State.ADMITTED;
+    volatile String fileName = null;
+    volatile String partner = null;
+    volatile String evaluateTestID = null;
+    volatile boolean cancelled = false;
+
+    Entry(String testRequestID) {
+      this.testRequestID = testRequestID;
+    }
+  }
+
+  final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  // Appends records to the journal, guarded by this object
+  FileChannel journalChannel = null;
+  int recordsSinceCompaction = 0;
+
+  /**
+   * @param journalFileName - the journal file, or null to journal nothing
+   * @param force - true to flush every record to the storage device
+   * @param archiveIndex - the index of the archived files
+   */
+  public TestJournal(String journalFileName, boolean force, ArchiveIndex archiveIndex) {
+    if (!FHIRplaceUtil.isNullOrEmpty(journalFileName))
+      this.journalFile = Paths.get(journalFileName).toAbsolutePath();
+    this.force = force;
+    this.archiveIndex = archiveIndex;
+  }
+
+  /**
+   * Returns true if the tests are journaled
+   */
+  public boolean isEnabled() {
+    return this.journalFile != null;
+  }
+
+  /**
+   * Reads the journal in one pass and compacts it
+   */
+  public synchronized void load() {
+    if (journalFile == null)
+      return;
+    long start = System.currentTimeMillis();
+    int records = 0;
+    try {
+      if (Files.isRegularFile(journalFile))
+        records = this.readJournal();
+      this.compact();
+    } catch (IOException ex) {
+      log.writeStackTrace("Could not load the test journal, journaling is disabled", ex);
+      this.closeJournal();
+      journalFile = null;
+      return;
+    }
+    log.write("Loaded " + records + " test journal records from " + journalFile + " in " +
+              (System.currentTimeMillis() - start) + " ms, " + this.getUnfinishedCount() + " unfinished tests");
+  }
+
+  /**
+   * Finishes the tests that were running when the handler stopped, see the class comment
+   * @param params - the LocalParameters object
+   * @return the number of tests failed
+   */
+  public int recover(LocalParameters params) {
+    if (journalFile == null)
+      return 0;
+    int failed = 0;
+    for (Entry entry : new ArrayList<>(entries.values())) {
+      if (entry.state == State.COMPLETED)
+        continue;
+
+      boolean waiting = isWaiting(entry);
+      if (waiting && !entry.cancelled && entry.state.compareTo(State.ACKED) < 0) {
+        // Nothing was reported to the client yet, it is simply run again
+        log.write("Test request " + entry.testRequestID + " will be run again after the restart");
+        entries.remove(entry.testRequestID, entry);
+        continue;
+      }
+
+      // Another instance took the test over while this one was down
+      RequestClaims claims = params.getRequestClaims();
+      if (waiting && !claims.claimRequest(entry.fileName)) {
+        log.write("Test request " + entry.testRequestID + " is claimed by another instance after the restart");
+        this.completed(entry.testRequestID);
+        continue;
+      }
+
+      String messageText = entry.cancelled ? "Request (" + entry.testRequestID + ") cancelled by user" :
+                                             "Handler restarted while the test was running";
+      if (entry.evaluateTestID != null) {
+        Instructions instruct = new Instructions();
+        instruct.setEvaluateTestID(entry.evaluateTestID);
+        try {
+          FHIRplaceUtil.sendStatus(FHIRplaceConstants.RESULTS_NOT_OK, entry.fileName, instruct, null, params, messageText);
+          failed++;
+        } catch (Exception ex) {
+          log.writeStackTrace("Could not write the test result after the restart", ex, entry.testRequestID);
+        }
+      } else {
+        log.write("Warning: No test result can be written for " + entry.testRequestID +
+                  ", it was not parsed before the restart");
+      }
+      log.write("Test status (" + (entry.partner != null ? entry.partner : NONE) + "): FAILURE - " +
+                messageText + " - (" + entry.testRequestID + ")");
+
+      if (waiting) {
+        try {
+          new FileUtility(params).moveFileToArchiveDirectory(entry.fileName, params);
+        } catch (Exception ex) {
+          log.write("Error moving test request " + entry.testRequestID + " to archive: " + ex.getMessage());
+        }
+        claims.releaseRequest(entry.fileName);
+      }
+      this.completed(entry.testRequestID);
+    }
+
+    // Start from a journal of the tests still of interest
+    synchronized (this) {
+      if (journalChannel != null) {
+        try {
+          this.compact();
+        } catch (IOException ex) {
+          log.writeStackTrace("Could not compact the test journal, journaling is disabled", ex);
+          this.closeJournal();
+        }
+      }
+    }
+    return failed;
+  }
+
+  /**
+   * Journals a test request handed to the executor
+   * @param testRequestID - the test request ID
+   * @param fileName - the test request file
+   */
+  public void admitted(String testRequestID, String fileName) {
+    if (journalFile == null)
+      return;
+    Entry entry = new Entry(testRequestID);
+    entry.fileName = fileName;
+    entries.put(testRequestID, entry);
+    this.append(ADMIT, testRequestID, fileName);
+  }
+
+  /**
+   * Journals a parsed test request
+   * @param testRequestID - the test request ID
+   * @param partner - the trading partner
+   * @param evaluateTestID - the response ID of the test result
+   */
+  public void parsed(String testRequestID, String partner, String evaluateTestID) {
+    Entry entry = this.getEntry(testRequestID);
+    if (entry == null)
+      return;
+    entry.partner = partner;
+    entry.evaluateTestID = evaluateTestID;
+    entry.state = State.PARSED;
+    this.append(PARSE, testRequestID, valueOf(partner), valueOf(evaluateTestID));
+  }
+
+  /**
+   * Journals that the ACK of a test request was written
+   */
+  public void acknowledged(String testRequestID) {
+    this.advance(testRequestID, State.ACKED, ACK);
+  }
+
+  /**
+   * Journals that the request file of a test request was archived
+   */
+  public void archived(String testRequestID) {
+    this.advance(testRequestID, State.ARCHIVED, ARCHIVE);
+  }
+
+  /**
+   * Journals that a test request is complete, its test result was written
+   */
+  public void completed(String testRequestID) {
+    this.advance(testRequestID, State.COMPLETED, COMPLETE);
+  }
+
+  /**
+   * Journals that a running test request was cancelled
+   */
+  public void cancelled(String testRequestID) {
+    Entry entry = this.getEntry(testRequestID);
+    if (entry == null || entry.cancelled)
+      return;
+    entry.cancelled = true;
+    this.append(CANCEL, testRequestID);
+  }
+
+  /**
+   * Returns true if the test request was journaled as complete and its result written
+   * @param testRequestID - the test request ID
+   */
+  public boolean isCompleted(String testRequestID) {
+    Entry entry = entries.get(testRequestID);
+    return (entry != null) && (entry.state == State.COMPLETED);
+  }
+
+  /**
+   * Returns the journaled state of a test request, or null if it is not in the journal
+   */
+  public State getState(String testRequestID) {
+    Entry entry = entries.get(testRequestID);
+    return (entry != null) ? entry.state : null;
+  }
+
+  /**
+   * Returns the number of journaled tests that are not complete
+   */
+  public int getUnfinishedCount() {
+    int count = 0;
+    for (Entry entry : entries.values()) {
+      if (entry.state != State.COMPLETED)
+        count++;
+    }
+    return count;
+  }
+
+  private Entry getEntry(String testRequestID) {
+    return (journalFile != null && testRequestID != null) ? entries.get(testRequestID) : null;
+  }
+
+  private void advance(String testRequestID, State state, String type) {
+    Entry entry = this.getEntry(testRequestID);
+    if (entry == null || entry.state.compareTo(state) >= 0)
+      return;
+    entry.state = state;
+    this.append(type, testRequestID);
+  }
+
+  private static String valueOf(String value) {
+    return FHIRplaceUtil.isNullOrEmpty(value) ? NONE : value;
+  }
+
+  private static String fromValue(String value) {
+    return NONE.equals(value) ? null : value;
+  }
+
+  /**
+   * Appends one record to the journal, and compacts the journal once most of its lines are superseded
+   */
+  private synchronized void append(String... fields) {
+    if (journalChannel == null)
+      return;
+    try {
+      writeRecord(journalChannel, fields);
+      if (force)
+        journalChannel.force(false);
+      if (++recordsSinceCompaction > 2 * entries.size() + 1000)
+        this.compact();
+    } catch (IOException ex) {
+      log.writeStackTrace("Could not write to the test journal, journaling is disabled", ex);
+      this.closeJournal();
+    }
+  }
+
+  private static void writeRecord(FileChannel channel, String... fields) throws IOException {
+    String payload = String.join("\t", fields);
+    byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+    CRC32C crc = new CRC32C();
+    crc.update(bytes);
+    String line = String.format("%08x ", crc.getValue()) + payload + "\n";
+    ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Replays the journal, stopping at the first record that is incomplete or does not check out
+   * @return the number of records read
+   */
+  private int readJournal() throws IOException {
+    int records = 0;
+    try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = checkRecord(line);
+        if (fields == null) {
+          log.write("Warning: Test journal " + journalFile + " ends with a damaged record after " +
+                    records + " records, the rest is ignored");
+          break;
+        }
+        records++;
+        this.replay(fields);
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Returns the fields of a journal line, or null if its checksum doesn't match
+   */
+  static String[] checkRecord(String line) {
+    if (line.length() < 10 || line.charAt(8) != ' ')
+      return null;
+    String payload = line.substring(9);
+    CRC32C crc = new CRC32C();
+    crc.update(payload.getBytes(StandardCharsets.UTF_8));
+    try {
+      if (Long.parseLong(line.substring(0, 8), 16) != crc.getValue())
+        return null;
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+    String[] fields = payload.split("\t", -1);
+    return (fields.length >= 2) ? fields : null;
+  }
+
+  private void replay(String[] fields) {
+    String type = fields[0];
+    String testRequestID = fields[1];
+    Entry entry;
+    switch (type) {
+      case ADMIT:
+        entry = new Entry(testRequestID);
+        entry.fileName = (fields.length > 2) ? fields[2] : null;
+        entries.put(testRequestID, entry);
+        break;
+      case ENTRY:
+        if (fields.length < 7)
+          break;
+        entry = new Entry(testRequestID);
+        entry.state = State.valueOf(fields[2]);
+        entry.fileName = fromValue(fields[3]);
+        entry.partner = fromValue(fields[4]);
+        entry.evaluateTestID = fromValue(fields[5]);
+        entry.cancelled = Boolean.parseBoolean(fields[6]);
+        entries.put(testRequestID, entry);
+        break;
+      case PARSE:
+        entry = entries.get(testRequestID);
+        if (entry != null && fields.length > 3) {
+          entry.partner = fromValue(fields[2]);
+          entry.evaluateTestID = fromValue(fields[3]);
+          entry.state = State.PARSED;
+        }
+        break;
+      case ACK:
+      case ARCHIVE:
+      case COMPLETE:
+        entry = entries.get(testRequestID);
+        if (entry != null) {
+          State state = type.equals(ACK) ? State.ACKED : type.equals(ARCHIVE) ? State.ARCHIVED : State.COMPLETED;
+          if (entry.state.compareTo(state) < 0)
+            entry.state = state;
+        }
+        break;
+      case CANCEL:
+        entry = entries.get(testRequestID);
+        if (entry != null)
+          entry.cancelled = true;
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Writes the tests still of interest to a new journal and replaces the old one with it
+   */
+  private synchronized void compact() throws IOException {
+    this.closeJournal();
+
+    // Completed tests are found as duplicates by the archive index once their request is archived,
+    // or are of no interest when their request file is gone
+    entries.values().removeIf(entry -> entry.state == State.COMPLETED && 
+                                       (this.isArchived(entry) || !isWaiting(entry)));
+
+    Path temp = journalFile.resolveSibling("." + journalFile.getFileName() + ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                  StandardOpenOption.TRUNCATE_EXISTING)) {
+        for (Entry entry : entries.values()) {
+          writeRecord(channel, ENTRY, entry.testRequestID, entry.state.name(), valueOf(entry.fileName),
+                      valueOf(entry.partner), valueOf(entry.evaluateTestID), Boolean.toString(entry.cancelled));
+        }
+        channel.force(true);
+      }
+      try {
+        Files.move(temp, journalFile, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(temp, journalFile, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException | RuntimeException ex) {
+      Files.deleteIfExists(temp);
+      throw ex;
+    }
+    journalChannel = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    recordsSinceCompaction = 0;
+  }
+
+  private boolean isArchived(Entry entry) {
+    return archiveIndex != null && archiveIndex.isLoaded() && entry.fileName != null &&
+           archiveIndex.exists(new File(entry.fileName).getName());
+  }
+
+  private static boolean isWaiting(Entry entry) {
+    return entry.fileName != null && new File(entry.fileName).exists();
+  }
+
+  private void closeJournal() {
+    if (journalChannel != null) {
+      try {
+        journalChannel.close();
+      } catch (IOException ex) {
+        // Nothing more can be done
+      }
+      journalChannel = null;
+    }
+  }
+
+  /**
+   * Stops journaling
+   */
+  public synchronized void close() {
+    this.closeJournal();
+  }
+
+  @Override
+  public String toString() {
+    return (journalFile != null) ? journalFile + ", " + entries.size() + " tests" : "none";
+  }
+}
@@ -0,0 +1,318 @@
+package com.dgi.fhirplace.handler;
+
+import java.lang.reflect.Method;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs the ProcessTestRequest tasks.  Virtual threads are used when
+ * the Java runtime supports them (Java 21+), otherwise a fixed pool of platform
+ * threads is used.  The number of running tests and the number of tests waiting
+ * to run are both limited, and the admission policy decides what happens to
+ * a new test request when that limit has been reached:
+ *   - block:      the caller waits until there is room for the test request
+ *   - callerruns: the test request is processed on the calling thread
+ *   - reject:     the test request is refused and may be submitted again later
+ *
+ * An admitted test request is first prepared (parsed), so the TestScheduler can
+ * place it, and then waits with the other prepared test requests until there is
+ * room to run.  Whenever a test request completes, the first one in the
+ * scheduler's order is started.  A test request waiting for its trading partner
+ * no longer takes room to run, but keeps its place among the admitted ones until
+ * it has run, so the limits also hold for a backlog for a single partner.
+ *
+ * Cancel requests skip all of this and start right away, see submitNow().
+ */
+public class TestRequestExecutor {
+
+  public enum AdmissionPolicy { BLOCK, CALLER_RUNS, REJECT }
+
+  /**
+   * A task that is prepared before it waits for room to run, and placed by the scheduler
+   */
+  public interface ScheduledTask extends Runnable {
+    /**
+     * Prepares the task, e.g., parses the test request
+     * @return the place of the task in the schedule
+     */
+    TestScheduler.Priority prepare();
+
+    /**
+     * Runs the task, which calls done once it has completed.  That may be after this
+     * returns, on another thread, when the task waits in line for its trading partner.
+     * @param done - gives up the task's place among the admitted test requests
+     */
+    void run(Runnable done);
+  }
+
+  /**
+   * A prepared task waiting for room to run
+   */
+  static class ReadyTask implements Comparable<ReadyTask> {
+    final TestScheduler.Priority priority;
+    final Runnable task;
+
+    ReadyTask(TestScheduler.Priority priority, Runnable task) {
+      this.priority = priority;
+      this.task = task;
+    }
+
+    @Override
+    public int compareTo(ReadyTask other) {
+      return this.priority.compareTo(other.priority);
+    }
+  }
+
+  Logger log = new Logger(TestRequestExecutor.class);
+
+  ExecutorService executor = null;
+  // Prepares the test requests, the same executor as the one running them for virtual threads
+  ExecutorService prepareExecutor = null;
+  // Runs the cancel requests, the same executor as the one running the tests for virtual threads
+  ExecutorService cancelExecutor = null;
+  boolean virtualThreads = false;
+  AdmissionPolicy admissionPolicy = AdmissionPolicy.BLOCK;
+  TestScheduler scheduler = null;
+
+  // Admitted test requests (being prepared, waiting and running)
+  Semaphore admitted = null;
+
+  // Prepared test requests waiting to run, and the number of running ones, guarded by ready
+  final PriorityQueue<ReadyTask> ready = new PriorityQueue<>();
+  int running = 0;
+
+  int maxActiveTests;
+  int maxQueuedTests;
+
+  AtomicInteger activeCount = new AtomicInteger();
+
+  public TestRequestExecutor(LocalParameters params) {
+    this.maxActiveTests = Math.max(params.getMaxActiveTests(), 1);
+    this.maxQueuedTests = Math.max(params.getMaxQueuedTests(), 0);
+    this.admissionPolicy = params.getAdmissionPolicy();
+    this.admitted = new Semaphore(maxActiveTests + maxQueuedTests);
+    this.scheduler = params.getTestScheduler();
+
+    if (params.isVirtualThreadExecutor()) {
+      executor = newVirtualThreadExecutor();
+    }
+    if (executor != null) {
+      // Every test gets its own virtual thread once there is room to run it
+      virtualThreads = true;
+      prepareExecutor = executor;
+      cancelExecutor = executor;
+    } else {
+      // Tests are only handed to the pool when there is room, so they never wait for a thread
+      executor = new ThreadPoolExecutor(maxActiveTests, maxActiveTests, 60L, TimeUnit.SECONDS,
+                                        new LinkedBlockingQueue<>(), new TestRequestThreadFactory("ProcessTestRequest-"));
+      // Parsing doesn't count as running, so a backlog is parsed and in the scheduler's order quickly
+      int prepareThreads = Runtime.getRuntime().availableProcessors();
+      prepareExecutor = new ThreadPoolExecutor(prepareThreads, prepareThreads, 60L, TimeUnit.SECONDS,
+                                               new LinkedBlockingQueue<>(), new TestRequestThreadFactory("PrepareTestRequest-"));
+      // A thread for each cancel request, they are few and short
+      cancelExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                                              new SynchronousQueue<>(), new TestRequestThreadFactory("CancelTestRequest-"));
+    }
+  }
+
+  /**
+   * Creates the virtual thread per task executor if the runtime provides one
+   * @return the executor or null if virtual threads are not available
+   */
+  private ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException | RuntimeException ex) {
+      log.write("Virtual threads are not available in Java " + System.getProperty("java.version") +
+                ", using a pool of " + maxActiveTests + " threads");
+      return null;
+    }
+  }
+
+  /**
+   * Submits a test request for processing according to the admission policy
+   * @param task - the test request task
+   * @return true if the task was accepted, false if it was rejected
+   * @throws InterruptedException if interrupted while waiting for room
+   */
+  public boolean submit(Runnable task) throws InterruptedException {
+    switch (admissionPolicy) {
+      case REJECT:
+        if (!admitted.tryAcquire())
+          return false;
+        break;
+      case CALLER_RUNS:
+        if (!admitted.tryAcquire()) {
+          task.run();
+          return true;
+        }
+        break;
+      default:
+        admitted.acquire();
+        break;
+    }
+
+    try {
+      prepareExecutor.execute(() -> this.prepare(task));
+    } catch (RejectedExecutionException ex) {
+      admitted.release();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Runs a cancel request right away, outside the admission limits and the scheduler, so it
+   * is never stuck behind the test requests waiting to run
+   * @param task - the cancel request task
+   * @return true if the task was started, false if the executor is shutting down
+   */
+  public boolean submitNow(Runnable task) {
+    try {
+      cancelExecutor.execute(task);
+    } catch (RejectedExecutionException ex) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Prepares an admitted task and puts it in line to run
+   */
+  private void prepare(Runnable task) {
+    TestScheduler.Priority priority;
+    try {
+      priority = (task instanceof ScheduledTask) ? ((ScheduledTask) task).prepare() : scheduler.admit();
+    } catch (RuntimeException ex) {
+      log.writeStackTrace("Unexpected error preparing test request", ex);
+      priority = scheduler.admit();
+    }
+    synchronized (ready) {
+      ready.add(new ReadyTask(priority, task));
+    }
+    this.startReady();
+  }
+
+  /**
+   * Starts the first waiting tasks in the scheduler's order while there is room to run them
+   */
+  private void startReady() {
+    while (true) {
+      ReadyTask next;
+      synchronized (ready) {
+        if (running >= maxActiveTests || ready.isEmpty())
+          return;
+        next = ready.poll();
+        running++;
+      }
+      try {
+        executor.execute(() -> this.runReady(next));
+      } catch (RejectedExecutionException ex) {
+        // Shutting down
+        synchronized (ready) {
+          running--;
+        }
+        admitted.release();
+        return;
+      }
+    }
+  }
+
+  private void runReady(ReadyTask next) {
+    Runnable done = this.newCompletion();
+    try {
+      activeCount.incrementAndGet();
+      if (next.task instanceof ScheduledTask) {
+        ((ScheduledTask) next.task).run(done);
+      } else {
+        next.task.run();
+        done.run();
+      }
+    } catch (RuntimeException ex) {
+      log.writeStackTrace("Unexpected error running test request", ex);
+      done.run();
+    } finally {
+      activeCount.decrementAndGet();
+      synchronized (ready) {
+        running--;
+      }
+      this.startReady();
+    }
+  }
+
+  /**
+   * Returns the callback that gives up the place of an admitted task when it completes, only once
+   */
+  private Runnable newCompletion() {
+    AtomicBoolean completed = new AtomicBoolean();
+    return () -> {
+      if (completed.compareAndSet(false, true))
+        admitted.release();
+    };
+  }
+
+  /**
+   * Returns the number of test requests currently running
+   */
+  public int getActiveCount() {
+    return activeCount.get();
+  }
+  /**
+   * Returns the number of admitted test requests waiting to run, or waiting for their partner
+   */
+  public int getQueuedCount() {
+    int waiting = (maxActiveTests + maxQueuedTests) - admitted.availablePermits() - activeCount.get();
+    return Math.max(waiting, 0);
+  }
+  public boolean isVirtualThreads() {
+    return this.virtualThreads;
+  }
+
+  /**
+   * Starts no more test requests, the running ones (and those waiting for their partner) still
+   * finish.  The test requests waiting to run are left in the directory, to be run at the next start.
+   */
+  public void shutdown() {
+    prepareExecutor.shutdown();
+    cancelExecutor.shutdown();
+    executor.shutdown();
+  }
+
+  /**
+   * Waits until the test requests running at shutdown() have finished, including the tests
+   * still waiting in the partner queues, which run on the thread of their partner's running test
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void awaitTermination() throws InterruptedException {
+    for (ExecutorService service : new ExecutorService[] { prepareExecutor, cancelExecutor, executor }) {
+      while (!service.awaitTermination(30, TimeUnit.SECONDS)) {
+        log.write("Waiting for " + this.getActiveCount() + " running test requests to finish");
+      }
+    }
+  }
+
+  // Inner class to name the platform threads that process test requests
+  class TestRequestThreadFactory implements ThreadFactory {
+    AtomicInteger threadCount = new AtomicInteger();
+    String prefix = null;
+
+    TestRequestThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      return new Thread(r, prefix + threadCount.incrementAndGet());
+    }
+  }
+}
@@ -0,0 +1,280 @@
+package com.dgi.fhirplace.handler;
+
+import com.dgi.fhirplace.parser.Description;
+import com.dgi.fhirplace.parser.Transmission;
+import com.dgi.fhirplace.util.FHIRplaceUtil;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalQuery;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class decides the order in which the admitted test requests run, when more
+ * of them are waiting than can run at once or when several wait for the same
+ * trading partner.
+ *
+ * With the "fifo" scheduler (the default) they run in the order they were admitted.
+ * With the "deadline" scheduler the test request with the earliest deadline runs
+ * first.  The deadline is the TimeStamp (Date and Time) of the test request plus the
+ * seconds of the first rule that matches it, or of the default deadline if none does:
+ *   com.dgi.handler.scheduler.rule.1=30;TestPhase=2;ExpectedResult=Failure
+ *   com.dgi.handler.scheduler.rule.2=300;TestCase=PDEX-*
+ * A rule is the deadline in seconds followed by field=value conditions that must
+ * all hold.  Values are compared without regard to case, and a value ending with
+ * "*" matches any field starting with the rest of it.
+ *
+ * So urgent test requests are not stuck behind a backlog of bulk ones, but a bulk
+ * test request does not wait forever either: once it has waited for the maximum
+ * wait time it runs before any test request whose deadline is later than that.
+ */
+public class TestScheduler {
+
+  /**
+   * The fields of a test request the rules can test
+   */
+  enum Field {
+    TESTCASE, TESTPHASE, TESTROUND, TESTPURPOSE, EXPECTEDRESULT, CONNECTIVITYTYPE, PROTOCOL, PURPOSE,
+    PARTNER, ORIGINATOR, ORIGINATORROLE, RECIPIENT, RECIPIENTROLE;
+
+    String valueOf(Description desc, Transmission trans, String partner) {
+      switch (this) {
+        case TESTCASE:         return (desc != null) ? desc.getTestCase() : null;
+        case TESTPHASE:        return (desc != null) ? desc.getTestPhase() : null;
+        case TESTROUND:        return (desc != null) ? desc.getTestName() : null;
+        case TESTPURPOSE:      return (desc != null) ? desc.getTestPurpose() : null;
+        case EXPECTEDRESULT:   return (desc != null) ? desc.getExpectedResult() : null;
+        case CONNECTIVITYTYPE: return (desc != null) ? desc.getConnectivityType() : null;
+        case PROTOCOL:         return (desc != null) ? desc.getProtocol() : null;
+        case PURPOSE:          return (desc != null) ? desc.getPurpose() : null;
+        case PARTNER:          return partner;
+        case ORIGINATOR:       return (trans != null) ? trans.getOriginator() : null;
+        case ORIGINATORROLE:   return (trans != null) ? trans.getOriginatorRole() : null;
+        case RECIPIENT:        return (trans != null) ? trans.getRecipient() : null;
+        case RECIPIENTROLE:    return (trans != null) ? trans.getRecipientRole() : null;
+        default:               return null;
+      }
+    }
+  }
+
+  /**
+   * A deadline and the conditions a test request must meet to get it
+   */
+  static class Rule {
+    final String text;
+    final long deadlineMillis;
+    final List<Field> fields = new ArrayList<>();
+    final List<String> values = new ArrayList<>();
+
+    Rule(String text, long deadlineMillis) {
+      this.text = text;
+      this.deadlineMillis = deadlineMillis;
+    }
+
+    boolean matches(Description desc, Transmission trans, String partner) {
+      for (int i = 0; i < fields.size(); i++) {
+        String value = fields.get(i).valueOf(desc, trans, partner);
+        String expected = values.get(i);
+        if (value == null)
+          return false;
+        value = value.trim().toLowerCase(Locale.ROOT);
+        if (expected.endsWith("*") ? !value.startsWith(expected.substring(0, expected.length() - 1)) :
+                                     !value.equals(expected))
+          return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * The place of a test request in the schedule, the earliest key runs first and
+   * test requests with the same key run in the order they were admitted
+   */
+  public static class Priority implements Comparable<Priority> {
+    final long sequence;
+    final long admittedMillis;
+    final long deadlineMillis;
+    final long key;
+
+    Priority(long sequence, long admittedMillis, long deadlineMillis, long key) {
+      this.sequence = sequence;
+      this.admittedMillis = admittedMillis;
+      this.deadlineMillis = deadlineMillis;
+      this.key = key;
+    }
+
+    @Override
+    public int compareTo(Priority other) {
+      int order = Long.compare(this.key, other.key);
+      return (order != 0) ? order : Long.compare(this.sequence, other.sequence);
+    }
+
+    public long getDeadlineMillis() {
+      return this.deadlineMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "#" + sequence + ((deadlineMillis != Long.MAX_VALUE) ? " due " + Instant.ofEpochMilli(deadlineMillis) : "");
+    }
+  }
+
+  static final DateTimeFormatter[] DATE_FORMATS = {
+    DateTimeFormatter.ISO_LOCAL_DATE, DateTimeFormatter.ofPattern("MM/dd/yyyy"), DateTimeFormatter.BASIC_ISO_DATE
+  };
+  static final DateTimeFormatter[] TIME_FORMATS = {
+    DateTimeFormatter.ISO_LOCAL_TIME, DateTimeFormatter.ofPattern("HHmmss")
+  };
+
+  Logger log = new Logger(TestScheduler.class);
+
+  boolean deadlineScheduling = false;
+  long defaultDeadlineMillis = 0;
+  long maxWaitMillis = 0;
+  List<Rule> rules = new ArrayList<>();
+
+  final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * @param params - the LocalParameters object with the scheduler settings
+   */
+  public TestScheduler(LocalParameters params) {
+    this.deadlineScheduling = params.isDeadlineScheduler();
+    this.defaultDeadlineMillis = Math.max(params.getSchedulerDeadline(), 0) * 1000L;
+    this.maxWaitMillis = Math.max(params.getSchedulerMaxWait(), 0) * 1000L;
+    if (deadlineScheduling) {
+      for (String rule : params.getSchedulerRules()) {
+        this.addRule(rule);
+      }
+    }
+  }
+
+  /**
+   * Returns true if the test requests are run by deadline, false if in the order they were admitted
+   */
+  public boolean isDeadlineScheduling() {
+    return this.deadlineScheduling;
+  }
+
+  /**
+   * Returns the place of a newly admitted test request, before it is parsed
+   */
+  public Priority admit() {
+    return new Priority(sequence.incrementAndGet(), System.currentTimeMillis(), Long.MAX_VALUE, 0);
+  }
+
+  /**
+   * Returns the place of a parsed test request, by its deadline
+   * @param admitted - the place given to the test request when it was admitted
+   * @param desc - the test request's Description, null if it could not be parsed
+   * @param trans - the test request's Transmission, null if it could not be parsed
+   * @param partner - the trading partner
+   */
+  public Priority prioritize(Priority admitted, Description desc, Transmission trans, String partner) {
+    if (!deadlineScheduling)
+      return admitted;
+
+    // A test request that can't be parsed is only answered with a NAK and a cancel request
+    // stops another test, so they are done right away
+    if (desc == null || "CancelRequest".equalsIgnoreCase(desc.getPurpose()))
+      return new Priority(admitted.sequence, admitted.admittedMillis, admitted.admittedMillis, Long.MIN_VALUE);
+
+    long budget = defaultDeadlineMillis;
+    for (Rule rule : rules) {
+      if (rule.matches(desc, trans, partner)) {
+        budget = rule.deadlineMillis;
+        break;
+      }
+    }
+    // A clock ahead of ours doesn't push the deadline back
+    long requested = Math.min(this.getTimeStamp(desc, admitted.admittedMillis), admitted.admittedMillis);
+    long deadline = requested + budget;
+    // Waiting longer than the maximum wait counts as being due
+    long key = (maxWaitMillis > 0) ? Math.min(deadline, admitted.admittedMillis + maxWaitMillis) : deadline;
+    return new Priority(admitted.sequence, admitted.admittedMillis, deadline, key);
+  }
+
+  /**
+   * Returns the time of the test request's TimeStamp, or the time it was admitted if it has none
+   */
+  long getTimeStamp(Description desc, long admittedMillis) {
+    if (FHIRplaceUtil.isNullOrEmpty(desc.getDate()))
+      return admittedMillis;
+    LocalDate date = parse(desc.getDate().trim(), DATE_FORMATS, LocalDate::from);
+    if (date == null)
+      return admittedMillis;
+    LocalTime time = LocalTime.MIDNIGHT;
+    if (!FHIRplaceUtil.isNullOrEmpty(desc.getTime())) {
+      time = parse(desc.getTime().trim(), TIME_FORMATS, LocalTime::from);
+      if (time == null)
+        return admittedMillis;
+    }
+    return LocalDateTime.of(date, time).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+  }
+
+  private static <T> T parse(String text, DateTimeFormatter[] formats, TemporalQuery<T> query) {
+    for (DateTimeFormatter format : formats) {
+      try {
+        return format.parse(text, query);
+      } catch (DateTimeParseException ex) {
+        // Try the next format
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Adds a rule of the form "seconds;field=value;field=value"
+   */
+  void addRule(String text) {
+    String[] parts = text.split(";");
+    Rule rule;
+    try {
+      rule = new Rule(text.trim(), Long.parseLong(parts[0].trim()) * 1000L);
+    } catch (NumberFormatException ex) {
+      log.write("Warning: Ignoring the scheduler rule \"" + text + "\", it does not start with a number of seconds");
+      return;
+    }
+    for (int i = 1; i < parts.length; i++) {
+      if (parts[i].trim().isEmpty())
+        continue;
+      int equals = parts[i].indexOf('=');
+      Field field = null;
+      if (equals > 0) {
+        try {
+          field = Field.valueOf(parts[i].substring(0, equals).trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+          field = null;
+        }
+      }
+      if (field == null) {
+        log.write("Warning: Ignoring the scheduler rule \"" + text + "\", \"" + parts[i].trim() +
+                  "\" is not a known field=value condition");
+        return;
+      }
+      rule.fields.add(field);
+      rule.values.add(parts[i].substring(equals + 1).trim().toLowerCase(Locale.ROOT));
+    }
+    rules.add(rule);
+  }
+
+  @Override
+  public String toString() {
+    if (!deadlineScheduling)
+      return "fifo";
+    StringBuilder text = new StringBuilder("deadline, default " + (defaultDeadlineMillis / 1000) + " s, ");
+    text.append((maxWaitMillis > 0) ? "maximum wait " + (maxWaitMillis / 1000) + " s" : "no maximum wait");
+    for (Rule rule : rules) {
+      text.append("; [").append(rule.text).append("]");
+    }
+    return text.toString();
+  }
+}
@@ -0,0 +1,147 @@
+package com.dgi.fhirplace.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with a fixed relative precision, in the style of an
+ * HDR histogram.  Durations are counted in microseconds: every power of two is
+ * split into 32 equal buckets, so a value read back is within about 3% of the
+ * recorded one.  Durations up to about 70 minutes are kept apart, longer ones
+ * are counted in the last bucket.
+ *
+ * Recording only updates counters (no locks, no allocation), so it can be done
+ * by any number of threads at once.  Values read while recording is going on
+ * may be off by the few durations being recorded at that moment.
+ */
+public class LatencyHistogram {
+
+  static final int SUB_BUCKET_BITS = 5;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int MAX_EXPONENT = 31;
+  static final long MAX_MICROS = (1L << (MAX_EXPONENT + 1)) - 1;
+  static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+  final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  final AtomicLong count = new AtomicLong();
+  final AtomicLong totalNanos = new AtomicLong();
+  final AtomicLong maxNanos = new AtomicLong();
+
+  /**
+   * Records one duration
+   * @param nanos - the duration in nanoseconds, negative values are counted as 0
+   */
+  public void record(long nanos) {
+    if (nanos < 0)
+      nanos = 0;
+    counts.incrementAndGet(getBucket(nanos / 1000));
+    count.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+    maxNanos.accumulateAndGet(nanos, Math::max);
+  }
+
+  /**
+   * Returns the bucket of a value, the buckets are in increasing value order
+   */
+  static int getBucket(long micros) {
+    if (micros < SUB_BUCKETS)
+      return (int) micros;
+    if (micros > MAX_MICROS)
+      micros = MAX_MICROS;
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * Returns the lowest value counted in a bucket
+   */
+  static long getBucketStart(int bucket) {
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    int subBucket = bucket % SUB_BUCKETS;
+    return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+  public long getTotalNanos() {
+    return totalNanos.get();
+  }
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+  public long getMeanNanos() {
+    long n = count.get();
+    return (n == 0) ? 0 : totalNanos.get() / n;
+  }
+
+  /**
+   * Returns the duration below which the given fraction of the recorded durations lie
+   * @param fraction - between 0 and 1, e.g., 0.99 for the 99th percentile
+   * @return the duration in nanoseconds, 0 if nothing was recorded
+   */
+  public long getPercentileNanos(double fraction) {
+    long n = count.get();
+    if (n == 0)
+      return 0;
+    long rank = Math.max(1, (long) Math.ceil(fraction * n));
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += counts.get(bucket);
+      if (seen >= rank) {
+        // The middle of the bucket, but never more than the largest recorded duration
+        long start = getBucketStart(bucket);
+        long end = (bucket + 1 < BUCKETS) ? getBucketStart(bucket + 1) : start + 1;
+        return Math.min((start + end) * 500, maxNanos.get());
+      }
+    }
+    return maxNanos.get();
+  }
+
+  /**
+   * Returns the number of durations at most each limit, a duration in the same
+   * bucket as a limit is counted as at most the limit
+   * @param limitsNanos - the limits in nanoseconds, in increasing order
+   * @return the cumulative count for each limit
+   */
+  public long[] getCumulativeCounts(long[] limitsNanos) {
+    long[] cumulative = new long[limitsNanos.length];
+    long seen = 0;
+    int bucket = 0;
+    for (int i = 0; i < limitsNanos.length; i++) {
+      int last = getBucket(limitsNanos[i] / 1000);
+      for (; bucket <= last; bucket++) {
+        seen += counts.get(bucket);
+      }
+      cumulative[i] = seen;
+    }
+    return cumulative;
+  }
+
+  /**
+   * Returns the number of durations counted in each bucket together with the bucket's
+   * upper limit in nanoseconds, for the buckets that counted anything
+   * @return pairs of { upper limit, count } in increasing order
+   */
+  public long[][] getBuckets() {
+    int used = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      snapshot[bucket] = counts.get(bucket);
+      if (snapshot[bucket] > 0)
+        used++;
+    }
+    long[][] buckets = new long[used][];
+    int next = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      if (snapshot[bucket] > 0) {
+        long end = (bucket + 1 < BUCKETS) ? getBucketStart(bucket + 1) : Long.MAX_VALUE / 1000;
+        buckets[next++] = new long[] { end * 1000, snapshot[bucket] };
+      }
+    }
+    return buckets;
+  }
+}
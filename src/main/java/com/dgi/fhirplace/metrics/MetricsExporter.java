@@ -0,0 +1,219 @@
+package com.dgi.fhirplace.metrics;
+
+import com.dgi.fhirplace.handler.FHIRplaceConstants;
+import com.dgi.fhirplace.handler.FHIRplaceHandler;
+import com.dgi.fhirplace.handler.LocalParameters;
+import com.dgi.fhirplace.handler.Logger;
+import com.dgi.fhirplace.handler.ProcessIncomingMessages;
+import com.dgi.fhirplace.util.AtomicFileWriter;
+import com.dgi.fhirplace.util.FHIRplaceUtil;
+import com.dgi.fhirplace.util.FileCleanupScheduler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class makes the handler's internal state available to a monitoring
+ * system in the Prometheus text format, either from an HTTP endpoint
+ * (http://host:port/metrics) or as a file written periodically for a
+ * textfile collector (e.g., the node exporter's).  Both may be used at once.
+ *
+ * The values are read when the metrics are requested, nothing is kept for them
+ * in between apart from the counters of TestMetrics.
+ */
+public class MetricsExporter {
+
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  // Upper limits of the histogram buckets exported for the phase durations, in seconds
+  static final double[] BUCKET_LIMITS =
+    { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600 };
+  static final long[] BUCKET_LIMIT_NANOS = new long[BUCKET_LIMITS.length + 1];
+  static {
+    for (int i = 0; i < BUCKET_LIMITS.length; i++) {
+      BUCKET_LIMIT_NANOS[i] = (long) (BUCKET_LIMITS[i] * 1_000_000_000L);
+    }
+    // Everything, for +Inf
+    BUCKET_LIMIT_NANOS[BUCKET_LIMITS.length] = Long.MAX_VALUE;
+  }
+
+  Logger log = new Logger(MetricsExporter.class);
+
+  FHIRplaceHandler handler = null;
+  LocalParameters params = null;
+
+  HttpServer server = null;
+  ScheduledExecutorService scheduler = null;
+
+  public MetricsExporter(FHIRplaceHandler handler, LocalParameters params) {
+    this.handler = handler;
+    this.params = params;
+  }
+
+  /**
+   * Serves the metrics over HTTP at /metrics
+   * @param host - the address to listen on, e.g., 127.0.0.1 for local scrapes only
+   * @param port - the port to listen on
+   * @throws IOException if the port can't be opened
+   */
+  public void startHttpServer(String host, int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(host, port), 0);
+    server.createContext("/metrics", this::handle);
+    server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "MetricsExporter");
+      thread.setDaemon(true);
+      return thread;
+    }));
+    server.start();
+    log.write("Serving metrics at http://" + host + ":" + server.getAddress().getPort() + "/metrics");
+  }
+
+  /**
+   * Writes the metrics to a file every interval, the file is replaced in one step
+   * @param fileName - the file to write, should end in .prom for the node exporter
+   * @param intervalSeconds - seconds between two writes
+   */
+  public void startTextFile(String fileName, int intervalSeconds) {
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "MetricsTextFile");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(() -> this.writeTextFile(fileName), 0, Math.max(intervalSeconds, 1), TimeUnit.SECONDS);
+    log.write("Writing metrics to " + fileName + " every " + Math.max(intervalSeconds, 1) + " seconds");
+  }
+
+  public void shutdown() {
+    if (server != null)
+      server.stop(0);
+    if (scheduler != null)
+      scheduler.shutdown();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      byte[] body = this.scrape().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    } catch (IOException | RuntimeException ex) {
+      log.writeStackTrace("Could not serve the metrics", ex);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void writeTextFile(String fileName) {
+    try {
+      AtomicFileWriter.write(fileName, this.scrape().getBytes(StandardCharsets.UTF_8), false);
+    } catch (IOException | RuntimeException ex) {
+      log.write("Warning: Could not write the metrics to " + fileName + ": " + ex.getMessage());
+    }
+  }
+
+  /**
+   * Returns the current metrics in the Prometheus text format
+   */
+  public String scrape() {
+    StringBuilder text = new StringBuilder(4096);
+
+    gauge(text, "fhirplace_active_tests", "Test requests being processed",
+          params.getActiveTests().size());
+    gauge(text, "fhirplace_cancelled_test_requests", "Cancelled test requests not yet cleared",
+          params.getCancelledTestRequests().size());
+    gauge(text, "fhirplace_test_request_table_size", "Entries in the test request table",
+          ProcessIncomingMessages.testRequestTable.size());
+
+    ProcessIncomingMessages incoming = handler.getIncomingMessageProcessor();
+    if (incoming != null) {
+      gauge(text, "fhirplace_request_directory_files", "Test and cancel request files in the test request directory",
+            incoming.getRequestDirectoryCount());
+      gauge(text, "fhirplace_unconsumed_status_files",
+            "Status and upload files not consumed by the client after five minutes, at the last check",
+            incoming.getOldStatusFileCount());
+    }
+
+    FileCleanupScheduler cleanup = FileCleanupScheduler.getInstance();
+    gauge(text, "fhirplace_pending_deletes", "Files waiting to be deleted in the background",
+          cleanup.getPendingCount());
+    counter(text, "fhirplace_abandoned_deletes_total", "Files that could not be deleted",
+            cleanup.getAbandonedCount());
+    counter(text, "fhirplace_log_dropped_total", "Log messages dropped because the log buffer was full",
+            Logger.getDroppedCount());
+
+    TestMetrics metrics = TestMetrics.getInstance();
+    header(text, "fhirplace_status_writes_total", "Status files written, by status type", "counter");
+    for (int type = 0; type < FHIRplaceConstants.NUM_STATUS_TYPES; type++) {
+      text.append("fhirplace_status_writes_total{type=\"").append(FHIRplaceUtil.getStatusTypeDescription(type))
+          .append("\"} ").append(metrics.getStatusWriteCount(type)).append('\n');
+    }
+
+    header(text, "fhirplace_phase_duration_seconds", "Duration of the phases of the test requests", "histogram");
+    for (PhaseTimings timings : metrics.getTaggedTimings()) {
+      for (Phase phase : Phase.VALUES) {
+        LatencyHistogram histogram = timings.getHistogram(phase);
+        if (histogram != null)
+          appendHistogram(text, timings, phase, histogram);
+      }
+    }
+    return text.toString();
+  }
+
+  static void appendHistogram(StringBuilder text, PhaseTimings timings, Phase phase, LatencyHistogram histogram) {
+    StringBuilder labels = new StringBuilder();
+    labels.append("phase=\"").append(phase.name().toLowerCase()).append('"');
+    labels.append(",test_case=\"").append(escape(timings.getTestCase())).append('"');
+    labels.append(",data_type=\"").append(escape(timings.getDataType())).append('"');
+    labels.append(",partner=\"").append(escape(timings.getPartner())).append('"');
+
+    long[] cumulative = histogram.getCumulativeCounts(BUCKET_LIMIT_NANOS);
+    for (int i = 0; i < BUCKET_LIMITS.length; i++) {
+      text.append("fhirplace_phase_duration_seconds_bucket{").append(labels)
+          .append(",le=\"").append(BUCKET_LIMITS[i]).append("\"} ").append(cumulative[i]).append('\n');
+    }
+    long count = cumulative[BUCKET_LIMITS.length];
+    text.append("fhirplace_phase_duration_seconds_bucket{").append(labels)
+        .append(",le=\"+Inf\"} ").append(count).append('\n');
+    text.append("fhirplace_phase_duration_seconds_sum{").append(labels).append("} ")
+        .append(histogram.getTotalNanos() / 1e9).append('\n');
+    text.append("fhirplace_phase_duration_seconds_count{").append(labels).append("} ")
+        .append(count).append('\n');
+  }
+
+  static void header(StringBuilder text, String name, String help, String type) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  static void gauge(StringBuilder text, String name, String help, long value) {
+    header(text, name, help, "gauge");
+    text.append(name).append(' ').append(value).append('\n');
+  }
+
+  static void counter(StringBuilder text, String name, String help, long value) {
+    header(text, name, help, "counter");
+    text.append(name).append(' ').append(value).append('\n');
+  }
+
+  /**
+   * Escapes a label value as the text format requires
+   */
+  static String escape(String value) {
+    if (value.indexOf('\\') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0)
+      return value;
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
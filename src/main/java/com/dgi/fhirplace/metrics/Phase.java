@@ -0,0 +1,20 @@
+package com.dgi.fhirplace.metrics;
+
+/**
+ * The timed phases of a test request
+ */
+public enum Phase {
+  PARSE,          // parsing the test request file
+  SCHEDULE_WAIT,  // waiting, once parsed, for the scheduler to start the test
+  PARTNER_WAIT,   // waiting for the partner's earlier tests to complete
+  ACK,            // writing the ACK status
+  SEND,           // SendAsClient.send()
+  RECEIVE,        // ReceiveAsServer.receive()
+  UPLOAD,         // writing one upload file
+  RESPONSE,       // the response to the initial send or receive, including its uploads
+  EVALUATE,       // evaluating the test and writing its result status
+  ARCHIVE,        // moving the test request and its payload to the archive
+  TOTAL;          // the whole test request, from parsing to the last status (partner wait included)
+
+  static final Phase[] VALUES = values();
+}
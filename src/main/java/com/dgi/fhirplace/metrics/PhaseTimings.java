@@ -0,0 +1,75 @@
+package com.dgi.fhirplace.metrics;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The phase durations of the test requests sharing one test case, data type and
+ * partner.  A test request looks its PhaseTimings up once and records all its
+ * phases on it; every duration is also added to the totals of all test requests.
+ */
+public class PhaseTimings {
+
+  final String testCase;
+  final String dataType;
+  final String partner;
+
+  // One histogram per phase, created the first time the phase is recorded
+  final AtomicReferenceArray<LatencyHistogram> histograms = new AtomicReferenceArray<>(Phase.VALUES.length);
+  final PhaseTimings overall;
+
+  PhaseTimings(String testCase, String dataType, String partner, PhaseTimings overall) {
+    this.testCase = testCase;
+    this.dataType = dataType;
+    this.partner = partner;
+    this.overall = overall;
+  }
+
+  /**
+   * Records the duration of a phase
+   * @param phase - the phase
+   * @param nanos - the duration in nanoseconds
+   */
+  public void record(Phase phase, long nanos) {
+    this.getHistogram(phase, true).record(nanos);
+    if (overall != null)
+      overall.record(phase, nanos);
+  }
+
+  /**
+   * Records the duration of a phase that started at the given System.nanoTime()
+   * @param phase - the phase
+   * @param startNanos - System.nanoTime() at the start of the phase
+   * @return System.nanoTime() at the end of the phase, to start the next one
+   */
+  public long recordSince(Phase phase, long startNanos) {
+    long now = System.nanoTime();
+    this.record(phase, now - startNanos);
+    return now;
+  }
+
+  /**
+   * Returns the histogram of a phase, or null if the phase was never recorded
+   */
+  public LatencyHistogram getHistogram(Phase phase) {
+    return this.getHistogram(phase, false);
+  }
+
+  private LatencyHistogram getHistogram(Phase phase, boolean create) {
+    LatencyHistogram histogram = histograms.get(phase.ordinal());
+    if (histogram == null && create) {
+      histograms.compareAndSet(phase.ordinal(), null, new LatencyHistogram());
+      histogram = histograms.get(phase.ordinal());
+    }
+    return histogram;
+  }
+
+  public String getTestCase() {
+    return this.testCase;
+  }
+  public String getDataType() {
+    return this.dataType;
+  }
+  public String getPartner() {
+    return this.partner;
+  }
+}
@@ -0,0 +1,169 @@
+package com.dgi.fhirplace.metrics;
+
+import com.dgi.fhirplace.handler.FHIRplaceConstants;
+import com.dgi.fhirplace.handler.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class keeps the phase durations of all test requests, by test case, data
+ * type and partner, and in total.  The durations can be read at any time and
+ * are written to the log periodically.
+ *
+ * Usage from a test request:
+ *   PhaseTimings timings = TestMetrics.getInstance().forTest(testCase, dataType, partner);
+ *   long start = System.nanoTime();
+ *   ...
+ *   start = timings.recordSince(Phase.ACK, start);
+ */
+public class TestMetrics {
+
+  static final String NONE = "-";
+
+  Logger log = new Logger(TestMetrics.class);
+
+  final PhaseTimings overall = new PhaseTimings(NONE, NONE, NONE, null);
+  final ConcurrentHashMap<String, PhaseTimings> tagged = new ConcurrentHashMap<>();
+
+  // Status files written, by status type
+  final AtomicLongArray statusWrites = new AtomicLongArray(FHIRplaceConstants.NUM_STATUS_TYPES);
+
+  ScheduledExecutorService scheduler = null;
+  long lastDumpedCount = -1;
+
+  private static class InstanceHolder {
+    static final TestMetrics INSTANCE = new TestMetrics();
+  }
+
+  /**
+   * Returns the metrics shared by the whole handler
+   */
+  public static TestMetrics getInstance() {
+    return InstanceHolder.INSTANCE;
+  }
+
+  TestMetrics() {
+  }
+
+  /**
+   * Returns the timings of the test requests with the given tags
+   * @param testCase - the test case, may be null
+   * @param dataType - the data type sent or received first, may be null
+   * @param partner - the trading partner, may be null
+   */
+  public PhaseTimings forTest(String testCase, String dataType, String partner) {
+    String tc = (testCase != null) ? testCase : NONE;
+    String dt = (dataType != null) ? dataType : NONE;
+    String tp = (partner != null) ? partner : NONE;
+    return tagged.computeIfAbsent(tc + '|' + dt + '|' + tp, key -> new PhaseTimings(tc, dt, tp, overall));
+  }
+
+  /**
+   * Returns the timings of all test requests together
+   */
+  public PhaseTimings getOverall() {
+    return this.overall;
+  }
+
+  /**
+   * Returns the timings of every combination of tags recorded so far
+   */
+  public Collection<PhaseTimings> getTaggedTimings() {
+    return this.tagged.values();
+  }
+
+  /**
+   * Counts a status file written
+   * @param statusType - the status type (e.g., ACK, NAK, etc)
+   */
+  public void recordStatusWrite(int statusType) {
+    if (statusType >= 0 && statusType < statusWrites.length())
+      statusWrites.incrementAndGet(statusType);
+  }
+
+  /**
+   * Returns the number of status files written for a status type
+   */
+  public long getStatusWriteCount(int statusType) {
+    return (statusType >= 0 && statusType < statusWrites.length()) ? statusWrites.get(statusType) : 0;
+  }
+
+  /**
+   * Writes the durations to the log every interval, if anything was recorded since the last time
+   * @param intervalSeconds - seconds between two dumps, 0 or less to never dump
+   */
+  public synchronized void startDump(int intervalSeconds) {
+    if (intervalSeconds <= 0 || scheduler != null)
+      return;
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "TestMetrics");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::dumpIfChanged, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  public synchronized void shutdown() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      scheduler = null;
+      this.dumpIfChanged();
+    }
+  }
+
+  private synchronized void dumpIfChanged() {
+    LatencyHistogram total = overall.getHistogram(Phase.TOTAL);
+    long count = (total != null) ? total.getCount() : 0;
+    if (count != lastDumpedCount) {
+      lastDumpedCount = count;
+      log.write(this.dump());
+    }
+  }
+
+  /**
+   * Returns the durations as text: count, mean, 50th / 90th / 99th percentile and
+   * maximum in milliseconds for each phase, first for all test requests and then
+   * for each test case / data type / partner
+   */
+  public String dump() {
+    StringBuilder text = new StringBuilder("Test request phase durations (ms)\n");
+    appendTimings(text, "All test requests", overall);
+
+    List<PhaseTimings> timings = new ArrayList<>(tagged.values());
+    timings.sort(Comparator.comparing(PhaseTimings::getTestCase)
+                           .thenComparing(PhaseTimings::getDataType)
+                           .thenComparing(PhaseTimings::getPartner));
+    for (PhaseTimings t : timings) {
+      appendTimings(text, "Test Case " + t.testCase + ", " + t.dataType + ", partner " + t.partner, t);
+    }
+    return text.toString();
+  }
+
+  static void appendTimings(StringBuilder text, String title, PhaseTimings timings) {
+    text.append("  ").append(title).append('\n');
+    for (Phase phase : Phase.VALUES) {
+      LatencyHistogram histogram = timings.getHistogram(phase);
+      if (histogram == null || histogram.getCount() == 0)
+        continue;
+      text.append(String.format("    %-12s count=%-7d mean=%-10s p50=%-10s p90=%-10s p99=%-10s max=%s%n",
+                                phase, histogram.getCount(),
+                                millis(histogram.getMeanNanos()),
+                                millis(histogram.getPercentileNanos(0.50)),
+                                millis(histogram.getPercentileNanos(0.90)),
+                                millis(histogram.getPercentileNanos(0.99)),
+                                millis(histogram.getMaxNanos())));
+    }
+  }
+
+  static String millis(long nanos) {
+    return String.format("%.3f", nanos / 1_000_000.0);
+  }
+}
@@ -0,0 +1,62 @@
+package com.dgi.fhirplace.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class resolves the external entities (i.e., the test request DTD)
+ * from an in-memory cache keyed by the system identifier.  A cached entity
+ * is read from disk again when the file's modification time or size changes.
+ */
+public class CachedEntityResolver implements org.xml.sax.EntityResolver {
+
+  static final ConcurrentHashMap<String, CachedEntity> entityCache = new ConcurrentHashMap<>();
+
+  @Override
+  public org.xml.sax.InputSource resolveEntity(String publicId, String systemId)
+    throws org.xml.sax.SAXException {
+    try {
+      org.xml.sax.InputSource source = new org.xml.sax.InputSource(new ByteArrayInputStream(getEntity(systemId)));
+      source.setPublicId(publicId);
+      source.setSystemId(systemId);
+      return source;
+    } catch (IOException ex) {
+      throw new org.xml.sax.SAXException(ex.getMessage());
+    }
+  }
+
+  /**
+   * Returns the content of the entity, reading it from disk only when it changed
+   * @param systemId - the system identifier in the form file:/path
+   * @return the entity content
+   * @throws IOException if the entity file can't be read
+   */
+  public static byte[] getEntity(String systemId) throws IOException {
+    File entityFile = new File(systemId.substring(6));
+    long lastModified = entityFile.lastModified();
+    long length = entityFile.length();
+
+    CachedEntity entity = entityCache.get(systemId);
+    if (entity == null || entity.lastModified != lastModified || entity.length != length) {
+      entity = new CachedEntity(Files.readAllBytes(entityFile.toPath()), lastModified, length);
+      entityCache.put(systemId, entity);
+    }
+    return entity.content;
+  }
+
+  // This class holds the content of a cached entity and the file attributes it was read with
+  static class CachedEntity {
+    final byte[] content;
+    final long lastModified;
+    final long length;
+
+    CachedEntity(byte[] content, long lastModified, long length) {
+      this.content = content;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package com.dgi.fhirplace.parser;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * This class keeps a pool of validating document builders for parsing the
+ * test requests, so the builder factory lookup and the builder construction 
+ * are only paid once instead of for every test request.
+ *
+ * A builder is used by one thread at a time: it is taken from the pool with
+ * borrow() and reset and put back with release() when the parse is done.
+ */
+public class DocumentBuilderPool {
+
+  // Maximum number of idle builders kept in the pool
+  static final int MAX_IDLE_BUILDERS = Math.max(Runtime.getRuntime().availableProcessors() * 2, 4);
+
+  static final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+  static {
+    factory.setValidating(true);
+    factory.setExpandEntityReferences(true);
+  }
+
+  static final ConcurrentLinkedQueue<DocumentBuilder> idleBuilders = new ConcurrentLinkedQueue<>();
+  static final AtomicInteger idleCount = new AtomicInteger();
+
+  private DocumentBuilderPool() {
+  }
+
+  /**
+   * Takes a document builder from the pool or creates a new one if the pool is empty
+   * @return the document builder
+   * @throws ParserConfigurationException 
+   */
+  public static DocumentBuilder borrow() throws ParserConfigurationException {
+    DocumentBuilder builder = idleBuilders.poll();
+    if (builder != null) {
+      idleCount.decrementAndGet();
+      return builder;
+    }
+    // The factory itself is not thread safe
+    synchronized (factory) {
+      return factory.newDocumentBuilder();
+    }
+  }
+
+  /**
+   * Resets the document builder and returns it to the pool
+   * @param builder - the document builder obtained from borrow()
+   */
+  public static void release(DocumentBuilder builder) {
+    if (builder == null)
+      return;
+    builder.reset();
+    if (idleCount.incrementAndGet() <= MAX_IDLE_BUILDERS) {
+      idleBuilders.offer(builder);
+    } else {
+      idleCount.decrementAndGet();
+    }
+  }
+}
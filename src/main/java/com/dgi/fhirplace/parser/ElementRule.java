@@ -0,0 +1,83 @@
+package com.dgi.fhirplace.parser;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * This class describes how an element of the test request is copied into
+ * its container object (e.g., Description): which setter receives the 
+ * element's text, which setters receive its attributes, and the rules for 
+ * its child elements.
+ *
+ * Names are kept in hash tables under both their declared and their lower case 
+ * spelling, so resolving an element or attribute name is a single lookup for 
+ * the usual spelling and never more than two.
+ *
+ * @param <T> the container object type
+ */
+final class ElementRule<T> {
+
+  BiConsumer<T, String> text = null;
+  final Map<String, BiConsumer<T, String>> attributes = new HashMap<>();
+  final Map<String, ElementRule<T>> children = new HashMap<>();
+
+  /**
+   * Copies the element's text (the value of its first child node) with the setter
+   */
+  ElementRule<T> text(BiConsumer<T, String> setter) {
+    this.text = setter;
+    return this;
+  }
+
+  /**
+   * Copies the named attribute's value with the setter
+   */
+  ElementRule<T> attribute(String name, BiConsumer<T, String> setter) {
+    put(this.attributes, name, setter);
+    return this;
+  }
+
+  /**
+   * Applies the rule to the named child elements
+   */
+  ElementRule<T> child(String name, ElementRule<T> rule) {
+    put(this.children, name, rule);
+    return this;
+  }
+
+  /**
+   * Shortcut for a child element whose text is copied with the setter
+   */
+  ElementRule<T> childText(String name, BiConsumer<T, String> setter) {
+    return this.child(name, new ElementRule<T>().text(setter));
+  }
+
+  BiConsumer<T, String> getAttribute(String name) {
+    return lookup(this.attributes, name);
+  }
+
+  ElementRule<T> getChild(String name) {
+    return lookup(this.children, name);
+  }
+
+  /**
+   * Adds a case insensitive entry to a name table
+   */
+  static <V> void put(Map<String, V> table, String name, V value) {
+    table.put(name, value);
+    table.put(name.toLowerCase(Locale.ROOT), value);
+  }
+
+  /**
+   * Looks up a name in a table built with put(), ignoring case
+   */
+  static <V> V lookup(Map<String, V> table, String name) {
+    V value = table.get(name);
+    if (value == null) {
+      value = table.get(name.toLowerCase(Locale.ROOT));
+    }
+    return value;
+  }
+}
@@ -1,6 +1,9 @@
 package com.dgi.fhirplace.parser;
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import com.dgi.fhirplace.handler.FHIRplaceConstants;
 
 /**
@@ -18,8 +21,11 @@ public class Instructions {
   String receiveDataType = null;
   String verificationType = null;
 
-  // Contains all the upload instructions
-  Vector uploadVector = new Vector();
+  // Contains all the upload instructions, in the order they were added
+  ArrayList<Upload> uploadList = new ArrayList<>();
+
+  // The upload instructions indexed by direction and type
+  UploadSlot[][] uploadSlots = new UploadSlot[FHIRplaceConstants.NUM_DIRECTIONS][FHIRplaceConstants.NUM_UPLOAD_TYPES];
 
   public Instructions() {
   }
@@ -29,39 +35,58 @@ public class Instructions {
     upload.setResponseID(ID);
     upload.setType(type);
     upload.setDirection(direction);
-    uploadVector.add(upload);
+    this.addUpload(upload);
   }
   public void addUpload(Object upload) {
-    uploadVector.add(upload);
+    Upload thisUpload = (Upload) upload;
+    uploadList.add(thisUpload);
+
+    if (isIndexed(thisUpload.direction, thisUpload.type)) {
+      UploadSlot slot = uploadSlots[thisUpload.direction][thisUpload.type];
+      if (slot == null) {
+        slot = new UploadSlot();
+        uploadSlots[thisUpload.direction][thisUpload.type] = slot;
+      }
+      slot.add(thisUpload);
+    }
   }
 
   public Upload[] getUpload() {
-    Upload[] upload = new Upload[uploadVector.size()];
-    for (int i=0; i < uploadVector.size(); i++) {
-      upload[i] = (Upload) uploadVector.get(i);
-    }
-    return upload;
+    return uploadList.toArray(new Upload[uploadList.size()]);
   }
 
-  public Upload[] getUpload(int direction, int type) {
-    // Finds all upload instructions matching the direction and type
-    Vector tempVector = new Vector();
-    for (int i=0; i < uploadVector.size(); i++) {
-      Upload thisUpload = (Upload) uploadVector.get(i);
-      if (thisUpload.getDirection() == direction && thisUpload.getType() == type) {
-        tempVector.add(thisUpload);
-      }
+  /**
+   * Finds all upload instructions matching the direction and type
+   * @param direction the direction (FHIRplaceConstants.SENT_DATA or RECEIVED_DATA)
+   * @param type the upload type (e.g., FHIRplaceConstants.ACCESS_TOKEN_DATA)
+   * @return an unmodifiable list of the matching uploads, in the order they were added
+   */
+  public List<Upload> getUpload(int direction, int type) {
+    if (isIndexed(direction, type)) {
+      UploadSlot slot = uploadSlots[direction][type];
+      return (slot != null) ? slot.view : Collections.<Upload>emptyList();
     }
-    Upload[] upload = new Upload[tempVector.size()];
-    for (int i=0; i < tempVector.size(); i++) {
-      upload[i] = (Upload) tempVector.get(i);
+
+    // Unknown types are not indexed
+    ArrayList<Upload> matches = new ArrayList<>();
+    for (Upload upload : uploadList) {
+      if (upload.direction == direction && upload.type == type) {
+        matches.add(upload);
+      }
     }
-    return upload;
+    return Collections.unmodifiableList(matches);
   }
 
   public Upload findUploadRecord(String ID, int type, int direction) {
-    for (int i = 0; i < uploadVector.size(); i++) {
-      Upload upload = (Upload)uploadVector.get(i);
+    if (ID == null)
+      return null;
+
+    if (isIndexed(direction, type)) {
+      UploadSlot slot = uploadSlots[direction][type];
+      return (slot != null) ? slot.byResponseID.get(ID) : null;
+    }
+
+    for (Upload upload : uploadList) {
       if ((upload.responseID.equals(ID)) &&
           (upload.type == type) &&
           (upload.direction == direction)) {
@@ -72,6 +97,11 @@ public class Instructions {
     return null;
   }
 
+  private static boolean isIndexed(int direction, int type) {
+    return direction >= 0 && direction < FHIRplaceConstants.NUM_DIRECTIONS &&
+           type >= 0 && type < FHIRplaceConstants.NUM_UPLOAD_TYPES;
+  }
+
   // Set and Get methods
   public void setAckID(String ackID) {
     this.ackID = ackID;
@@ -242,4 +272,18 @@ public class Instructions {
       return uploadBuf.toString();
     }
   }
-}
\ No newline at end of file
+
+  // This class holds the upload instructions for one direction and type
+  class UploadSlot {
+    ArrayList<Upload> uploads = new ArrayList<>();
+    List<Upload> view = Collections.unmodifiableList(uploads);
+
+    // The first upload added for each response ID
+    HashMap<String, Upload> byResponseID = new HashMap<>();
+
+    void add(Upload upload) {
+      uploads.add(upload);
+      byResponseID.putIfAbsent(upload.responseID, upload);
+    }
+  }
+}
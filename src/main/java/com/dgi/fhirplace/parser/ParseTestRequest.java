@@ -1,17 +1,14 @@
 package com.dgi.fhirplace.parser;
 
+import com.dgi.fhirplace.events.ParseEvent;
 import com.dgi.fhirplace.handler.FHIRplaceConstants;
 import com.dgi.fhirplace.util.FHIRplaceUtil;
 import com.dgi.fhirplace.handler.Logger;
 import com.dgi.fhirplace.handler.LocalParameters;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.net.MalformedURLException;
 
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
@@ -23,11 +20,10 @@ import org.w3c.dom.NodeList;
  * Description, Participant, Transmission and Instructions objects
  */
 public class ParseTestRequest {
-  DocumentBuilderFactory factory = null;
   DocumentBuilder builder = null;
   Document document = null;
 
-  MyEntityResolver er = new MyEntityResolver();
+  CachedEntityResolver er = new CachedEntityResolver();
   MyErrorHandler eh = new MyErrorHandler();
 
   FHIRplaceXML xml = null;
@@ -48,19 +44,30 @@ public class ParseTestRequest {
     this.xml = xml;
     this.params = params;
 
+    ParseEvent event = new ParseEvent();
+    event.begin();
+    try {
+      this.parse(path);
+    } finally {
+      commitParseEvent(event, "dom", path, xml, params);
+    }
+  }
+
+  private void parse(File path) throws Exception {
 
 /*------------------------------------------------------------------------------
- *  Get the document builder, which is used to parse in XML
+ *  Get a document builder from the pool, which is used to parse in XML
  *----------------------------------------------------------------------------*/
-    factory = javax.xml.parsers.DocumentBuilderFactory.newInstance();
-    factory.setValidating(true);
-    factory.setExpandEntityReferences(true);
-
-    builder = factory.newDocumentBuilder();
-    builder.setEntityResolver(er);
-    builder.setErrorHandler(eh);
-
-    document = builder.parse(path);
+    builder = DocumentBuilderPool.borrow();
+    try {
+      builder.setEntityResolver(er);
+      builder.setErrorHandler(eh);
+
+      document = builder.parse(path);
+    } finally {
+      DocumentBuilderPool.release(builder);
+      builder = null;
+    }
     Element element = document.getDocumentElement();
     NodeList nodelist = element.getChildNodes();
     
@@ -68,267 +75,141 @@ public class ParseTestRequest {
 
     for (int i=0; i < nodelist.getLength(); i++) {
       Node node = nodelist.item(i);
-
-      if ( FHIRplaceUtil.getNodeName(node).equalsIgnoreCase("Description") ) {
-        desc = this.parseDescription(node);
-        xml.setDescription(desc);
-
-      } else if ( FHIRplaceUtil.getNodeName(node).equalsIgnoreCase("Participant") ) {
-        Participant part =  this.parseParticipant(node);
-        xml.setParticipant(part);
-
-      } else if (FHIRplaceUtil.getNodeName(node).equalsIgnoreCase("Transmission") ) {
-        Transmission trans = this.parseTransmission(node);
-        // Force the protocol into the transmission object so we have a copy of it
-        if (desc != null)
-          trans.setProtocol(desc.getProtocol());
-        xml.setTransmission(trans);
-
-      } else if ( FHIRplaceUtil.getNodeName(node).equalsIgnoreCase("Instructions") ) {
-        Instructions instruct = this.parseInstructions(node);
-        xml.setInstructions(instruct);
+      if (node.getNodeType() != Node.ELEMENT_NODE)
+        continue;
+
+      TestRequestRules.Section section = ElementRule.lookup(TestRequestRules.SECTIONS, FHIRplaceUtil.getNodeName(node));
+      if (section == null)
+        continue;
+
+      switch (section) {
+        case DESCRIPTION:
+          desc = this.parseDescription(node);
+          xml.setDescription(desc);
+          break;
+
+        case PARTICIPANT:
+          Participant part =  this.parseParticipant(node);
+          xml.setParticipant(part);
+          break;
+
+        case TRANSMISSION:
+          Transmission trans = this.parseTransmission(node);
+          // Force the protocol into the transmission object so we have a copy of it
+          if (desc != null)
+            trans.setProtocol(desc.getProtocol());
+          xml.setTransmission(trans);
+          break;
+
+        case INSTRUCTIONS:
+          Instructions instruct = this.parseInstructions(node);
+          xml.setInstructions(instruct);
+          break;
       }
     }
 
     // Log the contents of the objects that were created
-    if (params.isDebugMode()) {
-      log.write("\n\n--- Participants ---");
-      Participant[] parts = xml.getParticipant();
-      for (Participant part : parts) {
-        log.write(part.toString());
-      }
-      log.write("\n--- Description ---\n" + xml.getDescription().toString());
-      log.write("\n--- Transmission ---\n" + xml.getTransmission().toString());
-      log.write("\n--- Instructions ---\n" + xml.getInstructions().toString() + "\n");
-    }
+    logContents(xml, params, log);
   }
 
-  private Description parseDescription(Node node)
-    throws org.xml.sax.SAXException {
-
-    Description desc = new Description();
-    
-    // Walk through the child nodes to get the Description Parameters
-    NodeList nodeList = node.getChildNodes();
-    NamedNodeMap attributes;
-
-    for (int i=0; i < nodeList.getLength(); i++) {
-      Node childNode = nodeList.item(i);
-      if ( childNode.hasAttributes() ) {
-        attributes = childNode.getAttributes();
-        int numAttr = attributes.getLength();
-
-        if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("Reason")) {
-          for (int j=0; j < numAttr; j++) {
-            if (attributes.item(j).getNodeName().equalsIgnoreCase("Protocol") ) {
-              desc.setProtocol( attributes.item(j).getNodeValue() );
-            } else if (attributes.item(j).getNodeName().equalsIgnoreCase("Purpose") ) {
-              desc.setPurpose( attributes.item(j).getNodeValue());
-            }
-          }
-        }
-      }
+  /**
+   * Records the parse event if a flight recording wants it
+   * @param event - the event begun before parsing
+   * @param parser - the name of the parser
+   * @param path - the parsed file
+   * @param xml - the parsed objects, possibly incomplete if parsing failed
+   * @param params - the Local Parameters
+   */
+  static void commitParseEvent(ParseEvent event, String parser, File path, FHIRplaceXML xml, LocalParameters params) {
+    if (!event.shouldCommit())
+      return;
+    event.parser = parser;
+    event.fileName = path.getName();
+    if (xml.getDescription() != null)
+      event.testRequestID = xml.getDescription().getTestRequestID();
+    event.partner = FHIRplaceUtil.findTP(xml.getTransmission(), params);
+    event.commit();
+  }
 
-      if (childNode.hasChildNodes()) {
-        NodeList childNodeList = childNode.getChildNodes();
-        if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("TestRequestID")) {
-          desc.setTestRequestID(childNodeList.item(0).getNodeValue());
-        } else if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("Version")) {
-          desc.setVersion(childNodeList.item(0).getNodeValue());
-        } else if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("TestCase")) {
-          desc.setTestCase(childNodeList.item(0).getNodeValue());
-        } else if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("ConnectivityType")) {
-          desc.setConnectivityType(childNodeList.item(0).getNodeValue());
-        } else if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("TestDescription")) {
-          desc.setTestDescription(childNodeList.item(0).getNodeValue());
-        } else if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("ExpectedResult")) {
-          desc.setExpectedResult(childNodeList.item(0).getNodeValue());
-        } else if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("TestRound")) {
-          NodeList grandChildNodeList = childNode.getChildNodes();
-          for (int j=0; j < grandChildNodeList.getLength(); j++) {
-            Node grandChildNode = grandChildNodeList.item(j);
-            NodeList newChildNodeList = grandChildNode.getChildNodes();
-            if (FHIRplaceUtil.getNodeName(grandChildNode).equalsIgnoreCase("Name")) {
-              desc.setTestName(newChildNodeList.item(0).getNodeValue());
-            } else if (FHIRplaceUtil.getNodeName(grandChildNode).equalsIgnoreCase("Purpose")) {
-              desc.setTestPurpose(newChildNodeList.item(0).getNodeValue());
-            } else if (FHIRplaceUtil.getNodeName(grandChildNode).equalsIgnoreCase("Phase")) {
-              desc.setTestPhase(newChildNodeList.item(0).getNodeValue());
-            }
-          }
-        } else if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("TimeStamp")) {
-          NodeList grandChildNodeList = childNode.getChildNodes();
-          for (int j=0; j < grandChildNodeList.getLength(); j++) {
-            Node grandChildNode = grandChildNodeList.item(j);
-            NodeList newChildNodeList = grandChildNode.getChildNodes();
-            if (FHIRplaceUtil.getNodeName(grandChildNode).equalsIgnoreCase("Date")) {
-              desc.setDate(newChildNodeList.item(0).getNodeValue());
-            } else if (FHIRplaceUtil.getNodeName(grandChildNode).equalsIgnoreCase("Time")) {
-              desc.setTime(newChildNodeList.item(0).getNodeValue());
-            }
-          }
-        }
-      }
+  /**
+   * Logs the contents of the parsed objects when running in debug mode
+   * @param xml the FHIRplace XML object
+   * @param params the Local Parameters
+   * @param log the Logger to write to
+   */
+  static void logContents(FHIRplaceXML xml, LocalParameters params, Logger log) {
+    // Nothing is built unless the dumps are wanted
+    if (!params.isDebugMode() || !Logger.isDebugEnabled())
+      return;
+
+    log.debug(() -> "\n\n--- Participants ---");
+    Participant[] parts = xml.getParticipant();
+    for (Participant part : parts) {
+      log.debug(part::toString);
     }
+    log.debug(() -> "\n--- Description ---\n" + xml.getDescription().toString());
+    log.debug(() -> "\n--- Transmission ---\n" + xml.getTransmission().toString());
+    log.debug(() -> "\n--- Instructions ---\n" + xml.getInstructions().toString() + "\n");
+  }
+
+  private Description parseDescription(Node node) {
+    Description desc = new Description();
+    applyRule(node, TestRequestRules.DESCRIPTION, desc);
     return desc;
   }
 
-  private Participant parseParticipant( Node node )
-    throws org.xml.sax.SAXException {
-    
+  private Participant parseParticipant(Node node) {
     Participant part = new Participant();
+    applyRule(node, TestRequestRules.PARTICIPANT, part);
+    return part;
+  }
 
-    // Get participantID
-    NamedNodeMap attributes = node.getAttributes();
-    if ( attributes.item(0).getNodeName().equalsIgnoreCase("ParticipantID") )
-      part.setParticipantID( attributes.item(0).getNodeValue() );
-
-    // Walk through the child nodes to get the rest of the Participant Parameters
-    NodeList nodeList = node.getChildNodes();
+  private Transmission parseTransmission(Node node) {
+    Transmission trans = new Transmission();
+    applyRule(node, TestRequestRules.TRANSMISSION, trans);
+    return trans;
+  }
 
-    for (int i=0; i < nodeList.getLength(); i++) {
-      Node childNode = nodeList.item(i);
-      if (childNode.hasChildNodes()) {
-        NodeList childNodeList = childNode.getChildNodes();
-        Node grandChildNode = childNodeList.item(0);
-        if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("Name")) {
-          part.setName(grandChildNode.getNodeValue());
-        } else if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("Product") ) {
-          part.setProduct(grandChildNode.getNodeValue());
-        } else if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("Version") ) {
-          part.setVersion(grandChildNode.getNodeValue());
-        } else if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("FHIR-Version") ) {
-          part.setFhirVersion(grandChildNode.getNodeValue());
+  /**
+   * Copies the attributes, text and child elements of a node into the target object
+   * @param node the element node
+   * @param rule describes how the element is copied
+   * @param target the object receiving the values
+   */
+  private static <T> void applyRule(Node node, ElementRule<T> rule, T target) {
+    if (node.hasAttributes()) {
+      NamedNodeMap attributes = node.getAttributes();
+      for (int j=0; j < attributes.getLength(); j++) {
+        Node attribute = attributes.item(j);
+        java.util.function.BiConsumer<T, String> setter = rule.getAttribute(attribute.getNodeName());
+        if (setter != null) {
+          setter.accept(target, attribute.getNodeValue());
         }
       }
     }
-    return part;
-  }
 
-  private Transmission parseTransmission(Node node)
-    throws org.xml.sax.SAXException, MalformedURLException {
-    
-    Transmission trans = new Transmission();
+    if (node.hasChildNodes()) {
+      if (rule.text != null) {
+        rule.text.accept(target, node.getFirstChild().getNodeValue());
+      }
 
-    NodeList nodeList = node.getChildNodes();
-    
-    for (int i=0; i < nodeList.getLength(); i++) {
-      Node childNode = nodeList.item(i);
-      
-      if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("Originator")) {
-        if (childNode.hasAttributes()) {
-          NamedNodeMap originatorAttributes = childNode.getAttributes();
-          for (int j=0; j < originatorAttributes.getLength(); j++) {
-            if ( originatorAttributes.item(j).getNodeName().equalsIgnoreCase("ParticipantID") ) {
-              String nodeValue = originatorAttributes.item(j).getNodeValue();
-              trans.setOriginator(nodeValue);
-              trans.setSenderID(nodeValue);
-            } else if ( originatorAttributes.item(j).getNodeName().equalsIgnoreCase("Role") ) {
-              trans.setOriginatorRole(originatorAttributes.item(j).getNodeValue());
-            }
+      NodeList nodeList = node.getChildNodes();
+      for (int i=0; i < nodeList.getLength(); i++) {
+        Node childNode = nodeList.item(i);
+        if (childNode.getNodeType() == Node.ELEMENT_NODE) {
+          ElementRule<T> childRule = rule.getChild(FHIRplaceUtil.getNodeName(childNode));
+          if (childRule != null) {
+            applyRule(childNode, childRule, target);
           }
         }
-      } else if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("Recipient")) {
-        if (childNode.hasAttributes()) {
-          NamedNodeMap recipientAttributes = childNode.getAttributes();
-          for (int j=0; j < recipientAttributes.getLength(); j++) {
-            if ( recipientAttributes.item(j).getNodeName().equalsIgnoreCase("ParticipantID") ) {
-              String nodeValue = recipientAttributes.item(j).getNodeValue();
-              trans.setRecipient(nodeValue);
-              trans.setReceiverID(nodeValue);
-            } else if ( recipientAttributes.item(j).getNodeName().equalsIgnoreCase("Role") ) {
-              trans.setRecipientRole(recipientAttributes.item(j).getNodeValue());          
-            }
-          }
-        }
-      } else if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("Settings")) {
-        NodeList childNodeList = childNode.getChildNodes();
-
-        for (int j=0; j < childNodeList.getLength(); j++) {
-          Node newChildNode = childNodeList.item(j);
-          if (newChildNode.hasAttributes() || newChildNode.hasChildNodes()) {
-
-            if (FHIRplaceUtil.getNodeName(newChildNode).equalsIgnoreCase("FHIRServer")) {
-              if (newChildNode.hasAttributes()) {
-                NamedNodeMap fhirServerAttributes = newChildNode.getAttributes();
-                for (int k=0; k < fhirServerAttributes.getLength(); k++) {
-                  if (fhirServerAttributes.item(k).getNodeName().equalsIgnoreCase("URL")) {
-                    trans.setFhirServer(fhirServerAttributes.item(k).getNodeValue());
-                  }
-                }
-              }
-            } else if (FHIRplaceUtil.getNodeName(newChildNode).equalsIgnoreCase("AuthorizationServer")) {
-              if (newChildNode.hasAttributes()) {
-                NamedNodeMap authServerAttributes = newChildNode.getAttributes();
-                for (int k=0; k < authServerAttributes.getLength(); k++) {
-                   if (authServerAttributes.item(k).getNodeName().equalsIgnoreCase("URL")) {
-                    trans.setAuthorizationServer(authServerAttributes.item(k).getNodeValue());
-                  }
-                }
-              }
-            } else if (FHIRplaceUtil.getNodeName(newChildNode).equalsIgnoreCase("ClientJwk")) {
-              if (newChildNode.hasAttributes()) {
-                NamedNodeMap clientJwkAttributes = newChildNode.getAttributes();       
-                for (int k=0; k < clientJwkAttributes.getLength(); k++) {
-                  if (clientJwkAttributes.item(k).getNodeName().equalsIgnoreCase("FileName")) {
-                    trans.setClientJwkFileName(clientJwkAttributes.item(k).getNodeValue());
-                  } else if (clientJwkAttributes.item(k).getNodeName().equalsIgnoreCase("Owner")) {
-                    trans.setClientJwkOwner(clientJwkAttributes.item(k).getNodeValue());
-                  }
-                }
-              }
-            } else if (FHIRplaceUtil.getNodeName(newChildNode).equalsIgnoreCase("mTLS") ) {
-              if (newChildNode.hasAttributes()) {
-                NamedNodeMap mTLSAttributes = newChildNode.getAttributes();
-           
-                for (int k=0; k < mTLSAttributes.getLength(); k++) {
-                  if (mTLSAttributes.item(k).getNodeName().equalsIgnoreCase("BundleName")) {
-                    trans.setBundleName(mTLSAttributes.item(k).getNodeValue());
-                  } else if (mTLSAttributes.item(k).getNodeName().equalsIgnoreCase("Type")) {
-                    trans.setBundleType(mTLSAttributes.item(k).getNodeValue());
-                  } else if (mTLSAttributes.item(k).getNodeName().equalsIgnoreCase("Owner")) {
-                    trans.setBundleOwner(mTLSAttributes.item(k).getNodeValue());
-                  }
-                }
-              }
-            } else if (FHIRplaceUtil.getNodeName(newChildNode).equalsIgnoreCase("Patient")) {
-              if (newChildNode.hasAttributes()) {
-                NamedNodeMap patientAttributes = newChildNode.getAttributes();
-           
-                for (int k=0; k < patientAttributes.getLength(); k++) {
-                  if (patientAttributes.item(k).getNodeName().equalsIgnoreCase("ResourceName")) {
-                    trans.setPatientResourceName(patientAttributes.item(k).getNodeValue());
-                  } else if (patientAttributes.item(k).getNodeName().equalsIgnoreCase("Type")) {
-                    trans.setPatientResourceType(patientAttributes.item(k).getNodeValue());
-                  } else if (patientAttributes.item(k).getNodeName().equalsIgnoreCase("Owner")) {
-                    trans.setPatientResourceOwner(patientAttributes.item(k).getNodeValue());
-                  }
-                }
-              }
-            } else if (FHIRplaceUtil.getNodeName(newChildNode).equalsIgnoreCase("Coverage")) {
-              if (newChildNode.hasAttributes()) {
-                NamedNodeMap coverageAttributes = newChildNode.getAttributes();          
-                for (int k=0; k < coverageAttributes.getLength(); k++) {
-                  if (coverageAttributes.item(k).getNodeName().equalsIgnoreCase("ResourceName")) {
-                    trans.setCoverageResourceName(coverageAttributes.item(k).getNodeValue());
-                  } else if (coverageAttributes.item(k).getNodeName().equalsIgnoreCase("Type")) {
-                    trans.setCoverageResourceType(coverageAttributes.item(k).getNodeValue());
-                  } else if (coverageAttributes.item(k).getNodeName().equalsIgnoreCase("Owner")) {
-                    trans.setCoverageResourceOwner(coverageAttributes.item(k).getNodeValue());
-                  }
-                }
-              }
-            } 
-          }
-        }
-      }  
+      }
     }
-    return trans;
   }
 
   private Instructions parseInstructions(Node node) {
 
     Instructions instruct = new Instructions();
+    String identifier = params.getXMLIdentifier();
     
     // We are only interested in the instructions the designated Participant ID
     NodeList nodeList = node.getChildNodes();
@@ -342,147 +223,141 @@ public class ParseTestRequest {
         String participant = null;
         String dataType = null;
 
+        TestRequestRules.Instruction direction = 
+          ElementRule.lookup(TestRequestRules.INSTRUCTIONS, FHIRplaceUtil.getNodeName(childNode));
+
         attributes = childNode.getAttributes();
         for (int j=0; j < attributes.getLength(); j++) {
-          if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("Ack")) {
-            if (attributes.item(j).getNodeName().equalsIgnoreCase("ParticipantID")) {
-              participant = attributes.item(j).getNodeValue();
-
-            } else if (attributes.item(j).getNodeName().equalsIgnoreCase("ResponseID")) {
-              String response_id = attributes.item(j).getNodeValue();
-              if (participant != null && participant.equalsIgnoreCase(params.getXMLIdentifier()))
-                instruct.setAckID(response_id);
-            }
-
-          } else if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("Send") )   {
-            if ((attributes.item(j).getNodeName().equalsIgnoreCase("ParticipantID")) &&
-                (attributes.item(j).getNodeValue().equalsIgnoreCase(params.getXMLIdentifier())) ) {
-              instruct.setSendDataType(dataType);
+          TestRequestRules.InstructionAttribute attribute = 
+            ElementRule.lookup(TestRequestRules.INSTRUCTION_ATTRIBUTES, attributes.item(j).getNodeName());
+          String value = attributes.item(j).getNodeValue();
+
+          if (direction != null && attribute != null) {
+            switch (direction) {
+              case ACK:
+              case EVALUATE_TEST:
+                if (attribute == TestRequestRules.InstructionAttribute.PARTICIPANT_ID) {
+                  participant = value;
+
+                } else if (attribute == TestRequestRules.InstructionAttribute.RESPONSE_ID) {
+                  if (participant != null && participant.equalsIgnoreCase(identifier)) {
+                    if (direction == TestRequestRules.Instruction.ACK)
+                      instruct.setAckID(value);
+                    else
+                      instruct.setEvaluateTestID(value);
+                  }
+                }
+                break;
+
+              case SEND:
+              case RECEIVE:
+                if (attribute == TestRequestRules.InstructionAttribute.PARTICIPANT_ID && 
+                    value.equalsIgnoreCase(identifier)) {
+                  if (direction == TestRequestRules.Instruction.SEND)
+                    instruct.setSendDataType(dataType);
+                  else
+                    instruct.setReceiveDataType(dataType);
+
+                } else if (attribute == TestRequestRules.InstructionAttribute.DATA_TYPE) {
+                  dataType = value;
+                }
+                break;
 
-            } else if (attributes.item(j).getNodeName().equalsIgnoreCase("DataType")) {
-              dataType = attributes.item(j).getNodeValue();
+              default:
+                break;
             }
-
-          } else if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("Receive")) {
-              if ((attributes.item(j).getNodeName().equalsIgnoreCase("ParticipantID") ) &&
-                  (attributes.item(j).getNodeValue().equalsIgnoreCase(params.getXMLIdentifier())) ) {
-                instruct.setReceiveDataType(dataType);
-
-              } else if (attributes.item(j).getNodeName().equalsIgnoreCase("DataType")) {
-                dataType = attributes.item(j).getNodeValue();
-              }
-
-          } else if (FHIRplaceUtil.getNodeName(childNode).equalsIgnoreCase("EvaluateTest")) {
-              if ( attributes.item(j).getNodeName().equalsIgnoreCase("ParticipantID") ) {
-                participant = attributes.item(j).getNodeValue();
-
-              } else if (attributes.item(j).getNodeName().equalsIgnoreCase("ResponseID")) {
-                String response_id = attributes.item(j).getNodeValue();
-                if (participant != null && participant.equalsIgnoreCase(params.getXMLIdentifier()))
-                  instruct.setEvaluateTestID(response_id);
-              }
           }
 
           String responseID = null;
-          String direction = FHIRplaceUtil.getNodeName(childNode);
 
           if (childNode.hasChildNodes()) {
             NodeList grandChildNodeList = childNode.getChildNodes();
             for (int k=0; k < grandChildNodeList.getLength(); k++) {
               Node grandChildNode = grandChildNodeList.item(k);
-
-              if (FHIRplaceUtil.getNodeName(grandChildNode).equalsIgnoreCase("Report")) {
-                childAttributes = grandChildNode.getAttributes();
-
-                for (int m=0; m < childAttributes.getLength(); m++) {
-                  if ( childAttributes.item(m).getNodeName().equalsIgnoreCase("ParticipantID") ) {
-                    participant = childAttributes.item(m).getNodeValue();
+              if (grandChildNode.getNodeType() != Node.ELEMENT_NODE)
+                continue;
+
+              TestRequestRules.Instruction step = 
+                ElementRule.lookup(TestRequestRules.INSTRUCTIONS, FHIRplaceUtil.getNodeName(grandChildNode));
+              if (step == null)
+                continue;
+
+              childAttributes = grandChildNode.getAttributes();
+
+              switch (step) {
+                case REPORT:
+                  for (int m=0; m < childAttributes.getLength(); m++) {
+                    TestRequestRules.InstructionAttribute childAttribute = 
+                      ElementRule.lookup(TestRequestRules.INSTRUCTION_ATTRIBUTES, childAttributes.item(m).getNodeName());
+                    if (childAttribute == TestRequestRules.InstructionAttribute.PARTICIPANT_ID) {
+                      participant = childAttributes.item(m).getNodeValue();
+                    } else if (childAttribute == TestRequestRules.InstructionAttribute.RESPONSE_ID) {
+                      responseID = childAttributes.item(m).getNodeValue();
+                    }
                   }
 
-                  if (childAttributes.item(m).getNodeName().equalsIgnoreCase("ResponseID")) {
-                    responseID = childAttributes.item(m).getNodeValue();
-                  }
-                }
-
-                // If this element belongs to us, add it to the Report instruction
-                if (participant != null && participant.equalsIgnoreCase(params.getXMLIdentifier())) {
-
-                  if (direction.equalsIgnoreCase("Send") ) {
-                    instruct.setSendID(responseID);
-
-                  } else if (direction.equalsIgnoreCase("Receive") ) {
-                    instruct.setReceiveID(responseID);
+                  // If this element belongs to us, add it to the Report instruction
+                  if (participant != null && participant.equalsIgnoreCase(identifier)) {
+                    if (direction == TestRequestRules.Instruction.SEND) {
+                      instruct.setSendID(responseID);
+                    } else if (direction == TestRequestRules.Instruction.RECEIVE) {
+                      instruct.setReceiveID(responseID);
+                    }
                   }
-                }
-
-              } else if (FHIRplaceUtil.getNodeName(grandChildNode).equalsIgnoreCase("Upload")) {
-                childAttributes = grandChildNode.getAttributes();
-
-                // Initialize all variables that will be used below
-                participant = null;
-                String uploadID = null;
-                String format = null;
-
-                for (int m=0; m < childAttributes.getLength(); m++) {
-                  if ( childAttributes.item(m).getNodeName().equalsIgnoreCase("ParticipantID") ) {
-                    participant = childAttributes.item(m).getNodeValue();
+                  break;
+
+                case UPLOAD:
+                {
+                  // Initialize all variables that will be used below
+                  participant = null;
+                  String uploadID = null;
+                  String format = null;
+
+                  for (int m=0; m < childAttributes.getLength(); m++) {
+                    TestRequestRules.InstructionAttribute childAttribute = 
+                      ElementRule.lookup(TestRequestRules.INSTRUCTION_ATTRIBUTES, childAttributes.item(m).getNodeName());
+                    if (childAttribute == TestRequestRules.InstructionAttribute.PARTICIPANT_ID) {
+                      participant = childAttributes.item(m).getNodeValue();
+                    } else if (childAttribute == TestRequestRules.InstructionAttribute.RESPONSE_ID) {
+                      uploadID = childAttributes.item(m).getNodeValue();
+                    } else if (childAttribute == TestRequestRules.InstructionAttribute.FORMAT) {
+                      format = childAttributes.item(m).getNodeValue();
+                    }
                   }
 
-                  if (childAttributes.item(m).getNodeName().equalsIgnoreCase("ResponseID")) {
-                    uploadID = childAttributes.item(m).getNodeValue();
-
-                  } else if (childAttributes.item(m).getNodeName().equalsIgnoreCase("Format")) {
-                    format = childAttributes.item(m).getNodeValue();
+                  // If this element belongs to us, add the appropriate upload instruction
+                  if (participant != null && participant.equalsIgnoreCase(identifier)) {
+                    addUpload(instruct, direction, uploadID, format);
                   }
+                  break;
                 }
 
-                // If this element belongs to us, add the appropriate upload instruction
-                if (participant != null && participant.equalsIgnoreCase(params.getXMLIdentifier())) {
-                  int directionType = direction.equalsIgnoreCase("Send") ? FHIRplaceConstants.SENT_DATA : 
-                                                                           FHIRplaceConstants.RECEIVED_DATA;
-                  int uploadType = -1;
-                  if (format != null) {
-                    if (format.equalsIgnoreCase("AccessToken")) {
-                      uploadType = FHIRplaceConstants.ACCESS_TOKEN_DATA;
-                    } else if (format.equalsIgnoreCase("ClientID")) {
-                      uploadType = FHIRplaceConstants.CLIENT_ID_DATA;
-                    } else if (format.equalsIgnoreCase("FHIR-ID")) {
-                      uploadType = FHIRplaceConstants.FHIR_ID_DATA;
-                    } else if (format.equalsIgnoreCase("PatientData")) {
-                      uploadType = FHIRplaceConstants.PATIENT_DATA;
-                    } else if (format.equalsIgnoreCase("Transport")) {
-                      uploadType = FHIRplaceConstants.TRANSPORT_DATA;
+                case VERIFY:
+                {
+                  String verification = null;
+                  responseID = null;
+
+                  for (int m=0; m < childAttributes.getLength(); m++) {
+                    TestRequestRules.InstructionAttribute childAttribute = 
+                      ElementRule.lookup(TestRequestRules.INSTRUCTION_ATTRIBUTES, childAttributes.item(m).getNodeName());
+                    if (childAttribute == TestRequestRules.InstructionAttribute.PARTICIPANT_ID) {
+                      participant = childAttributes.item(m).getNodeValue();
+                    } else if (childAttribute == TestRequestRules.InstructionAttribute.RESPONSE_ID) {
+                      responseID = childAttributes.item(m).getNodeValue();
+                    } else if (childAttribute == TestRequestRules.InstructionAttribute.VERIFICATION_ASPECT) {
+                      verification = childAttributes.item(m).getNodeValue();
                     }
                   }
 
-                  if (instruct.findUploadRecord(uploadID, uploadType, directionType) == null) {
-                    // Don't allow duplicate upload entries
-                    instruct.addUpload(uploadID, uploadType, directionType);
+                  // If this element belongs to us, update the appropriate Verification Aspect instructions
+                  if (participant != null && participant.equalsIgnoreCase(identifier)) {
+                    instruct.setVerifyID(responseID, verification);
                   }
+                  break;
                 }
 
-              } else if (FHIRplaceUtil.getNodeName(grandChildNode).equalsIgnoreCase("Verify")) {
-
-                childAttributes = grandChildNode.getAttributes();
-                String verification = null;
-                responseID = null;
-
-                for (int m=0; m < childAttributes.getLength(); m++) {
-                  if ( childAttributes.item(m).getNodeName().equalsIgnoreCase("ParticipantID") ) {
-                    participant = childAttributes.item(m).getNodeValue();
-
-                  }  else if (childAttributes.item(m).getNodeName().equalsIgnoreCase("ResponseID")) {
-                    responseID = childAttributes.item(m).getNodeValue();
-
-                  } else if (childAttributes.item(m).getNodeName().equalsIgnoreCase("VerificationAspect") ) {
-                    verification = childAttributes.item(m).getNodeValue();
-                  }
-                }
-
-                // If this element belongs to us, update the appropriate Verification Aspect instructions
-                if (participant != null && participant.equalsIgnoreCase(params.getXMLIdentifier())) {
-                  instruct.setVerifyID(responseID, verification);
-                }
+                default:
+                  break;
               }
             }
           }
@@ -492,18 +367,22 @@ public class ParseTestRequest {
     return instruct;
   }
 
-/*------------------------------------------------------------------------------
- * Inner Class : MyEntityResolver
- *----------------------------------------------------------------------------*/
-  class MyEntityResolver implements org.xml.sax.EntityResolver {
-    @Override
-    public org.xml.sax.InputSource resolveEntity(String publicId, String systemId)
-      throws org.xml.sax.SAXException {
-      try {
-        return(new org.xml.sax.InputSource(new FileInputStream(systemId.substring(6))));
-      } catch (FileNotFoundException ex) {
-        throw new org.xml.sax.SAXException(ex.getMessage());
-      }
+  /**
+   * Adds an upload instruction unless the same one was already added
+   * @param instruct the Instructions object
+   * @param direction the Send or Receive instruction containing the upload
+   * @param uploadID the upload's response ID
+   * @param format the upload's format
+   */
+  static void addUpload(Instructions instruct, TestRequestRules.Instruction direction, String uploadID, String format) {
+    int directionType = (direction == TestRequestRules.Instruction.SEND) ? FHIRplaceConstants.SENT_DATA : 
+                                                                           FHIRplaceConstants.RECEIVED_DATA;
+    Integer uploadType = (format != null) ? ElementRule.lookup(TestRequestRules.UPLOAD_FORMATS, format) : null;
+    int type = (uploadType != null) ? uploadType : -1;
+
+    if (instruct.findUploadRecord(uploadID, type, directionType) == null) {
+      // Don't allow duplicate upload entries
+      instruct.addUpload(uploadID, type, directionType);
     }
   }
 
@@ -0,0 +1,417 @@
+package com.dgi.fhirplace.parser;
+
+import com.dgi.fhirplace.events.ParseEvent;
+import com.dgi.fhirplace.handler.Logger;
+import com.dgi.fhirplace.handler.LocalParameters;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.EnumMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The class parses the Test request elements into separated
+ * Description, Participant, Transmission and Instructions objects
+ * in a single pass over the XML stream, without building a DOM.
+ *
+ * The objects are filled exactly as ParseTestRequest fills them from the DOM.
+ */
+public class StreamParseTestRequest {
+
+  static final XMLInputFactory factory = XMLInputFactory.newInstance();
+  static {
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.TRUE);
+    factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+    factory.setXMLResolver(new CachedXMLResolver());
+  }
+
+  FHIRplaceXML xml = null;
+  LocalParameters params = null;
+
+  Logger log = new Logger(StreamParseTestRequest.class);
+
+  /**
+   * Parses the FHIRplace XML file
+   * @param path the path to the XML file
+   * @param xml the FHIRplace XML object
+   * @param params the Local Parameters
+   * @throws Exception
+   */
+  public StreamParseTestRequest(File path, FHIRplaceXML xml, LocalParameters params) throws Exception {
+    this(path, xml, params, true);
+  }
+
+  private StreamParseTestRequest(File path, FHIRplaceXML xml, LocalParameters params, boolean logContents)
+    throws Exception {
+
+    this.xml = xml;
+    this.params = params;
+
+    // Only the parse of the test request is recorded, not the one verifying the DOM parser
+    ParseEvent event = new ParseEvent();
+    event.begin();
+    XMLStreamReader reader;
+    try (InputStream in = new BufferedInputStream(new FileInputStream(path))) {
+      // The factory is shared, so only one thread at a time may create a reader with it
+      synchronized (factory) {
+        reader = factory.createXMLStreamReader(path.toURI().toString(), in);
+      }
+      try {
+        this.parseDocument(reader);
+      } finally {
+        reader.close();
+      }
+    } finally {
+      if (logContents)
+        ParseTestRequest.commitParseEvent(event, "stream", path, xml, params);
+    }
+
+    // Log the contents of the objects that were created
+    if (logContents) {
+      ParseTestRequest.logContents(xml, params, log);
+    }
+  }
+
+  /**
+   * Parses the test request with the streaming parser and compares the result
+   * with the objects parsed from the DOM
+   * @param path the path to the XML file
+   * @param domXml the FHIRplace XML object filled by ParseTestRequest
+   * @param params the Local Parameters
+   * @return a description of the first difference, or null if both parsers agree
+   * @throws Exception
+   */
+  public static String verify(File path, FHIRplaceXML domXml, LocalParameters params) throws Exception {
+    FHIRplaceXML streamXml = new FHIRplaceXML();
+    new StreamParseTestRequest(path, streamXml, params, false);
+
+    Participant[] domParts = domXml.getParticipant();
+    Participant[] streamParts = streamXml.getParticipant();
+    if (domParts.length != streamParts.length) {
+      return "Participant count " + domParts.length + " != " + streamParts.length;
+    }
+    for (int i=0; i < domParts.length; i++) {
+      String diff = compare("Participant", domParts[i], streamParts[i]);
+      if (diff != null)
+        return diff;
+    }
+    String diff = compare("Description", domXml.getDescription(), streamXml.getDescription());
+    if (diff == null)
+      diff = compare("Transmission", domXml.getTransmission(), streamXml.getTransmission());
+    if (diff == null)
+      diff = compare("Instructions", domXml.getInstructions(), streamXml.getInstructions());
+    return diff;
+  }
+
+  private static String compare(String section, Object domValue, Object streamValue) {
+    String domText = String.valueOf(domValue);
+    String streamText = String.valueOf(streamValue);
+    if (domText.equals(streamText))
+      return null;
+    return section + " differs:\n--- DOM ---\n" + domText + "\n--- Stream ---\n" + streamText;
+  }
+
+  private void parseDocument(XMLStreamReader reader) throws XMLStreamException {
+    // Move to the root element
+    while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+    }
+
+    Description desc = null;
+
+    while (nextChildElement(reader)) {
+      TestRequestRules.Section section = ElementRule.lookup(TestRequestRules.SECTIONS, reader.getLocalName());
+      if (section == null) {
+        skipElement(reader);
+        continue;
+      }
+
+      switch (section) {
+        case DESCRIPTION:
+          desc = new Description();
+          applyRule(reader, TestRequestRules.DESCRIPTION, desc);
+          xml.setDescription(desc);
+          break;
+
+        case PARTICIPANT:
+          Participant part = new Participant();
+          applyRule(reader, TestRequestRules.PARTICIPANT, part);
+          xml.setParticipant(part);
+          break;
+
+        case TRANSMISSION:
+          Transmission trans = new Transmission();
+          applyRule(reader, TestRequestRules.TRANSMISSION, trans);
+          // Force the protocol into the transmission object so we have a copy of it
+          if (desc != null)
+            trans.setProtocol(desc.getProtocol());
+          xml.setTransmission(trans);
+          break;
+
+        case INSTRUCTIONS:
+          xml.setInstructions(this.parseInstructions(reader));
+          break;
+      }
+    }
+  }
+
+  /**
+   * Copies the attributes, text and child elements of the current element into the target object,
+   * leaving the stream after the end of the element
+   * @param reader the XML stream positioned on a start element
+   * @param rule describes how the element is copied
+   * @param target the object receiving the values
+   * @throws XMLStreamException
+   */
+  private static <T> void applyRule(XMLStreamReader reader, ElementRule<T> rule, T target)
+    throws XMLStreamException {
+
+    for (int i=0; i < reader.getAttributeCount(); i++) {
+      java.util.function.BiConsumer<T, String> setter = rule.getAttribute(reader.getAttributeLocalName(i));
+      if (setter != null) {
+        setter.accept(target, reader.getAttributeValue(i));
+      }
+    }
+
+    if (rule.text != null) {
+      setText(reader, value -> rule.text.accept(target, value));
+      return;
+    }
+
+    while (nextChildElement(reader)) {
+      ElementRule<T> childRule = rule.getChild(reader.getLocalName());
+      if (childRule != null) {
+        applyRule(reader, childRule, target);
+      } else {
+        skipElement(reader);
+      }
+    }
+  }
+
+  private Instructions parseInstructions(XMLStreamReader reader) throws XMLStreamException {
+    Instructions instruct = new Instructions();
+    String identifier = params.getXMLIdentifier();
+
+    // We are only interested in the instructions the designated Participant ID
+    while (nextChildElement(reader)) {
+      // Elements without attributes are ignored, along with their contents
+      if (reader.getAttributeCount() == 0) {
+        skipElement(reader);
+        continue;
+      }
+
+      TestRequestRules.Instruction direction = 
+        ElementRule.lookup(TestRequestRules.INSTRUCTIONS, reader.getLocalName());
+      EnumMap<TestRequestRules.InstructionAttribute, String> attributes = getInstructionAttributes(reader);
+      String participantID = attributes.get(TestRequestRules.InstructionAttribute.PARTICIPANT_ID);
+      String participant = null;
+
+      if (direction != null) {
+        switch (direction) {
+          case ACK:
+          case EVALUATE_TEST:
+          {
+            participant = participantID;
+            String responseID = attributes.get(TestRequestRules.InstructionAttribute.RESPONSE_ID);
+            if (responseID != null && participant != null && participant.equalsIgnoreCase(identifier)) {
+              if (direction == TestRequestRules.Instruction.ACK)
+                instruct.setAckID(responseID);
+              else
+                instruct.setEvaluateTestID(responseID);
+            }
+            break;
+          }
+
+          case SEND:
+          case RECEIVE:
+            if (participantID != null && participantID.equalsIgnoreCase(identifier)) {
+              String dataType = attributes.get(TestRequestRules.InstructionAttribute.DATA_TYPE);
+              if (direction == TestRequestRules.Instruction.SEND)
+                instruct.setSendDataType(dataType);
+              else
+                instruct.setReceiveDataType(dataType);
+            }
+            break;
+
+          default:
+            break;
+        }
+      }
+
+      String responseID = null;
+
+      while (nextChildElement(reader)) {
+        TestRequestRules.Instruction step = 
+          ElementRule.lookup(TestRequestRules.INSTRUCTIONS, reader.getLocalName());
+        EnumMap<TestRequestRules.InstructionAttribute, String> stepAttributes = getInstructionAttributes(reader);
+        skipElement(reader);
+        if (step == null)
+          continue;
+
+        switch (step) {
+          case REPORT:
+            if (stepAttributes.containsKey(TestRequestRules.InstructionAttribute.PARTICIPANT_ID))
+              participant = stepAttributes.get(TestRequestRules.InstructionAttribute.PARTICIPANT_ID);
+            if (stepAttributes.containsKey(TestRequestRules.InstructionAttribute.RESPONSE_ID))
+              responseID = stepAttributes.get(TestRequestRules.InstructionAttribute.RESPONSE_ID);
+
+            // If this element belongs to us, add it to the Report instruction
+            if (participant != null && participant.equalsIgnoreCase(identifier)) {
+              if (direction == TestRequestRules.Instruction.SEND) {
+                instruct.setSendID(responseID);
+              } else if (direction == TestRequestRules.Instruction.RECEIVE) {
+                instruct.setReceiveID(responseID);
+              }
+            }
+            break;
+
+          case UPLOAD:
+            participant = stepAttributes.get(TestRequestRules.InstructionAttribute.PARTICIPANT_ID);
+
+            // If this element belongs to us, add the appropriate upload instruction
+            if (participant != null && participant.equalsIgnoreCase(identifier)) {
+              ParseTestRequest.addUpload(instruct, direction, 
+                                         stepAttributes.get(TestRequestRules.InstructionAttribute.RESPONSE_ID), 
+                                         stepAttributes.get(TestRequestRules.InstructionAttribute.FORMAT));
+            }
+            break;
+
+          case VERIFY:
+            if (stepAttributes.containsKey(TestRequestRules.InstructionAttribute.PARTICIPANT_ID))
+              participant = stepAttributes.get(TestRequestRules.InstructionAttribute.PARTICIPANT_ID);
+            responseID = stepAttributes.get(TestRequestRules.InstructionAttribute.RESPONSE_ID);
+
+            // If this element belongs to us, update the appropriate Verification Aspect instructions
+            if (participant != null && participant.equalsIgnoreCase(identifier)) {
+              instruct.setVerifyID(responseID, 
+                                   stepAttributes.get(TestRequestRules.InstructionAttribute.VERIFICATION_ASPECT));
+            }
+            break;
+
+          default:
+            break;
+        }
+      }
+    }
+    return instruct;
+  }
+
+  /**
+   * Collects the instruction attributes of the current element in one pass
+   * @param reader the XML stream positioned on a start element
+   * @return the recognized attributes and their values
+   */
+  private static EnumMap<TestRequestRules.InstructionAttribute, String> getInstructionAttributes(XMLStreamReader reader) {
+    EnumMap<TestRequestRules.InstructionAttribute, String> attributes = 
+      new EnumMap<>(TestRequestRules.InstructionAttribute.class);
+    for (int i=0; i < reader.getAttributeCount(); i++) {
+      TestRequestRules.InstructionAttribute attribute = 
+        ElementRule.lookup(TestRequestRules.INSTRUCTION_ATTRIBUTES, reader.getAttributeLocalName(i));
+      if (attribute != null)
+        attributes.putIfAbsent(attribute, reader.getAttributeValue(i));
+    }
+    return attributes;
+  }
+
+  /**
+   * Moves to the next child element of the current element
+   * @param reader the XML stream
+   * @return true if positioned on a child element, false if the end of the current element was reached
+   * @throws XMLStreamException
+   */
+  private static boolean nextChildElement(XMLStreamReader reader) throws XMLStreamException {
+    while (reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT)
+        return true;
+      if (event == XMLStreamConstants.END_ELEMENT)
+        return false;
+    }
+    return false;
+  }
+
+  /**
+   * Skips the rest of the current element, including all its children
+   * @param reader the XML stream positioned on or in the element
+   * @throws XMLStreamException
+   */
+  private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0 && reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT)
+        depth++;
+      else if (event == XMLStreamConstants.END_ELEMENT)
+        depth--;
+    }
+  }
+
+  /**
+   * Passes the value of the element's first child node (as the DOM parser sees it)
+   * to the setter, then skips the rest of the element.  Empty elements are ignored.
+   * @param reader the XML stream positioned on a start element
+   * @param setter receives the value
+   * @throws XMLStreamException
+   */
+  private static void setText(XMLStreamReader reader, java.util.function.Consumer<String> setter)
+    throws XMLStreamException {
+
+    int event = reader.next();
+    if (event == XMLStreamConstants.END_ELEMENT)
+      return;
+
+    String value = null;
+    if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE) {
+      // Adjacent character events form one DOM text node
+      StringBuilder text = new StringBuilder(reader.getText());
+      while ((event = reader.next()) == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE) {
+        text.append(reader.getText());
+      }
+      value = text.toString();
+    } else if (event == XMLStreamConstants.CDATA || event == XMLStreamConstants.COMMENT) {
+      value = reader.getText();
+      event = reader.next();
+    } else if (event == XMLStreamConstants.PROCESSING_INSTRUCTION) {
+      value = reader.getPIData();
+      event = reader.next();
+    }
+    setter.accept(value);
+
+    // Skip whatever follows the first child node
+    if (event == XMLStreamConstants.START_ELEMENT) {
+      skipElement(reader);
+      skipElement(reader);
+    } else if (event != XMLStreamConstants.END_ELEMENT) {
+      skipElement(reader);
+    }
+  }
+
+/*------------------------------------------------------------------------------
+ * Inner Class : CachedXMLResolver
+ *----------------------------------------------------------------------------*/
+  static class CachedXMLResolver implements XMLResolver {
+    @Override
+    public Object resolveEntity(String publicID, String systemID, String baseURI, String namespace)
+      throws XMLStreamException {
+      try {
+        // Resolve relative system identifiers the same way the DOM parser does
+        String resolvedID = systemID;
+        if (baseURI != null && !systemID.toLowerCase().startsWith("file:")) {
+          resolvedID = new URI(baseURI).resolve(systemID).toString();
+        }
+        return new ByteArrayInputStream(CachedEntityResolver.getEntity(resolvedID));
+      } catch (Exception ex) {
+        throw new XMLStreamException(ex.getMessage(), ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package com.dgi.fhirplace.parser;
+
+import com.dgi.fhirplace.handler.FHIRplaceConstants;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The tables used by the test request parsers to map the element and 
+ * attribute names of the test request to the objects they fill.
+ *
+ * To support a new element or attribute, add an entry to the matching table.
+ */
+final class TestRequestRules {
+
+  // Top level elements of the test request
+  enum Section { DESCRIPTION, PARTICIPANT, TRANSMISSION, INSTRUCTIONS }
+
+  // Elements in the Instructions section and their Report/Upload/Verify children
+  enum Instruction { ACK, SEND, RECEIVE, EVALUATE_TEST, REPORT, UPLOAD, VERIFY }
+
+  // Attributes used by the Instructions elements
+  enum InstructionAttribute { PARTICIPANT_ID, RESPONSE_ID, DATA_TYPE, FORMAT, VERIFICATION_ASPECT }
+
+  static final Map<String, Section> SECTIONS = new HashMap<>();
+  static final Map<String, Instruction> INSTRUCTIONS = new HashMap<>();
+  static final Map<String, InstructionAttribute> INSTRUCTION_ATTRIBUTES = new HashMap<>();
+  static final Map<String, Integer> UPLOAD_FORMATS = new HashMap<>();
+  static {
+    ElementRule.put(SECTIONS, "Description", Section.DESCRIPTION);
+    ElementRule.put(SECTIONS, "Participant", Section.PARTICIPANT);
+    ElementRule.put(SECTIONS, "Transmission", Section.TRANSMISSION);
+    ElementRule.put(SECTIONS, "Instructions", Section.INSTRUCTIONS);
+
+    ElementRule.put(INSTRUCTIONS, "Ack", Instruction.ACK);
+    ElementRule.put(INSTRUCTIONS, "Send", Instruction.SEND);
+    ElementRule.put(INSTRUCTIONS, "Receive", Instruction.RECEIVE);
+    ElementRule.put(INSTRUCTIONS, "EvaluateTest", Instruction.EVALUATE_TEST);
+    ElementRule.put(INSTRUCTIONS, "Report", Instruction.REPORT);
+    ElementRule.put(INSTRUCTIONS, "Upload", Instruction.UPLOAD);
+    ElementRule.put(INSTRUCTIONS, "Verify", Instruction.VERIFY);
+
+    ElementRule.put(INSTRUCTION_ATTRIBUTES, "ParticipantID", InstructionAttribute.PARTICIPANT_ID);
+    ElementRule.put(INSTRUCTION_ATTRIBUTES, "ResponseID", InstructionAttribute.RESPONSE_ID);
+    ElementRule.put(INSTRUCTION_ATTRIBUTES, "DataType", InstructionAttribute.DATA_TYPE);
+    ElementRule.put(INSTRUCTION_ATTRIBUTES, "Format", InstructionAttribute.FORMAT);
+    ElementRule.put(INSTRUCTION_ATTRIBUTES, "VerificationAspect", InstructionAttribute.VERIFICATION_ASPECT);
+
+    ElementRule.put(UPLOAD_FORMATS, "AccessToken", FHIRplaceConstants.ACCESS_TOKEN_DATA);
+    ElementRule.put(UPLOAD_FORMATS, "ClientID", FHIRplaceConstants.CLIENT_ID_DATA);
+    ElementRule.put(UPLOAD_FORMATS, "FHIR-ID", FHIRplaceConstants.FHIR_ID_DATA);
+    ElementRule.put(UPLOAD_FORMATS, "PatientData", FHIRplaceConstants.PATIENT_DATA);
+    ElementRule.put(UPLOAD_FORMATS, "Transport", FHIRplaceConstants.TRANSPORT_DATA);
+  }
+
+  // Description element
+  static final ElementRule<Description> DESCRIPTION = new ElementRule<Description>()
+    .child("Reason", new ElementRule<Description>()
+      .attribute("Protocol", Description::setProtocol)
+      .attribute("Purpose", Description::setPurpose))
+    .childText("TestRequestID", Description::setTestRequestID)
+    .childText("Version", Description::setVersion)
+    .childText("TestCase", Description::setTestCase)
+    .childText("ConnectivityType", Description::setConnectivityType)
+    .childText("TestDescription", Description::setTestDescription)
+    .childText("ExpectedResult", Description::setExpectedResult)
+    .child("TestRound", new ElementRule<Description>()
+      .childText("Name", Description::setTestName)
+      .childText("Purpose", Description::setTestPurpose)
+      .childText("Phase", Description::setTestPhase))
+    .child("TimeStamp", new ElementRule<Description>()
+      .childText("Date", Description::setDate)
+      .childText("Time", Description::setTime));
+
+  // Participant element
+  static final ElementRule<Participant> PARTICIPANT = new ElementRule<Participant>()
+    .attribute("ParticipantID", Participant::setParticipantID)
+    .childText("Name", Participant::setName)
+    .childText("Product", Participant::setProduct)
+    .childText("Version", Participant::setVersion)
+    .childText("FHIR-Version", Participant::setFhirVersion);
+
+  // Transmission element
+  static final ElementRule<Transmission> TRANSMISSION = new ElementRule<Transmission>()
+    .child("Originator", new ElementRule<Transmission>()
+      .attribute("ParticipantID", (trans, value) -> { 
+        trans.setOriginator(value); 
+        trans.setSenderID(value); 
+      })
+      .attribute("Role", Transmission::setOriginatorRole))
+    .child("Recipient", new ElementRule<Transmission>()
+      .attribute("ParticipantID", (trans, value) -> { 
+        trans.setRecipient(value); 
+        trans.setReceiverID(value); 
+      })
+      .attribute("Role", Transmission::setRecipientRole))
+    .child("Settings", new ElementRule<Transmission>()
+      .child("FHIRServer", new ElementRule<Transmission>()
+        .attribute("URL", Transmission::setFhirServer))
+      .child("AuthorizationServer", new ElementRule<Transmission>()
+        .attribute("URL", Transmission::setAuthorizationServer))
+      .child("ClientJwk", new ElementRule<Transmission>()
+        .attribute("FileName", Transmission::setClientJwkFileName)
+        .attribute("Owner", Transmission::setClientJwkOwner))
+      .child("mTLS", new ElementRule<Transmission>()
+        .attribute("BundleName", Transmission::setBundleName)
+        .attribute("Type", Transmission::setBundleType)
+        .attribute("Owner", Transmission::setBundleOwner))
+      .child("Patient", new ElementRule<Transmission>()
+        .attribute("ResourceName", Transmission::setPatientResourceName)
+        .attribute("Type", Transmission::setPatientResourceType)
+        .attribute("Owner", Transmission::setPatientResourceOwner))
+      .child("Coverage", new ElementRule<Transmission>()
+        .attribute("ResourceName", Transmission::setCoverageResourceName)
+        .attribute("Type", Transmission::setCoverageResourceType)
+        .attribute("Owner", Transmission::setCoverageResourceOwner)));
+
+  private TestRequestRules() {
+  }
+}
@@ -0,0 +1,262 @@
+package com.dgi.fhirplace.simulator;
+
+import com.dgi.fhirplace.handler.FHIRplaceConstants;
+import com.dgi.fhirplace.handler.LocalParameters;
+import com.dgi.fhirplace.metrics.LatencyHistogram;
+import com.dgi.fhirplace.util.AtomicFileWriter;
+import com.dgi.fhirplace.util.FHIRplaceUtil;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A stand-in for the FHIRplace client to load test the handler.  It drops
+ * generated test requests (and cancel requests) into the test request directory
+ * at a set rate, consumes the status and upload files the handler writes, and
+ * reports the throughput and the latency from dropping a test request to
+ * finding its test result.
+ *
+ * It reads the directories and participant ID from fhirplace-clientconfig.properties
+ * in the current directory, like the handler, so run it next to a running handler:
+ *   java -cp FHIRplace-Handler.jar com.dgi.fhirplace.simulator.ClientSimulator -rate 20 -count 1000
+ *
+ * Test requests are dropped in bursts of -burst files, -burst / -rate seconds apart.
+ */
+public class ClientSimulator {
+
+  static final String USAGE =
+    "Usage: ClientSimulator [options]\n" +
+    "  -count <n>        test requests to drop, default 100\n" +
+    "  -duration <s>     drop test requests for this many seconds instead of -count\n" +
+    "  -rate <n>         test requests per second on average, default 10\n" +
+    "  -burst <n>        test requests dropped at once, default 1\n" +
+    "  -partners <n>     trading partners the test requests are spread over, default 4\n" +
+    "  -receive <pct>    percentage of test requests where the handler receives first, default 0\n" +
+    "  -uploads <n>      Upload instructions in each Send / Receive, default 1\n" +
+    "  -verifies <n>     Verify instructions, 0 to 2, default 1\n" +
+    "  -description <n>  characters in the test description, default 40\n" +
+    "  -kill <pct>       percentage of test requests cancelled with a .kill file, default 0\n" +
+    "  -killdelay <ms>   milliseconds between a test request and its cancel request, default 500\n" +
+    "  -poll <ms>        milliseconds between two looks at the status directory, default 10\n" +
+    "  -drain <s>        seconds to wait for outstanding results after the last drop, default 60\n" +
+    "  -report <s>       seconds between two progress lines, default 10\n" +
+    "  -seed <n>         seed of the random choices, default random\n";
+
+  int count = 100;
+  int durationSeconds = 0;
+  double rate = 10;
+  int burst = 1;
+  int partners = 4;
+  int receivePercent = 0;
+  int killPercent = 0;
+  int killDelayMilliseconds = 500;
+  int pollMilliseconds = 10;
+  int drainSeconds = 60;
+  int reportSeconds = 10;
+  Random random = new Random();
+
+  LocalParameters params = null;
+  TestRequestGenerator generator = null;
+  String runID = null;
+
+  final ConcurrentHashMap<String, SimulatedTestRequest> outstanding = new ConcurrentHashMap<>();
+  StatusConsumer consumer = null;
+  ScheduledExecutorService scheduler = null;
+
+  volatile int dropped = 0;
+  volatile int cancelled = 0;
+  long startNanos = 0;
+  long lastDropNanos = 0;
+
+  public ClientSimulator(LocalParameters params) {
+    this.params = params;
+    this.generator = new TestRequestGenerator(params.getXMLIdentifier());
+    // Test request IDs of this run don't collide with archived ones of earlier runs
+    this.runID = "S" + Long.toString(System.currentTimeMillis() / 1000 % 1_000_000_000L, 36).toUpperCase();
+  }
+
+  /**
+   * Takes the settings from the command line
+   * @return false if the command line is not valid
+   */
+  boolean parseArguments(String[] args) {
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String option = args[i];
+        if (i + 1 >= args.length)
+          return false;
+        String value = args[++i];
+        switch (option) {
+          case "-count":       count = Integer.parseInt(value); break;
+          case "-duration":    durationSeconds = Integer.parseInt(value); break;
+          case "-rate":        rate = Double.parseDouble(value); break;
+          case "-burst":       burst = Math.max(Integer.parseInt(value), 1); break;
+          case "-partners":    partners = Math.max(Integer.parseInt(value), 1); break;
+          case "-receive":     receivePercent = Integer.parseInt(value); break;
+          case "-uploads":     generator.setUploads(Integer.parseInt(value)); break;
+          case "-verifies":    generator.setVerifies(Integer.parseInt(value)); break;
+          case "-description": generator.setDescriptionChars(Integer.parseInt(value)); break;
+          case "-kill":        killPercent = Integer.parseInt(value); break;
+          case "-killdelay":   killDelayMilliseconds = Integer.parseInt(value); break;
+          case "-poll":        pollMilliseconds = Integer.parseInt(value); break;
+          case "-drain":       drainSeconds = Integer.parseInt(value); break;
+          case "-report":      reportSeconds = Integer.parseInt(value); break;
+          case "-seed":        random = new Random(Long.parseLong(value)); break;
+          default:             return false;
+        }
+      }
+    } catch (NumberFormatException ex) {
+      return false;
+    }
+    return rate > 0;
+  }
+
+  /**
+   * Drops the test requests, waits for their results and prints the report
+   */
+  public void run() throws InterruptedException {
+    consumer = new StatusConsumer(params.getStatusDirectory(), pollMilliseconds, outstanding);
+    consumer.start();
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "ClientSimulator");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (reportSeconds > 0)
+      scheduler.scheduleAtFixedRate(this::printProgress, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+
+    System.out.println("Dropping " + ((durationSeconds > 0) ? "test requests for " + durationSeconds + " s" :
+                                                                count + " test requests") +
+                       " into " + params.getTestRequestDirectory() + " at " + rate + "/s in bursts of " + burst);
+    startNanos = System.nanoTime();
+    long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+    long intervalNanos = (long) (burst * 1_000_000_000L / rate);
+    long nextDropNanos = startNanos;
+
+    while ((durationSeconds > 0) ? System.nanoTime() < endNanos : dropped < count) {
+      long waitNanos = nextDropNanos - System.nanoTime();
+      if (waitNanos > 0) {
+        LockSupport.parkNanos(waitNanos);
+        continue;
+      }
+      for (int i = 0; i < burst && (durationSeconds > 0 || dropped < count); i++) {
+        this.dropTestRequest();
+      }
+      // Keep to the schedule, but after falling behind catch up by one burst at most
+      nextDropNanos = Math.max(nextDropNanos + intervalNanos, System.nanoTime() - intervalNanos);
+    }
+    lastDropNanos = System.nanoTime();
+
+    // Wait for the outstanding results
+    long drainEndNanos = lastDropNanos + TimeUnit.SECONDS.toNanos(drainSeconds);
+    while (!outstanding.isEmpty() && System.nanoTime() < drainEndNanos) {
+      Thread.sleep(pollMilliseconds);
+    }
+    scheduler.shutdownNow();
+    consumer.shutdown();
+    this.printReport();
+  }
+
+  private void dropTestRequest() {
+    String testRequestID = runID + String.format("%06d", dropped + 1);
+    String partner = "TP" + (dropped % partners + 1);
+    boolean sending = random.nextInt(100) >= receivePercent;
+    String fileName = params.getTestRequestDirectory() + FHIRplaceConstants.FILE_SEPARATOR +
+                      "Req-" + testRequestID + ".xml";
+    dropped++;
+
+    try {
+      byte[] xml = generator.build(testRequestID, partner, sending).getBytes(StandardCharsets.UTF_8);
+      // Registered first, the handler may answer before the write returns
+      SimulatedTestRequest request = new SimulatedTestRequest(testRequestID, partner, sending, System.nanoTime());
+      outstanding.put(testRequestID, request);
+      AtomicFileWriter.write(fileName, xml, false);
+      if (random.nextInt(100) < killPercent) {
+        cancelled++;
+        scheduler.schedule(() -> this.dropCancelRequest(request), killDelayMilliseconds, TimeUnit.MILLISECONDS);
+      }
+    } catch (IOException ex) {
+      outstanding.remove(testRequestID);
+      System.err.println("Could not write " + fileName + ": " + ex.getMessage());
+    }
+  }
+
+  private void dropCancelRequest(SimulatedTestRequest request) {
+    String fileName = params.getTestRequestDirectory() + FHIRplaceConstants.FILE_SEPARATOR +
+                      "Req-" + request.testRequestID + ".kill";
+    request.cancelled = true;
+    try {
+      byte[] xml = generator.buildCancel(request.testRequestID, request.partner, request.sending)
+                            .getBytes(StandardCharsets.UTF_8);
+      AtomicFileWriter.write(fileName, xml, false);
+    } catch (IOException ex) {
+      System.err.println("Could not write " + fileName + ": " + ex.getMessage());
+    }
+  }
+
+  private void printProgress() {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    System.out.println(String.format("%8.1f s: %d dropped, %d results, %d outstanding, %.1f results/s",
+                                     seconds, dropped, consumer.getCompleted(), outstanding.size(),
+                                     consumer.getCompleted() / seconds));
+  }
+
+  void printReport() {
+    long endNanos = Math.max(consumer.getLastResultNanos(), lastDropNanos);
+    double seconds = (endNanos - startNanos) / 1e9;
+    double dropSeconds = (lastDropNanos - startNanos) / 1e9;
+
+    StringBuilder text = new StringBuilder("\nClient simulator results\n");
+    text.append(String.format("  Dropped:    %d test requests (%d cancelled) in %.1f s, %.1f/s%n",
+                              dropped, cancelled, dropSeconds, dropped / Math.max(dropSeconds, 1e-9)));
+    text.append(String.format("  Results:    %d OK, %d not OK (%d of cancelled tests), %d missing%n",
+                              consumer.getResultsOK(), consumer.getResultsNotOK(),
+                              consumer.getCancelledResults(), outstanding.size()));
+    text.append(String.format("  Consumed:   %d status files (%d NAK), %d upload files, %d unknown or late%n",
+                              consumer.getStatusFiles(), consumer.getNaks(), consumer.getUploadFiles(),
+                              consumer.getUnmatchedFiles()));
+    text.append(String.format("  Throughput: %.1f results/s over %.1f s%n",
+                              consumer.getCompleted() / Math.max(seconds, 1e-9), seconds));
+    appendLatency(text, "Request to ACK (ms):    ", consumer.getAckLatency());
+    appendLatency(text, "Request to RESULTS (ms):", consumer.getResultsLatency());
+    System.out.print(text);
+  }
+
+  static void appendLatency(StringBuilder text, String title, LatencyHistogram histogram) {
+    text.append(String.format("  %s count=%d p50=%.3f p99=%.3f p999=%.3f max=%.3f%n", title,
+                              histogram.getCount(),
+                              histogram.getPercentileNanos(0.50) / 1e6,
+                              histogram.getPercentileNanos(0.99) / 1e6,
+                              histogram.getPercentileNanos(0.999) / 1e6,
+                              histogram.getMaxNanos() / 1e6));
+  }
+
+  /**
+   * @param args the command line arguments, see USAGE
+   */
+  public static void main(String[] args) throws Exception {
+    LocalParameters params = new LocalParameters();
+    params.getProperties();
+    if (FHIRplaceUtil.isNullOrEmpty(params.getTestRequestDirectory()) ||
+        FHIRplaceUtil.isNullOrEmpty(params.getStatusDirectory()) ||
+        FHIRplaceUtil.isNullOrEmpty(params.getXMLIdentifier())) {
+      System.err.println("The test request and status directories and the participant ID must be set " +
+                         "in fhirplace-clientconfig.properties");
+      System.exit(1);
+    }
+
+    ClientSimulator simulator = new ClientSimulator(params);
+    if (!simulator.parseArguments(args)) {
+      System.err.print(USAGE);
+      System.exit(1);
+    }
+    simulator.run();
+    System.exit(0);
+  }
+}
@@ -0,0 +1,36 @@
+package com.dgi.fhirplace.simulator;
+
+/**
+ * A test request dropped by the simulator and waiting for its result
+ */
+public class SimulatedTestRequest {
+
+  final String testRequestID;
+  final String partner;
+  final boolean sending;
+
+  // System.nanoTime() when the file was in the test request directory
+  final long droppedNanos;
+  volatile boolean acknowledged = false;
+  volatile boolean cancelled = false;
+
+  SimulatedTestRequest(String testRequestID, String partner, boolean sending, long droppedNanos) {
+    this.testRequestID = testRequestID;
+    this.partner = partner;
+    this.sending = sending;
+    this.droppedNanos = droppedNanos;
+  }
+
+  public String getTestRequestID() {
+    return this.testRequestID;
+  }
+  public String getPartner() {
+    return this.partner;
+  }
+  public boolean isSending() {
+    return this.sending;
+  }
+  public boolean isCancelled() {
+    return this.cancelled;
+  }
+}
@@ -0,0 +1,186 @@
+package com.dgi.fhirplace.simulator;
+
+import com.dgi.fhirplace.metrics.LatencyHistogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class reads and removes the status (.sts) and upload (.uld) files from the
+ * status directory, as the FHIRplace client does, and matches them to the test
+ * requests waiting for them.  A test request is complete when its test result
+ * (RESULTS_OK or RESULTS_NOT_OK) is found.
+ *
+ * Status file names are the response IDs of the test request, e.g., T1001_AACK_P.sts,
+ * so the test request ID is the part before the first underscore.
+ */
+public class StatusConsumer extends Thread {
+
+  static final String POSITIVE = "_P.sts";
+  static final String NEGATIVE = "_N.sts";
+  static final String UPLOAD = ".uld";
+  static final String RESULTS = "VotedOK_";
+
+  final File statusDirectory;
+  final long pollNanos;
+  final ConcurrentHashMap<String, SimulatedTestRequest> outstanding;
+
+  // From dropping the test request to its ACK (or NAK), and to its test result
+  final LatencyHistogram ackLatency = new LatencyHistogram();
+  final LatencyHistogram resultsLatency = new LatencyHistogram();
+
+  final AtomicLong resultsOK = new AtomicLong();
+  final AtomicLong resultsNotOK = new AtomicLong();
+  final AtomicLong cancelledResults = new AtomicLong();
+  final AtomicLong naks = new AtomicLong();
+  final AtomicLong statusFiles = new AtomicLong();
+  final AtomicLong uploadFiles = new AtomicLong();
+  final AtomicLong unmatchedFiles = new AtomicLong();
+  volatile long lastResultNanos = 0;
+
+  private volatile boolean forever = true;
+
+  /**
+   * @param statusDirectory - the handler's status directory
+   * @param pollMilliseconds - milliseconds between two looks at the directory
+   * @param outstanding - the test requests waiting for their result, by test request ID
+   */
+  public StatusConsumer(String statusDirectory, int pollMilliseconds,
+                        ConcurrentHashMap<String, SimulatedTestRequest> outstanding) {
+    this.statusDirectory = new File(statusDirectory);
+    this.pollNanos = Math.max(pollMilliseconds, 1) * 1_000_000L;
+    this.outstanding = outstanding;
+    this.setName("StatusConsumer");
+    this.setDaemon(true);
+  }
+
+  @Override
+  public void run() {
+    while (forever) {
+      this.consume();
+      LockSupport.parkNanos(pollNanos);
+    }
+    // Pick up what arrived while stopping
+    this.consume();
+  }
+
+  public void shutdown() {
+    forever = false;
+    LockSupport.unpark(this);
+    try {
+      this.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Reads and removes all status and upload files currently in the status directory
+   */
+  void consume() {
+    String[] names = statusDirectory.list();
+    if (names == null)
+      return;
+    // The directory lists the files in no particular order, take the test results
+    // last so the other files of their test requests are still matched
+    Arrays.sort(names, Comparator.comparing((String name) -> name.contains(RESULTS)));
+    long now = System.nanoTime();
+    for (String name : names) {
+      boolean upload = name.endsWith(UPLOAD);
+      boolean positive = name.endsWith(POSITIVE);
+      if (!upload && !positive && !name.endsWith(NEGATIVE))
+        continue;
+
+      File file = new File(statusDirectory, name);
+      try {
+        Files.readAllBytes(file.toPath());
+        Files.delete(file.toPath());
+      } catch (NoSuchFileException ex) {
+        continue;
+      } catch (IOException ex) {
+        System.err.println("Could not consume " + file + ": " + ex.getMessage());
+        continue;
+      }
+
+      if (upload) {
+        uploadFiles.incrementAndGet();
+      } else {
+        statusFiles.incrementAndGet();
+        this.matchStatus(name.substring(0, name.length() - POSITIVE.length()), positive, now);
+      }
+    }
+  }
+
+  private void matchStatus(String responseID, boolean positive, long now) {
+    int separator = responseID.indexOf('_');
+    SimulatedTestRequest request = (separator > 0) ? outstanding.get(responseID.substring(0, separator)) : null;
+    if (request == null) {
+      // Not ours, or written after the test result, e.g., by a cancelled test still running
+      unmatchedFiles.incrementAndGet();
+      return;
+    }
+
+    if (responseID.equals(TestRequestGenerator.getAckID(request.testRequestID, request.sending))) {
+      if (!positive)
+        naks.incrementAndGet();
+      if (!request.acknowledged) {
+        request.acknowledged = true;
+        ackLatency.record(now - request.droppedNanos);
+      }
+    } else if (responseID.equals(TestRequestGenerator.getEvaluateTestID(request.testRequestID, request.sending))) {
+      if (outstanding.remove(request.testRequestID, request)) {
+        if (positive)
+          resultsOK.incrementAndGet();
+        else
+          resultsNotOK.incrementAndGet();
+        // Cancelled tests end early, keep them out of the latencies
+        if (request.cancelled)
+          cancelledResults.incrementAndGet();
+        else
+          resultsLatency.record(now - request.droppedNanos);
+        lastResultNanos = now;
+      }
+    }
+  }
+
+  public LatencyHistogram getAckLatency() {
+    return this.ackLatency;
+  }
+  public LatencyHistogram getResultsLatency() {
+    return this.resultsLatency;
+  }
+  public long getResultsOK() {
+    return this.resultsOK.get();
+  }
+  public long getResultsNotOK() {
+    return this.resultsNotOK.get();
+  }
+  public long getCompleted() {
+    return this.resultsOK.get() + this.resultsNotOK.get();
+  }
+  public long getCancelledResults() {
+    return this.cancelledResults.get();
+  }
+  public long getNaks() {
+    return this.naks.get();
+  }
+  public long getStatusFiles() {
+    return this.statusFiles.get();
+  }
+  public long getUploadFiles() {
+    return this.uploadFiles.get();
+  }
+  public long getUnmatchedFiles() {
+    return this.unmatchedFiles.get();
+  }
+  public long getLastResultNanos() {
+    return this.lastResultNanos;
+  }
+}
@@ -0,0 +1,195 @@
+package com.dgi.fhirplace.simulator;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Builds test request XML in the form the FHIRplace client writes it, with all
+ * the elements ParseTestRequest reads: Description, both Participants, the
+ * Transmission and the Instructions for this participant and its partner.
+ *
+ * The participant that starts the exchange uses response IDs with an "A" and the
+ * other one response IDs with a "B", e.g., T1001_AACK and T1001_BACK.
+ */
+public class TestRequestGenerator {
+
+  static final String[] UPLOAD_FORMATS = { "FHIR-ID", "ClientID", "AccessToken", "PatientData", "Transport" };
+
+  static final String TEST_REQUEST_PURPOSE = "TestRequest";
+  static final String CANCEL_REQUEST_PURPOSE = "CancelRequest";
+
+  String identifier = null;
+  int uploads = 1;
+  int verifies = 1;
+  int descriptionChars = 40;
+
+  /**
+   * @param identifier - the participant ID of the handler, com.dgi.participantid
+   */
+  public TestRequestGenerator(String identifier) {
+    this.identifier = identifier;
+  }
+
+  /**
+   * Sets the number of Upload instructions in each of the Send and Receive instructions
+   */
+  public void setUploads(int uploads) {
+    this.uploads = Math.max(uploads, 0);
+  }
+  public int getUploads() {
+    return this.uploads;
+  }
+
+  /**
+   * Sets the number of Verify instructions: 0, 1 (in the Receive) or 2 (in the Send too).
+   * The handler reports one verification per test request, the last one.
+   */
+  public void setVerifies(int verifies) {
+    this.verifies = Math.max(Math.min(verifies, 2), 0);
+  }
+  public int getVerifies() {
+    return this.verifies;
+  }
+
+  /**
+   * Sets the length of the test description, to make the test requests larger
+   */
+  public void setDescriptionChars(int descriptionChars) {
+    this.descriptionChars = Math.max(descriptionChars, 0);
+  }
+
+  /**
+   * Returns the XML of a test request
+   * @param testRequestID - the test request ID, e.g., T1001
+   * @param partner - the participant ID of the trading partner
+   * @param sending - true if this participant sends first, false if it receives first
+   */
+  public String build(String testRequestID, String partner, boolean sending) {
+    return this.build(testRequestID, partner, sending, TEST_REQUEST_PURPOSE);
+  }
+
+  /**
+   * Returns the XML of a cancel request for a test request built with the same arguments
+   */
+  public String buildCancel(String testRequestID, String partner, boolean sending) {
+    return this.build(testRequestID, partner, sending, CANCEL_REQUEST_PURPOSE);
+  }
+
+  /**
+   * Returns the response ID of the test result (RESULTS_OK / RESULTS_NOT_OK) of a test request
+   */
+  public static String getEvaluateTestID(String testRequestID, boolean sending) {
+    return testRequestID + "_" + side(sending) + "VotedOK";
+  }
+
+  /**
+   * Returns the response ID of the ACK / NAK of a test request
+   */
+  public static String getAckID(String testRequestID, boolean sending) {
+    return testRequestID + "_" + side(sending) + "ACK";
+  }
+
+  private String build(String testRequestID, String partner, boolean sending, String purpose) {
+    String originator = sending ? identifier : partner;
+    String recipient = sending ? partner : identifier;
+
+    StringBuilder description = new StringBuilder(descriptionChars);
+    while (description.length() < descriptionChars) {
+      description.append("Member match test with a long description. ");
+    }
+    description.setLength(descriptionChars);
+
+    StringBuilder xml = new StringBuilder(2048 + descriptionChars + uploads * 320);
+    xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    xml.append("<TestRequest>\n");
+    xml.append("  <Description>\n");
+    xml.append("    <TestRequestID>").append(testRequestID).append("</TestRequestID>\n");
+    xml.append("    <Version>1.0</Version>\n");
+    xml.append("    <Reason Protocol=\"fhir\" Purpose=\"").append(purpose).append("\"/>\n");
+    xml.append("    <TestCase>PDEX-01</TestCase>\n");
+    xml.append("    <ConnectivityType>Direct</ConnectivityType>\n");
+    xml.append("    <TestDescription>").append(description).append("</TestDescription>\n");
+    xml.append("    <ExpectedResult>Success</ExpectedResult>\n");
+    xml.append("    <TestRound><Name>Round 1</Name><Purpose>Interop</Purpose><Phase>2</Phase></TestRound>\n");
+    // Stamped when built, like the client does, so the deadline scheduler sees a realistic request time
+    LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+    xml.append("    <TimeStamp><Date>").append(now.toLocalDate()).append("</Date><Time>")
+       .append(now.toLocalTime()).append("</Time></TimeStamp>\n");
+    xml.append("  </Description>\n");
+    participant(xml, originator, "New Payer");
+    participant(xml, recipient, "Old Payer");
+    xml.append("  <Transmission>\n");
+    xml.append("    <Originator ParticipantID=\"").append(originator).append("\" Role=\"NewPayer\"/>\n");
+    xml.append("    <Recipient ParticipantID=\"").append(recipient).append("\" Role=\"OldPayer\"/>\n");
+    xml.append("    <Settings>\n");
+    xml.append("      <FHIRServer URL=\"https://fhir.example/").append(recipient).append("\"/>\n");
+    xml.append("      <AuthorizationServer URL=\"https://auth.example/").append(recipient).append("\"/>\n");
+    xml.append("      <ClientJwk FileName=\"jwk.json\" Owner=\"").append(originator).append("\"/>\n");
+    xml.append("      <mTLS BundleName=\"bundle\" Type=\"PEM\" Owner=\"").append(originator).append("\"/>\n");
+    xml.append("      <Patient ResourceName=\"pat\" Type=\"JSON\" Owner=\"").append(recipient).append("\"/>\n");
+    xml.append("      <Coverage ResourceName=\"cov\" Type=\"JSON\" Owner=\"").append(recipient).append("\"/>\n");
+    xml.append("    </Settings>\n");
+    xml.append("  </Transmission>\n");
+    xml.append("  <Instructions>\n");
+    ack(xml, originator, testRequestID, true);
+    ack(xml, recipient, testRequestID, false);
+    // The originator sends the FHIR-ID and receives the client ID in response, the
+    // instructions are named as this participant sees them
+    this.exchange(xml, sending ? "Send" : "Receive", "FHIR-ID", originator, recipient, originator,
+                  testRequestID);
+    this.exchange(xml, sending ? "Receive" : "Send", "ClientID", recipient, originator, originator,
+                  testRequestID);
+    evaluate(xml, originator, testRequestID, true);
+    evaluate(xml, recipient, testRequestID, false);
+    xml.append("  </Instructions>\n");
+    xml.append("</TestRequest>\n");
+    return xml.toString();
+  }
+
+  private void exchange(StringBuilder xml, String element, String dataType, String sender, String receiver,
+                        String originator, String testRequestID) {
+    xml.append("    <").append(element).append(" DataType=\"").append(dataType)
+       .append("\" ParticipantID=\"").append(identifier).append("\">\n");
+    // This participant verifies what it receives first, then what it sends
+    boolean verify = verifies > (element.equals("Receive") ? 0 : 1);
+    this.steps(xml, sender, testRequestID, sender.equals(originator), "Sent", verify, dataType);
+    this.steps(xml, receiver, testRequestID, receiver.equals(originator), "Recv", verify, dataType);
+    xml.append("    </").append(element).append(">\n");
+  }
+
+  private void steps(StringBuilder xml, String participant, String testRequestID, boolean originator,
+                     String report, boolean verify, String verificationAspect) {
+    String prefix = testRequestID + "_" + side(originator);
+    xml.append("      <Report ParticipantID=\"").append(participant).append("\" ResponseID=\"")
+       .append(prefix).append(report).append("\"/>\n");
+    for (int i = 0; i < uploads; i++) {
+      xml.append("      <Upload ParticipantID=\"").append(participant).append("\" ResponseID=\"")
+         .append(prefix).append("Up").append(report).append(i)
+         .append("\" Format=\"").append(UPLOAD_FORMATS[i % UPLOAD_FORMATS.length]).append("\"/>\n");
+    }
+    if (verify && participant.equals(identifier)) {
+      xml.append("      <Verify ParticipantID=\"").append(participant).append("\" ResponseID=\"")
+         .append(prefix).append("Ver").append(report)
+         .append("\" VerificationAspect=\"").append(verificationAspect).append("\"/>\n");
+    }
+  }
+
+  private static void participant(StringBuilder xml, String id, String name) {
+    xml.append("  <Participant ParticipantID=\"").append(id).append("\"><Name>").append(name)
+       .append("</Name><Product>Simulator</Product><Version>1</Version><FHIR-Version>4.0.1</FHIR-Version></Participant>\n");
+  }
+
+  private static void ack(StringBuilder xml, String participant, String testRequestID, boolean originator) {
+    xml.append("    <Ack ParticipantID=\"").append(participant).append("\" ResponseID=\"")
+       .append(getAckID(testRequestID, originator)).append("\"/>\n");
+  }
+
+  private static void evaluate(StringBuilder xml, String participant, String testRequestID, boolean originator) {
+    xml.append("    <EvaluateTest ParticipantID=\"").append(participant).append("\" ResponseID=\"")
+       .append(getEvaluateTestID(testRequestID, originator)).append("\"/>\n");
+  }
+
+  private static String side(boolean originator) {
+    return originator ? "A" : "B";
+  }
+}
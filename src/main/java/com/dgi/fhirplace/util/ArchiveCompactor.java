@@ -0,0 +1,186 @@
+package com.dgi.fhirplace.util;
+
+import com.dgi.fhirplace.handler.Logger;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * This class packs the days of a date laid out archive (yyyy/MM/dd) that are
+ * older than the configured number of days into one compressed segment per day
+ * (yyyy/MM/dd.zip), and removes the day's directory.  The archive index is
+ * updated to point to the segment, so packed files are still found as
+ * duplicates and can still be retrieved.
+ *
+ * The check runs in the background once an hour.
+ */
+public class ArchiveCompactor {
+
+  static final long CHECK_INTERVAL_MINUTES = 60;
+
+  Logger log = new Logger(ArchiveCompactor.class);
+
+  ArchiveIndex archiveIndex = null;
+  int compactAfterDays;
+
+  ScheduledExecutorService scheduler = null;
+
+  /**
+   * @param archiveIndex - the index of the date laid out archive
+   * @param compactAfterDays - days after which a day of the archive is packed
+   */
+  public ArchiveCompactor(ArchiveIndex archiveIndex, int compactAfterDays) {
+    this.archiveIndex = archiveIndex;
+    this.compactAfterDays = Math.max(compactAfterDays, 1);
+  }
+
+  public void start() {
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "ArchiveCompactor");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::compact, 1, CHECK_INTERVAL_MINUTES, TimeUnit.MINUTES);
+  }
+
+  public void shutdown() {
+    if (scheduler != null)
+      scheduler.shutdown();
+  }
+
+  /**
+   * Packs every day of the archive older than the limit
+   */
+  public void compact() {
+    LocalDate cutoff = LocalDate.now().minusDays(compactAfterDays);
+    Path archiveDirectory = archiveIndex.getArchiveDirectory();
+
+    try {
+      for (Path year : listNumberedDirectories(archiveDirectory, 4)) {
+        for (Path month : listNumberedDirectories(year, 2)) {
+          for (Path day : listNumberedDirectories(month, 2)) {
+            LocalDate date;
+            try {
+              date = LocalDate.of(Integer.parseInt(year.getFileName().toString()),
+                                  Integer.parseInt(month.getFileName().toString()),
+                                  Integer.parseInt(day.getFileName().toString()));
+            } catch (DateTimeException ex) {
+              continue;
+            }
+            if (date.isBefore(cutoff))
+              this.pack(day);
+          }
+        }
+      }
+    } catch (IOException | RuntimeException ex) {
+      log.writeStackTrace("Could not compact the archive", ex);
+    }
+  }
+
+  /**
+   * Returns the subdirectories whose names are made of the given number of digits
+   */
+  private static List<Path> listNumberedDirectories(Path directory, int digits) throws IOException {
+    List<Path> directories = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "[0-9]*")) {
+      for (Path path : stream) {
+        String name = path.getFileName().toString();
+        if (name.length() == digits && name.chars().allMatch(Character::isDigit) && Files.isDirectory(path))
+          directories.add(path);
+      }
+    }
+    directories.sort(null);
+    return directories;
+  }
+
+  /**
+   * Packs the files of one day into its segment and removes the day's directory
+   * @param day - the day's directory
+   * @throws IOException
+   */
+  void pack(Path day) throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(day)) {
+      for (Path path : stream) {
+        if (Files.isRegularFile(path))
+          files.add(path);
+      }
+    }
+
+    Path month = day.getParent();
+    Path segment = month.resolve(day.getFileName() + ArchiveIndex.SEGMENT_SUFFIX);
+
+    if (!files.isEmpty()) {
+      Set<String> names = new HashSet<>();
+      Path temp = Files.createTempFile(month, "." + segment.getFileName() + ".", ".tmp");
+      try {
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(temp))) {
+          for (Path file : files) {
+            String name = file.getFileName().toString();
+            ZipEntry entry = new ZipEntry(name);
+            entry.setLastModifiedTime(Files.getLastModifiedTime(file));
+            zip.putNextEntry(entry);
+            Files.copy(file, zip);
+            zip.closeEntry();
+            names.add(name);
+          }
+          // Keep whatever an earlier, interrupted run already packed
+          if (Files.exists(segment)) {
+            try (ZipFile previous = new ZipFile(segment.toFile())) {
+              Enumeration<? extends ZipEntry> entries = previous.entries();
+              while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (names.add(entry.getName())) {
+                  ZipEntry copy = new ZipEntry(entry.getName());
+                  copy.setLastModifiedTime(entry.getLastModifiedTime());
+                  zip.putNextEntry(copy);
+                  previous.getInputStream(entry).transferTo(zip);
+                  zip.closeEntry();
+                }
+              }
+            }
+          }
+        }
+        try {
+          Files.move(temp, segment, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+          Files.move(temp, segment, StandardCopyOption.REPLACE_EXISTING);
+        }
+      } catch (IOException | RuntimeException ex) {
+        Files.deleteIfExists(temp);
+        throw ex;
+      }
+
+      // The segment is complete, point the index to it before the loose files go
+      archiveIndex.moveToSegment(names, day, segment);
+      for (Path file : files) {
+        if (!file.toFile().delete())
+          FileCleanupScheduler.getInstance().scheduleDelete(file.toFile());
+      }
+      log.write("Packed " + files.size() + " archived files into " + segment);
+    }
+
+    if (day.toFile().delete())
+      archiveIndex.markSnapshotCurrent();
+    else if (files.isEmpty())
+      log.write("Warning: Could not remove the empty archive directory " + day);
+  }
+}
@@ -0,0 +1,450 @@
+package com.dgi.fhirplace.util;
+
+import com.dgi.fhirplace.handler.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * This class keeps the names of all archived files in memory, along with where
+ * each one is stored, so checking whether a test request was already processed
+ * is a hash lookup rather than a file system call against an ever growing archive.
+ *
+ * The archive is laid out in one of three ways:
+ *   - flat:   all files directly in the archive directory
+ *   - date:   in yyyy/MM/dd subdirectories of the day the file was archived,
+ *             old days may be packed into one yyyy/MM/dd.zip segment each
+ *   - prefix: in subdirectories named after the test request ID without its
+ *             last three characters (e.g., T12345 is archived in T12), so each
+ *             subdirectory holds at most a thousand test requests
+ *
+ * The index is optionally kept in a snapshot file as well, one "name[TAB]location"
+ * line per file, with every change appended before the archive itself is changed.
+ * Closing the index marks the snapshot as up to date, and at startup the snapshot
+ * is used instead of listing the archive unless a directory of the archive was
+ * changed after that, e.g., by a handler that stopped without closing the index.
+ */
+public class ArchiveIndex {
+
+  public enum Layout { FLAT, DATE, PREFIX }
+
+  static final String SEGMENT_SUFFIX = ".zip";
+
+  Logger log = new Logger(ArchiveIndex.class);
+
+  Path archiveDirectory = null;
+  Path snapshotFile = null;
+  Layout layout = Layout.FLAT;
+
+  // Archived file name -> location relative to the archive directory (a directory or a segment)
+  Map<String, String> locations = new ConcurrentHashMap<>();
+  volatile boolean loaded = false;
+
+  // Appends changes to the snapshot, guarded by this object
+  BufferedWriter snapshotWriter = null;
+
+  /**
+   * @param archiveDirectory - the archive directory
+   * @param snapshotFileName - the snapshot file, or null to keep the index in memory only
+   * @param layout - how files are placed in the archive directory
+   */
+  public ArchiveIndex(String archiveDirectory, String snapshotFileName, Layout layout) {
+    this.archiveDirectory = Paths.get(archiveDirectory);
+    this.layout = layout;
+    if (!FHIRplaceUtil.isNullOrEmpty(snapshotFileName)) {
+      this.snapshotFile = Paths.get(snapshotFileName).toAbsolutePath();
+    }
+  }
+
+  /**
+   * Loads the index from the snapshot if it is up to date, otherwise from the archive directory
+   */
+  public synchronized void load() {
+    long start = System.currentTimeMillis();
+    String source;
+    try {
+      if (this.isSnapshotCurrent()) {
+        int lines = this.readSnapshot();
+        // Compact the snapshot once most of its lines are superseded
+        if (lines > 2 * locations.size() + 1000)
+          this.writeSnapshot();
+        else
+          snapshotWriter = Files.newBufferedWriter(snapshotFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        source = "snapshot " + snapshotFile;
+      } else {
+        this.readDirectory(archiveDirectory, "");
+        this.writeSnapshot();
+        source = "directory " + archiveDirectory;
+      }
+    } catch (IOException ex) {
+      log.writeStackTrace("Could not load the archive index", ex);
+      locations.clear();
+      try {
+        this.readDirectory(archiveDirectory, "");
+      } catch (IOException ex2) {
+        log.writeStackTrace("Could not list the archive directory", ex2);
+      }
+      this.closeSnapshot();
+      snapshotFile = null;
+      source = "directory " + archiveDirectory + " (snapshot disabled)";
+    }
+    loaded = true;
+
+    log.write("Loaded " + locations.size() + " archived file names from " + source + " in " +
+              (System.currentTimeMillis() - start) + " ms");
+  }
+
+  /**
+   * Returns true once the index has been loaded
+   */
+  public boolean isLoaded() {
+    return this.loaded;
+  }
+
+  public Layout getLayout() {
+    return this.layout;
+  }
+
+  /**
+   * Returns true if a file of this name was archived
+   * @param name - the file name (without directory)
+   */
+  public boolean contains(String name) {
+    return locations.containsKey(name);
+  }
+
+  /**
+   * Returns true if a file of this name was archived and is still in the archive
+   * @param name - the file name (without directory)
+   */
+  public boolean exists(String name) {
+    String location = locations.get(name);
+    if (location == null)
+      return false;
+    if (isSegment(location))
+      return Files.exists(archiveDirectory.resolve(location));
+    return Files.exists(archiveDirectory.resolve(location).resolve(name));
+  }
+
+  /**
+   * Returns the directory a file of this name is archived in today, creating it if needed
+   * @param name - the file name (without directory)
+   * @return the directory
+   * @throws IOException if the directory could not be created
+   */
+  public Path getTargetDirectory(String name) throws IOException {
+    Path directory;
+    switch (layout) {
+      case DATE:
+        LocalDate today = LocalDate.now();
+        directory = archiveDirectory.resolve(String.format("%04d/%02d/%02d", today.getYear(),
+                                                           today.getMonthValue(), today.getDayOfMonth()));
+        break;
+      case PREFIX:
+        directory = archiveDirectory.resolve(getPrefix(name));
+        break;
+      default:
+        return archiveDirectory;
+    }
+    Files.createDirectories(directory);
+    return directory;
+  }
+
+  /**
+   * Returns the subdirectory used for a file by the prefix layout
+   * @param name - the file name (without directory)
+   */
+  static String getPrefix(String name) {
+    String key;
+    String lowerName = name.toLowerCase(Locale.ROOT);
+    if (lowerName.startsWith("req-") && name.indexOf('.') > 4) {
+      key = name.substring(4, name.indexOf('.'));
+    } else {
+      key = (name.indexOf('.') > 0) ? name.substring(0, name.indexOf('.')) : name;
+    }
+    return (key.length() > 3) ? key.substring(0, key.length() - 3) : "_";
+  }
+
+  /**
+   * Records a file about to be archived, before it is moved to the archive
+   * @param archivedFile - where the file will be archived
+   */
+  public void add(Path archivedFile) {
+    String name = archivedFile.getFileName().toString();
+    String location = this.getRelativeLocation(archivedFile.toAbsolutePath().getParent());
+    this.put(name, location);
+  }
+
+  /**
+   * Records that the files of a day were packed into a segment.  Files archived
+   * again since then keep their newer location.
+   * @param names - the names of the packed files
+   * @param day - the directory the files were packed from
+   * @param segment - the segment file
+   */
+  void moveToSegment(Collection<String> names, Path day, Path segment) {
+    String dayLocation = this.getRelativeLocation(day.toAbsolutePath());
+    String location = this.getRelativeLocation(segment.toAbsolutePath());
+    for (String name : names) {
+      String current = locations.get(name);
+      if (current == null || current.equals(dayLocation) || current.equals(location))
+        this.put(name, location);
+    }
+  }
+
+  /**
+   * Marks the snapshot as up to date after files were removed from the archive
+   * (e.g., a packed day), so it is still used at the next start
+   */
+  synchronized void markSnapshotCurrent() {
+    if (snapshotWriter == null)
+      return;
+    try {
+      Files.setLastModifiedTime(snapshotFile, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException ex) {
+      // The archive is listed at the next start instead
+    }
+  }
+
+  private void put(String name, String location) {
+    if (location.equals(locations.put(name, location)))
+      return;
+
+    synchronized (this) {
+      if (snapshotWriter == null)
+        return;
+      try {
+        writeEntry(snapshotWriter, name, location);
+        snapshotWriter.flush();
+      } catch (IOException ex) {
+        log.writeStackTrace("Could not update the archive index snapshot, it will be rebuilt at the next start", ex);
+        this.closeSnapshot();
+      }
+    }
+  }
+
+  /**
+   * Returns the name of the archived request file of a test request
+   * @param testRequestID - the test request ID
+   * @return the file name, or null if the test request is not in the archive
+   */
+  public String findTestRequest(String testRequestID) {
+    String name = "Req-" + testRequestID + ".xml";
+    if (locations.containsKey(name))
+      return name;
+    name = "Req-" + testRequestID + ".kill";
+    return locations.containsKey(name) ? name : null;
+  }
+
+  /**
+   * Opens an archived file, wherever it is stored
+   * @param name - the file name (without directory)
+   * @return the contents of the file, or null if it is not in the archive
+   * @throws IOException
+   */
+  public InputStream open(String name) throws IOException {
+    String location = locations.get(name);
+    if (location == null)
+      return null;
+
+    if (!isSegment(location))
+      return Files.newInputStream(archiveDirectory.resolve(location).resolve(name));
+
+    ZipFile segment = new ZipFile(archiveDirectory.resolve(location).toFile());
+    ZipEntry entry = segment.getEntry(name);
+    if (entry == null) {
+      segment.close();
+      return null;
+    }
+    // Closing the stream closes the segment as well
+    return new java.io.FilterInputStream(segment.getInputStream(entry)) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          segment.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns the number of archived file names
+   */
+  public int size() {
+    return locations.size();
+  }
+
+  public Path getArchiveDirectory() {
+    return this.archiveDirectory;
+  }
+
+  static boolean isSegment(String location) {
+    return location.endsWith(SEGMENT_SUFFIX);
+  }
+
+  private String getRelativeLocation(Path path) {
+    return archiveDirectory.toAbsolutePath().relativize(path).toString().replace('\\', '/');
+  }
+
+  private boolean isSnapshotCurrent() throws IOException {
+    if (snapshotFile == null || !Files.isRegularFile(snapshotFile))
+      return false;
+    // Any file added to or removed from a directory changes the directory's modification time
+    FileTime archiveTime = this.getNewestDirectoryTime(archiveDirectory, this.getDirectoryDepth());
+    return Files.getLastModifiedTime(snapshotFile).compareTo(archiveTime) > 0;
+  }
+
+  private int getDirectoryDepth() {
+    switch (layout) {
+      case DATE:
+        return 3;
+      case PREFIX:
+        return 1;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Returns the newest modification time of the directory and its subdirectories.  Entries
+   * with an extension are files, so only the others are checked for being directories.
+   */
+  private FileTime getNewestDirectoryTime(Path directory, int depth) throws IOException {
+    FileTime newest = Files.getLastModifiedTime(directory);
+    if (depth == 0)
+      return newest;
+
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (Path path : stream) {
+        if (path.getFileName().toString().indexOf('.') < 0 && Files.isDirectory(path)) {
+          FileTime time = this.getNewestDirectoryTime(path, depth - 1);
+          if (time.compareTo(newest) > 0)
+            newest = time;
+        }
+      }
+    }
+    return newest;
+  }
+
+  private int readSnapshot() throws IOException {
+    int lines = 0;
+    try (BufferedReader reader = Files.newBufferedReader(snapshotFile, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty())
+          continue;
+        lines++;
+        int tab = line.indexOf('\t');
+        if (tab < 0)
+          locations.put(line, "");
+        else
+          locations.put(line.substring(0, tab), line.substring(tab + 1));
+      }
+    }
+    return lines;
+  }
+
+  private void readDirectory(Path directory, String location) throws IOException {
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (Path path : stream) {
+        String name = path.getFileName().toString();
+
+        if (layout != Layout.FLAT && name.indexOf('.') < 0 && Files.isDirectory(path)) {
+          this.readDirectory(path, location.isEmpty() ? name : location + "/" + name);
+
+        } else if (layout == Layout.DATE && name.endsWith(SEGMENT_SUFFIX) && !location.isEmpty()) {
+          // A day packed into a segment, its entries are listed from the zip directory
+          String segment = location + "/" + name;
+          try (ZipFile zip = new ZipFile(path.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+              locations.put(entries.nextElement().getName(), segment);
+            }
+          }
+
+        } else if (name.startsWith(".") && name.endsWith(AtomicFileWriter.TEMP_SUFFIX)) {
+          // A copy into the archive interrupted by a crash
+          continue;
+
+        } else {
+          locations.put(name, location);
+        }
+      }
+    }
+  }
+
+  private void writeSnapshot() throws IOException {
+    this.closeSnapshot();
+    if (snapshotFile == null)
+      return;
+
+    Path temp = Files.createTempFile(snapshotFile.getParent(), "." + snapshotFile.getFileName() + ".", ".tmp");
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        for (Map.Entry<String, String> entry : locations.entrySet()) {
+          writeEntry(writer, entry.getKey(), entry.getValue());
+        }
+      }
+      Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException | RuntimeException ex) {
+      Files.deleteIfExists(temp);
+      throw ex;
+    }
+    snapshotWriter = Files.newBufferedWriter(snapshotFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+  }
+
+  private static void writeEntry(BufferedWriter writer, String name, String location) throws IOException {
+    writer.write(name);
+    if (!location.isEmpty()) {
+      writer.write('\t');
+      writer.write(location);
+    }
+    writer.newLine();
+  }
+
+  private void closeSnapshot() {
+    if (snapshotWriter != null) {
+      try {
+        snapshotWriter.close();
+      } catch (IOException ex) {
+        // Nothing more can be done
+      }
+      snapshotWriter = null;
+    }
+  }
+
+  /**
+   * Stops updating the snapshot and marks it as up to date.  Call only once
+   * nothing is archived any more, i.e., after the test requests have finished.
+   */
+  public synchronized void close() {
+    this.markSnapshotCurrent();
+    this.closeSnapshot();
+  }
+
+  @Override
+  public String toString() {
+    return locations.size() + " archived files in " + archiveDirectory + " (" + layout + " layout)" +
+           ((snapshotFile != null) ? ", snapshot " + snapshotFile : "");
+  }
+}
@@ -0,0 +1,102 @@
+package com.dgi.fhirplace.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes files that are read by the FHIRplace client (status and upload files)
+ * so the client never sees a partially written file.
+ *
+ * The content is written to a temporary file in the same directory, whose name
+ * does not end in .sts or .uld, and the temporary file is then renamed to the
+ * final name in one atomic step.  When forcing is requested the content is
+ * flushed to the storage device before the rename, and the rename itself is
+ * flushed afterwards, so the file also survives a crash of the machine.
+ */
+public class AtomicFileWriter {
+
+  static String TEMP_SUFFIX = ".tmp";
+
+  /**
+   * Writes the content to the file, replacing any existing file of the same name
+   * @param fileName - the final name of the file
+   * @param content - the bytes to write, may be null for an empty file
+   * @param force - true to flush the file to the storage device before it is published
+   * @throws IOException if the file could not be written
+   */
+  public static void write(String fileName, byte[] content, boolean force) throws IOException {
+    Path target = Paths.get(fileName).toAbsolutePath();
+    Path directory = target.getParent();
+    Path temp = createTempFile(directory, target.getFileName().toString());
+
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        if (content != null) {
+          ByteBuffer buffer = ByteBuffer.wrap(content);
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+        }
+        if (force) {
+          channel.force(true);
+        }
+      }
+
+      try {
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException | RuntimeException ex) {
+      Files.deleteIfExists(temp);
+      throw ex;
+    }
+
+    if (force) {
+      forceDirectory(directory);
+    }
+  }
+
+  /**
+   * Creates a new, empty temporary file next to the target.  Unlike Files.createTempFile
+   * the file gets the usual permissions (as limited by the umask), so the published file
+   * can be read by the same users as a file written directly.
+   * @param directory - the directory of the target
+   * @param name - the name of the target
+   * @return the temporary file
+   * @throws IOException
+   */
+  static Path createTempFile(Path directory, String name) throws IOException {
+    while (true) {
+      long random = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+      Path temp = directory.resolve("." + name + "." + random + TEMP_SUFFIX);
+      try {
+        return Files.createFile(temp);
+      } catch (FileAlreadyExistsException ex) {
+        // Try another name
+      }
+    }
+  }
+
+  /**
+   * Flushes a directory's entries (e.g., a rename) to the storage device.  Not all
+   * platforms allow a directory to be opened, in which case nothing is done.
+   * @param directory - the directory to flush
+   */
+  static void forceDirectory(Path directory) {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException | RuntimeException ex) {
+      // Best effort only
+    }
+  }
+}
@@ -1,14 +1,18 @@
 package com.dgi.fhirplace.util;
 
+import com.dgi.fhirplace.events.StatusWrittenEvent;
 import com.dgi.fhirplace.handler.FHIRplaceConstants;
 import com.dgi.fhirplace.handler.LocalParameters;
+import com.dgi.fhirplace.metrics.TestMetrics;
 import com.dgi.fhirplace.parser.Transmission;
 import com.dgi.fhirplace.parser.Instructions;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 import org.w3c.dom.Node;
 
@@ -20,6 +24,9 @@ public class FHIRplaceUtil {
 
   static String APPEND_POSTIVE = "_P.sts";
   static String APPEND_NEGATIVE = "_N.sts";
+
+  static final DateTimeFormatter PRETTY_DATE_FORMAT = 
+    DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
   
   /**
    * Checks for the existence of all needed directories and creates them 
@@ -74,6 +81,19 @@ public class FHIRplaceUtil {
     return fileName.substring(start_idx+4, end_idx);
   }
 
+  /**
+   * Gets the test request ID from the test request file name, if it has the usual form
+   * @param fileName - the test request file name
+   * @return the test request ID, or the file name itself
+   */
+  public static String findTestRequestID(String fileName) {
+    String name = new File(fileName).getName();
+    String lowerName = name.toLowerCase();
+    if (lowerName.startsWith("req-") && (lowerName.endsWith(".xml") || lowerName.endsWith(".kill")))
+      return getTestRequestID(name);
+    return name;
+  }
+
   /**
    * Gets the trading partner name / identifier
    * @param trans - the Transmission object
@@ -88,6 +108,18 @@ public class FHIRplaceUtil {
     }
   }  
 
+  /**
+   * Gets the trading partner name / identifier, if it is known yet
+   * @param trans - the Transmission object, may be null
+   * @param params - the LocalParameters object
+   * @return the trading partner name / identifier, or null
+   */
+  public static String findTP(Transmission trans, LocalParameters params) {
+    if (trans == null || trans.getSenderID() == null)
+      return null;
+    return getTP(trans, params);
+  }
+
   /**
    * Returns a formatted date string
    * @return the formatted date string
@@ -99,9 +131,7 @@ public class FHIRplaceUtil {
   }
 
   public static String getPrettyDate() {
-    Date curDate = new Date();
-    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-    return sdf.format(curDate);
+    return PRETTY_DATE_FORMAT.format(Instant.now());
   }
   
   /**
@@ -194,7 +224,46 @@ public class FHIRplaceUtil {
   }
 
   /**
-   * Writes the appropriate status file to the status directory
+   * Returns the name of a status type
+   * @param statusType - the status type (e.g., ACK, NAK, etc)
+   * @return the name of the status type constant, or null if unknown
+   */
+  public static String getStatusTypeDescription(int statusType) {
+    switch (statusType) {
+      case FHIRplaceConstants.ACK :
+        return "ACK";
+      case FHIRplaceConstants.NAK :
+        return "NAK";
+      case FHIRplaceConstants.SENT_OK :
+        return "SENT_OK";
+      case FHIRplaceConstants.SENT_NOT_OK :
+        return "SENT_NOT_OK";
+      case FHIRplaceConstants.RECEIVED_OK :
+        return "RECEIVED_OK";
+      case FHIRplaceConstants.RECEIVED_NOT_OK :
+        return "RECEIVED_NOT_OK";
+      case FHIRplaceConstants.VERIFIED_OK :
+        return "VERIFIED_OK";
+      case FHIRplaceConstants.VERIFIED_NOT_OK :
+        return "VERIFIED_NOT_OK";
+      case FHIRplaceConstants.RESULTS_OK :
+        return "RESULTS_OK";
+      case FHIRplaceConstants.RESULTS_NOT_OK :
+        return "RESULTS_NOT_OK";
+      default :
+        return null;
+    }
+  }
+
+  /**
+   * Writes the appropriate status file to the status directory.
+   *
+   * Status files are written without any shared lock, so the status writes of different
+   * test requests run concurrently.  The status files of one test request are not ordered
+   * by a lock either: when it is cancelled, the cancel request's thread may write its
+   * RESULTS_NOT_OK while the test's own thread is still writing its sent or received
+   * statuses.  Only the result status is kept to one write, by TestCancellation.claimResult().
+   * The file appears under its final name only once it is completely written.
    * @param status_type - the type of status to be sent (e.g., ACK, NAK, etc)
    * @param fileName - the file name containing the testID
    * @param instruct - the InStructions object used to determine the appropriate identifier
@@ -203,18 +272,54 @@ public class FHIRplaceUtil {
    * @param content - the text to be written to the status file
    * @throws Exception 
    */
-  public static synchronized void sendStatus(int status_type, String fileName, Instructions instruct,
-                                             Transmission trans, LocalParameters params, String content)
+  public static void sendStatus(int status_type, String fileName, Instructions instruct,
+                                Transmission trans, LocalParameters params, String content)
     throws Exception {
 
+    String statusFile = getStatusFileName(status_type, fileName, instruct, trans, params);
+
+    // Make sure there is a status file to open
+    if (statusFile == null)
+      return;
+
+    StatusWrittenEvent event = new StatusWrittenEvent();
+    event.begin();
+    byte[] bytes = (content != null) ? content.getBytes() : null;
+
+    // Publish the complete file in one step, so the client never reads a partial status
+    AtomicFileWriter.write(statusFile, bytes, params.isFsyncStatus());
+    TestMetrics.getInstance().recordStatusWrite(status_type);
+
+    if (event.shouldCommit()) {
+      event.testRequestID = findTestRequestID(fileName);
+      event.partner = findTP(trans, params);
+      event.statusType = status_type;
+      event.fileName = statusFile;
+      event.size = (bytes != null) ? bytes.length : 0;
+      event.forced = params.isFsyncStatus();
+      event.commit();
+    }
+  }
+
+  /**
+   * Determines the name of the status file for the status type
+   * @param status_type - the type of status to be sent (e.g., ACK, NAK, etc)
+   * @param fileName - the file name containing the testID
+   * @param instruct - the InStructions object used to determine the appropriate identifier
+   * @param trans - the Transmission object
+   * @param params - the LocalParameters object, used for getting the status directory
+   * @return the path of the status file, or null if no status file is needed
+   */
+  public static String getStatusFileName(int status_type, String fileName, Instructions instruct,
+                                         Transmission trans, LocalParameters params) {
     String statusFile = null;
     switch (status_type) {
       case FHIRplaceConstants.ACK:
         statusFile = params.getStatusDirectory() + FHIRplaceConstants.FILE_SEPARATOR + instruct.getAckID() + APPEND_POSTIVE;
         break;
       case FHIRplaceConstants.NAK:
-        // Compose an ACK ID if we couldn't get one
-        String ackID = instruct.getAckID();
+        // Compose an ACK ID if we couldn't get one, or no Instructions if the request couldn't be parsed
+        String ackID = (instruct != null) ? instruct.getAckID() : null;
         if (ackID == null) {
           File rName = new File(fileName);
           // The file name is in the form Req-Txxxx.xml
@@ -256,29 +361,36 @@ public class FHIRplaceUtil {
           statusFile = params.getStatusDirectory() + FHIRplaceConstants.FILE_SEPARATOR + instruct.getEvaluateTestID() + APPEND_POSTIVE;
         break;
       case FHIRplaceConstants.RESULTS_NOT_OK:
-        String evaluateTestID = instruct.getEvaluateTestID();
-        if (evaluateTestID == null) {
-          File rName = new File(fileName);
-          // The file name is in the form Req-Txxxx.xml
-          // Grab the part of the file name between the "-" and the "."
-          int sIdx = rName.getName().indexOf("-");
-          int eIdx = rName.getName().indexOf(".");
-          String tName = rName.getName().substring(sIdx+1, eIdx);
-          String sendCode = FHIRplaceUtil.isSending(trans, params) ? "A" : "B" ;
-          evaluateTestID = tName + "_" + sendCode + "VotedOK";
-        }
+        String evaluateTestID = getEvaluateTestID(fileName, instruct, trans, params);
         statusFile = params.getStatusDirectory() + FHIRplaceConstants.FILE_SEPARATOR + evaluateTestID + APPEND_NEGATIVE;
         break;
      }
-     // Make sure there is a status file to open
-     if (statusFile == null)
-       return;
+    return statusFile;
+  }
 
-    try (FileOutputStream fout = new FileOutputStream(statusFile)) {
-      if (content != null) {
-        fout.write(content.getBytes());
-      }
+  /**
+   * Determines the response ID of the test result, composing one if the test request has none
+   * @param fileName - the file name containing the testID
+   * @param instruct - the Instructions object, null if the test request could not be parsed
+   * @param trans - the Transmission object
+   * @param params - the LocalParameters object
+   * @return the response ID used for the RESULTS_OK / RESULTS_NOT_OK status
+   */
+  public static String getEvaluateTestID(String fileName, Instructions instruct, 
+                                         Transmission trans, LocalParameters params) {
+    // No Instructions if the test request could not be parsed
+    String evaluateTestID = (instruct != null) ? instruct.getEvaluateTestID() : null;
+    if (evaluateTestID == null) {
+      File rName = new File(fileName);
+      // The file name is in the form Req-Txxxx.xml
+      // Grab the part of the file name between the "-" and the "."
+      int sIdx = rName.getName().indexOf("-");
+      int eIdx = rName.getName().indexOf(".");
+      String tName = rName.getName().substring(sIdx+1, eIdx);
+      String sendCode = FHIRplaceUtil.isSending(trans, params) ? "A" : "B" ;
+      evaluateTestID = tName + "_" + sendCode + "VotedOK";
     }
+    return evaluateTestID;
   }
   
   /**
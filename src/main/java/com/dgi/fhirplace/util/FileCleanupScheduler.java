@@ -0,0 +1,177 @@
+package com.dgi.fhirplace.util;
+
+import com.dgi.fhirplace.handler.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class deletes files that could not be deleted right away (e.g., because
+ * another process still has them open) on a background thread, so the caller
+ * can carry on instead of waiting for the file to be released.
+ *
+ * Each file is retried with an exponentially growing delay (1 second, doubling
+ * up to 1 minute) for up to 10 minutes before it is given up on.  The number
+ * of files waiting to be deleted is limited; files offered beyond the limit are
+ * refused and counted.
+ */
+public class FileCleanupScheduler {
+
+  static final int MAX_PENDING = 1000;
+  static final long INITIAL_DELAY_MILLIS = 1000;
+  static final long MAX_DELAY_MILLIS = 60 * 1000;
+  static final long GIVE_UP_MILLIS = 10 * 60 * 1000;
+
+  Logger log = new Logger(FileCleanupScheduler.class);
+
+  ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "FileCleanupScheduler");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // Files waiting to be deleted, by path
+  ConcurrentHashMap<String, PendingDeletion> pending = new ConcurrentHashMap<>();
+  AtomicInteger pendingCount = new AtomicInteger();
+
+  AtomicLong deletedCount = new AtomicLong();
+  AtomicLong abandonedCount = new AtomicLong();
+  AtomicLong rejectedCount = new AtomicLong();
+
+  private static class InstanceHolder {
+    static final FileCleanupScheduler INSTANCE = new FileCleanupScheduler();
+  }
+
+  /**
+   * Returns the scheduler shared by the whole handler
+   */
+  public static FileCleanupScheduler getInstance() {
+    return InstanceHolder.INSTANCE;
+  }
+
+  FileCleanupScheduler() {
+  }
+
+  /**
+   * Deletes the file in the background
+   * @param file - the file to delete
+   * @return false if the file was refused because too many files are already waiting
+   */
+  public boolean scheduleDelete(File file) {
+    String key = file.getPath();
+    if (pending.containsKey(key))
+      return true;
+
+    if (pendingCount.incrementAndGet() > MAX_PENDING) {
+      pendingCount.decrementAndGet();
+      rejectedCount.incrementAndGet();
+      log.write("Error: Too many files waiting to be deleted, could not delete " + key);
+      return false;
+    }
+
+    PendingDeletion deletion = new PendingDeletion(file);
+    if (pending.putIfAbsent(key, deletion) != null) {
+      pendingCount.decrementAndGet();
+      return true;
+    }
+    this.schedule(deletion);
+    return true;
+  }
+
+  /**
+   * Returns true if the file is waiting to be deleted
+   * @param file - the file
+   */
+  public boolean isPending(File file) {
+    return pending.containsKey(file.getPath());
+  }
+
+  private void schedule(PendingDeletion deletion) {
+    scheduler.schedule(() -> this.attempt(deletion), deletion.delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void attempt(PendingDeletion deletion) {
+    deletion.attempts++;
+    if (!deletion.file.exists() || deletion.file.delete()) {
+      this.finish(deletion);
+      deletedCount.incrementAndGet();
+      return;
+    }
+
+    if (System.currentTimeMillis() - deletion.since >= GIVE_UP_MILLIS) {
+      this.finish(deletion);
+      abandonedCount.incrementAndGet();
+      log.write("Error: Could not delete " + deletion.file.getPath() + " after " + deletion.attempts + " attempts");
+      return;
+    }
+
+    deletion.delay = Math.min(deletion.delay * 2, MAX_DELAY_MILLIS);
+    this.schedule(deletion);
+  }
+
+  private void finish(PendingDeletion deletion) {
+    pending.remove(deletion.file.getPath());
+    pendingCount.decrementAndGet();
+  }
+
+  /**
+   * Returns the number of files waiting to be deleted
+   */
+  public int getPendingCount() {
+    return pendingCount.get();
+  }
+  /**
+   * Returns the number of files deleted in the background
+   */
+  public long getDeletedCount() {
+    return deletedCount.get();
+  }
+  /**
+   * Returns the number of files that were given up on
+   */
+  public long getAbandonedCount() {
+    return abandonedCount.get();
+  }
+  /**
+   * Returns the number of files refused because too many files were waiting
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * Returns the files that have been waiting to be deleted for more than a minute
+   * @return descriptions of the stuck files (path, seconds waiting and attempts)
+   */
+  public List<String> getStuckFiles() {
+    List<String> stuck = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    for (PendingDeletion deletion : pending.values()) {
+      long waiting = now - deletion.since;
+      if (waiting > MAX_DELAY_MILLIS) {
+        stuck.add(deletion.file.getPath() + " (" + (waiting / 1000) + " seconds, " + deletion.attempts + " attempts)");
+      }
+    }
+    return stuck;
+  }
+
+  // Inner class holding the state of one file waiting to be deleted
+  static class PendingDeletion {
+    final File file;
+    final long since = System.currentTimeMillis();
+    // Only used on the scheduler thread
+    long delay = INITIAL_DELAY_MILLIS;
+    volatile int attempts = 0;
+
+    PendingDeletion(File file) {
+      this.file = file;
+    }
+  }
+}
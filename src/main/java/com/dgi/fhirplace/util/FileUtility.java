@@ -1,12 +1,19 @@
 package com.dgi.fhirplace.util;
 
+import com.dgi.fhirplace.events.ArchiveMoveEvent;
+import com.dgi.fhirplace.events.UploadWrittenEvent;
 import com.dgi.fhirplace.handler.LocalParameters;
 import com.dgi.fhirplace.handler.Logger;
 import com.dgi.fhirplace.handler.FHIRplaceConstants;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 /**
  * File Utility Classes
@@ -14,6 +21,18 @@ import java.io.FileOutputStream;
  */
 public class FileUtility {
   Logger log = new Logger(FileUtility.class);
+
+  LocalParameters params = null;
+
+  // Largest number of bytes handed to a single transferTo call
+  static final long TRANSFER_SIZE = 8L * 1024 * 1024;
+
+  public FileUtility() {
+  }
+
+  public FileUtility(LocalParameters params) {
+    this.params = params;
+  }
   
  /**
    * Move the specified file (obtained from the FHIRplace Server) to the archive directory
@@ -32,32 +51,94 @@ public class FileUtility {
     if (!thisFile.exists())
       return;
 
-    // Open the source and destination files
-    FileOutputStream fout;
-    try ( 
-      FileInputStream fin = new FileInputStream(thisFile)) {
-      fout = new FileOutputStream(params.getArchiveDirectory() + FHIRplaceConstants.FILE_SEPARATOR + thisFile.getName());
-      // Write the contents of the source to the destination
-      int numRead;
-      byte[] buf = new byte[1024];
-      while ((numRead = fin.read(buf)) > 0) {
-        fout.write(buf, 0, numRead);
-      }
+    ArchiveMoveEvent event = new ArchiveMoveEvent();
+    event.begin();
+    long size = event.isEnabled() ? thisFile.length() : 0;
+
+    Path source = thisFile.toPath();
+    Path target = params.getArchiveIndex().getTargetDirectory(thisFile.getName()).resolve(thisFile.getName());
+
+    // Recorded before the file is moved, so a snapshot that is up to date after the move
+    // has the file in it.  Should the move fail, a lookup still finds that the file is not there.
+    params.getArchiveIndex().add(target);
+
+    // A rename is all that is needed when the archive is on the same file system
+    try {
+      Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+      commitArchiveMoveEvent(event, source, target, false, size, params);
+      return;
+    } catch (AtomicMoveNotSupportedException ex) {
+      // The archive is on a different file system, copy the file instead
     }
-    fout.close();
 
-    // Attempt to delete the source
+    copyFile(source, target);
+
+    // Attempt to delete the source, if it is still in use keep trying in the background
     if (!thisFile.delete()) {
-      // File couldn't be removed.  Wait a second and try for a full minute.
-      int count = 0;
-      while (count++ < 60) {
-        FHIRplaceUtil.wait(1);
-        if (thisFile.delete())
-          return;
+      FileCleanupScheduler.getInstance().scheduleDelete(thisFile);
+    }
+    commitArchiveMoveEvent(event, source, target, true, size, params);
+  }
+
+  private static void commitArchiveMoveEvent(ArchiveMoveEvent event, Path source, Path target, 
+                                             boolean copied, long size, LocalParameters params) {
+    if (!event.shouldCommit())
+      return;
+    event.testRequestID = FHIRplaceUtil.findTestRequestID(source.getFileName().toString());
+    event.partner = params.getPartnerForActiveTest(event.testRequestID);
+    event.source = source.toString();
+    event.target = target.toString();
+    event.copied = copied;
+    event.size = size;
+    event.commit();
+  }
+
+  /**
+   * Copies a file with transferTo, which lets the operating system move the data
+   * without passing it through a Java buffer.  The copy is written to a temporary
+   * file next to the target, flushed to the storage device and then renamed, so
+   * after a crash the target is either complete or not there at all and the source
+   * can be deleted once this returns.
+   * @param source the file to copy
+   * @param target the destination, replaced if it already exists
+   * @throws IOException
+   */
+  private void copyFile(Path source, Path target) throws IOException {
+    Path directory = target.toAbsolutePath().getParent();
+    Path temp = AtomicFileWriter.createTempFile(directory, target.getFileName().toString());
+
+    try {
+      this.transferFile(source, temp);
+      try {
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
       }
+    } catch (IOException | RuntimeException ex) {
+      Files.deleteIfExists(temp);
+      throw ex;
+    }
+    AtomicFileWriter.forceDirectory(directory);
+  }
 
-      // If we get here, it's because the file couldn't be removed
-      log.write("Error: Could not delete " + fileName + "...");
+  private void transferFile(Path source, Path target) throws IOException {
+    try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+         FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+      long size = in.size();
+      long position = 0;
+      while (position < size) {
+        long transferred = in.transferTo(position, Math.min(TRANSFER_SIZE, size - position), out);
+        if (transferred <= 0) {
+          // The source was truncated while it was copied, so all that is left of it is copied
+          size = Math.min(size, in.size());
+          if (position >= size)
+            break;
+          throw new IOException("Could not copy " + source + " to " + target + ", the copy stopped after " +
+                                position + " of " + size + " bytes");
+        }
+        position += transferred;
+      }
+      out.force(true);
     }
   }
 
@@ -118,11 +199,23 @@ public class FileUtility {
       return;
     }
 
-    try (FileOutputStream fout = new FileOutputStream(statusFile)) {
-      if (content != null) {
-        fout.write(content.getBytes());
-      }
-    }    
+    UploadWrittenEvent event = new UploadWrittenEvent();
+    event.begin();
+    byte[] bytes = (content != null) ? content.getBytes() : null;
+
+    // Publish the complete file in one step, so the client never reads a partial upload
+    boolean force = (params != null) && params.isFsyncUpload();
+    AtomicFileWriter.write(statusFile, bytes, force);
+
+    if (event.shouldCommit()) {
+      event.testRequestID = testRequestID;
+      event.partner = (params != null) ? params.getPartnerForActiveTest(testRequestID) : null;
+      event.direction = (direction == FHIRplaceConstants.SENT_DATA) ? "sent" : "received";
+      event.dataType = FHIRplaceUtil.getDataTypeDescription(dataType);
+      event.fileName = statusFile;
+      event.size = (bytes != null) ? bytes.length : 0;
+      event.commit();
+    }
   }
 
 }